@@ -11,7 +11,10 @@ import com.github.niqdev.ipcam.databinding.ActivityIpcamDefaultBinding
 import com.github.niqdev.ipcam.settings.SettingsActivity
 import com.github.niqdev.mjpeg.Mjpeg
 import com.github.niqdev.mjpeg.MjpegInputStream
+import com.github.niqdev.mjpeg.MjpegSimulator
 import com.github.niqdev.mjpeg.MjpegSurfaceView
+import rx.Observable
+import rx.schedulers.Schedulers
 
 class IpCamDefaultActivity : AppCompatActivity() {
 
@@ -20,6 +23,9 @@ class IpCamDefaultActivity : AppCompatActivity() {
 
     private lateinit var binding: ActivityIpcamDefaultBinding
 
+    @Volatile
+    private var simulator: MjpegSimulator? = null
+
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         binding = ActivityIpcamDefaultBinding.inflate(layoutInflater)
@@ -36,10 +42,20 @@ class IpCamDefaultActivity : AppCompatActivity() {
     else
         MjpegSurfaceView.DisplayMode.BEST_FIT
 
+    // frames are encoded when the simulator starts, off the main thread
+    private fun streamUrl(): Observable<String?> = if (getBooleanPreference(SettingsActivity.PREF_SIMULATOR))
+        Observable.fromCallable<String?> { (simulator ?: MjpegSimulator().start().also { simulator = it }).url }
+                .subscribeOn(Schedulers.io())
+    else
+        Observable.just(getPreference(SettingsActivity.PREF_IPCAM_URL))
+
     private fun loadIpCam() {
-         Mjpeg()
-                .credential(getPreference(SettingsActivity.PREF_AUTH_USERNAME), getPreference(SettingsActivity.PREF_AUTH_PASSWORD))
-                .open(getPreference(SettingsActivity.PREF_IPCAM_URL), TIMEOUT)
+         streamUrl()
+                .concatMap { url ->
+                    Mjpeg()
+                            .credential(getPreference(SettingsActivity.PREF_AUTH_USERNAME), getPreference(SettingsActivity.PREF_AUTH_PASSWORD))
+                            .open(url, TIMEOUT)
+                }
                 .subscribe(
                         { inputStream: MjpegInputStream ->
                             binding.mjpegViewDefault.setSource(inputStream)
@@ -53,12 +69,22 @@ class IpCamDefaultActivity : AppCompatActivity() {
 
     override fun onResume() {
         super.onResume()
-        loadIpCam()
+        // back within the standby timeout, the connection is still open
+        if (!binding.mjpegViewDefault.wake()) {
+            loadIpCam()
+        }
     }
 
     override fun onPause() {
         super.onPause()
+        binding.mjpegViewDefault.standby()
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
         binding.mjpegViewDefault.stopPlayback()
+        simulator?.close()
+        simulator = null
     }
 
     companion object {
@@ -24,6 +24,7 @@ import androidx.core.app.NavUtils;
 public class SettingsActivity extends AppCompatPreferenceActivity {
 
     public static final String PREF_IPCAM_URL = "com.github.niqdev.ipcam.settings.SettingsActivity.IPCAM_URL";
+    public static final String PREF_SIMULATOR = "com.github.niqdev.ipcam.settings.SettingsActivity.SIMULATOR";
     public static final String PREF_AUTH_USERNAME = "com.github.niqdev.ipcam.settings.SettingsActivity.PREF_AUTH_USERNAME";
     public static final String PREF_AUTH_PASSWORD = "com.github.niqdev.ipcam.settings.SettingsActivity.PREF_AUTH_PASSWORD";
 
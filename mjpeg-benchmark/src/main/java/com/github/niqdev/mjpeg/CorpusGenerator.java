@@ -0,0 +1,85 @@
+package com.github.niqdev.mjpeg;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes the synthetic frames of the corpus: a fixed-camera scene, with a textured background,
+ * an object moving across it, a clock overlay and sensor noise, so that consecutive frames
+ * differ like those of a real camera. The output is committed: although seeded, font
+ * rendering and the JPEG encoder vary across JDKs.
+ */
+public class CorpusGenerator {
+    static final int FRAMES = 12;
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final int NOISE = 6;
+
+    public static void main(String[] args) throws IOException {
+        File dir = new File(args.length > 0 ? args[0] : "corpus/frames");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < FRAMES; i++) {
+            File file = new File(dir, String.format("frame-%02d.jpg", i));
+            ImageIO.write(drawFrame(i, random), "jpg", file);
+            System.out.println(file + " " + file.length());
+        }
+    }
+
+    private static BufferedImage drawFrame(int index, Random random) {
+        BufferedImage image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        // background: sky, ground and a fence
+        g.setColor(new Color(120, 160, 210));
+        g.fillRect(0, 0, WIDTH, HEIGHT / 2);
+        g.setColor(new Color(90, 110, 70));
+        g.fillRect(0, HEIGHT / 2, WIDTH, HEIGHT / 2);
+        g.setColor(new Color(150, 120, 90));
+        g.setStroke(new BasicStroke(3));
+        for (int x = 0; x < WIDTH; x += 24) {
+            g.drawLine(x, HEIGHT / 2 - 40, x, HEIGHT / 2 + 10);
+        }
+        g.drawLine(0, HEIGHT / 2 - 30, WIDTH, HEIGHT / 2 - 30);
+
+        // moving object
+        int x = 40 + index * (WIDTH - 160) / FRAMES;
+        g.setColor(new Color(200, 40, 40));
+        g.fillRoundRect(x, HEIGHT / 2 + 20, 90, 40, 12, 12);
+        g.setColor(Color.DARK_GRAY);
+        g.fillOval(x + 10, HEIGHT / 2 + 50, 20, 20);
+        g.fillOval(x + 60, HEIGHT / 2 + 50, 20, 20);
+
+        // camera overlay
+        g.setColor(Color.WHITE);
+        g.setFont(new Font(Font.MONOSPACED, Font.BOLD, 14));
+        g.drawString(String.format("CAM 01  2024-01-01 12:00:%02d", index), 10, 20);
+        g.dispose();
+
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int px = 0; px < WIDTH; px++) {
+                int rgb = image.getRGB(px, y);
+                int n = random.nextInt(2 * NOISE + 1) - NOISE;
+                image.setRGB(px, y, clamp((rgb >> 16 & 0xFF) + n) << 16
+                        | clamp((rgb >> 8 & 0xFF) + n) << 8 | clamp((rgb & 0xFF) + n));
+            }
+        }
+        return image;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Allocation per frame of the ways to consume a stream, run with -prof gc and compare
+ * gc.alloc.rate.norm, in bytes per frame:
+ * reusing the stream buffer, copying every frame, and leasing pooled frames.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameAllocationBenchmark {
+    private static final int POOL_SIZE = 4;
+
+    private MjpegInputStream in;
+    private MjpegFramePool pool;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] stream = MjpegCorpus.stream(MjpegCorpus.Layout.CONTENT_LENGTH.name());
+        in = new MjpegInputStream(new MjpegCorpus.LoopingInputStream(stream, -1));
+        pool = in.newFramePool(POOL_SIZE);
+    }
+
+    @Benchmark
+    public int sharedBuffer() throws IOException {
+        return in.readMjpegFrame();
+    }
+
+    @Benchmark
+    public byte[] copyPerFrame() throws IOException {
+        int length = in.readMjpegFrame();
+        return Arrays.copyOf(in.frameBuffer, length);
+    }
+
+    @Benchmark
+    public int pooledFrame() throws IOException {
+        MjpegFrame frame = in.readFrame(pool);
+        int length = frame.getLength();
+        frame.release();
+        return length;
+    }
+}
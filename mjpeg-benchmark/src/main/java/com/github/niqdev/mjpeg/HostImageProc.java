@@ -0,0 +1,28 @@
+package com.github.niqdev.mjpeg;
+
+/**
+ * Decode entry points of ImageProc.c, in the library built for this machine by
+ * <code>make jni</code> in mjpeg-view/src/main/jni/host, decoding into int arrays
+ * instead of Android bitmaps.
+ */
+final class HostImageProc {
+
+    static {
+        System.loadLibrary("ImageProcHost");
+    }
+
+    private HostImageProc() {
+    }
+
+    /**
+     * @param size width and height of the jpeg
+     * @return 0 on success
+     */
+    static native int dimensions(byte[] jpeg, int length, int[] size);
+
+    static native int decode(byte[] jpeg, int length, int[] pixels, int width, int height, int threads);
+
+    static native int decodeReference(byte[] jpeg, int length, int[] pixels, int width, int height);
+
+    static native int decodeRegion(byte[] jpeg, int length, int[] pixels, int left, int top, int width, int height, int scale);
+}
@@ -0,0 +1,305 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+
+import rx.Subscription;
+
+/**
+ * Churns the lifecycle of several views against a local {@link MjpegSimulator} for thousands of
+ * cycles and fails if threads, connections, file descriptors, memory accounts or the retained heap
+ * grow over time. Each cycle plays a stream the way <code>MjpegSurfaceView</code> does, with or
+ * without a jitter buffer, or through <code>openFrames</code>, for a few frames, then stops it the
+ * way <code>stopPlayback()</code> does: close first, from another thread, then join the reader.
+ * <p>
+ * Runs on a plain JVM, the view itself isn't: <code>setSource()</code>, <code>stopPlayback()</code>
+ * and the callbacks of its surface are replayed here, not called, only the threads, sockets and
+ * buffers they create and tear down are exercised.
+ * <pre>
+ * ./gradlew :mjpeg-benchmark:soak -Psoak="4 2000"
+ * </pre>
+ */
+public class LifecycleSoak {
+    private static final int DEFAULT_VIEWS = 4;
+    private static final int DEFAULT_CYCLES = 2000;
+    // resources are sampled this many times along the run
+    private static final int SAMPLES = 10;
+    // the reader of a stream must be gone this soon after it is closed
+    private static final long STOP_TIMEOUT_MILLIS = 1000;
+    // time for closed connections, and idle threads of the io scheduler, to go away at the end
+    private static final long SETTLE_MILLIS = 90000;
+    // threads of the io scheduler and of the simulator kept alive between cycles
+    private static final int THREAD_SLACK = 8;
+    private static final long HEAP_SLACK_BYTES = 8 * 1024 * 1024;
+    private static final int JITTER_CAPACITY = 8;
+    // direct, jitter buffered and openFrames, cycle after cycle
+    private static final int KINDS = 3;
+
+    private final MjpegSimulator simulator;
+    private final int views;
+    private final int cycles;
+    private final AtomicLong stopNanosMax = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    LifecycleSoak(MjpegSimulator simulator, int views, int cycles) {
+        this.simulator = simulator;
+        this.views = views;
+        this.cycles = cycles;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int views = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_VIEWS;
+        int cycles = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CYCLES;
+        MjpegSimulator simulator = new MjpegSimulator().size(320, 180).fps(30).start();
+        boolean passed;
+        try {
+            passed = new LifecycleSoak(simulator, views, cycles).run();
+        } finally {
+            simulator.close();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return true if nothing leaked
+     */
+    boolean run() throws IOException, InterruptedException {
+        // warm up the client, the io scheduler and the pools before the baseline, every kind of
+        // cycle on every view at once, as many threads of the io scheduler as the run keeps alive
+        churn(0, KINDS);
+        Sample baseline = settle(null);
+        System.out.println("baseline " + baseline);
+
+        int perSample = Math.max(1, cycles / SAMPLES);
+        long start = System.nanoTime();
+        for (int done = 0; done < cycles && failure.get() == null; done += perSample) {
+            int batch = Math.min(perSample, cycles - done);
+            churn(done, batch);
+            Sample sample = Sample.take(simulator);
+            System.out.println((done + batch) + "/" + cycles + " cycles x " + views + " views " + sample);
+        }
+        if (failure.get() != null) {
+            System.out.println("FAILED " + failure.get());
+            failure.get().printStackTrace();
+            return false;
+        }
+        Sample end = settle(baseline);
+        System.out.println("end " + end + " in " + TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)
+                + " s, slowest stop " + TimeUnit.NANOSECONDS.toMillis(stopNanosMax.get()) + " ms");
+
+        List<String> leaks = end.leaksSince(baseline);
+        for (String leak : leaks) {
+            System.out.println("LEAK " + leak);
+        }
+        System.out.println(leaks.isEmpty() ? "PASSED" : "FAILED");
+        return leaks.isEmpty();
+    }
+
+    /*
+     * Run cycles first to first + batch on every view, each view on its own thread.
+     */
+    private void churn(int first, int batch) throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(views);
+        for (int v = 0; v < views; v++) {
+            int view = v;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(view * 31L + first);
+                try {
+                    for (int c = 0; c < batch && failure.get() == null; c++) {
+                        cycle(random, first + c);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    latch.countDown();
+                }
+            }, "LifecycleSoak-view-" + view);
+            thread.start();
+        }
+        latch.await();
+    }
+
+    /*
+     * Play a stream for a few frames and stop it.
+     */
+    private void cycle(Random random, int index) throws IOException, InterruptedException {
+        int frames = 1 + random.nextInt(4);
+        switch (index % KINDS) {
+            case 0:
+                playDirect(frames);
+                break;
+            case 1:
+                playJitterBuffered(frames);
+                break;
+            default:
+                playFrames(frames);
+                break;
+        }
+    }
+
+    /*
+     * A reader thread on the stream, as the view without a jitter buffer.
+     */
+    private void playDirect(int frames) throws IOException, InterruptedException {
+        MjpegInputStream in = new MjpegClient().connect(simulator.getUrl());
+        CountDownLatch read = new CountDownLatch(frames);
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    in.readMjpegFrame();
+                    read.countDown();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }, "LifecycleSoak-reader");
+        reader.start();
+        read.await(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        stop(in, reader);
+    }
+
+    /*
+     * A reader filling a jitter buffer and a presenter polling it, as the view with a jitter buffer.
+     */
+    private void playJitterBuffered(int frames) throws IOException, InterruptedException {
+        MjpegInputStream in = new MjpegClient().connect(simulator.getUrl());
+        MjpegJitterBuffer buffer = new MjpegJitterBuffer(50, TimeUnit.MILLISECONDS, JITTER_CAPACITY);
+        MjpegFramePool pool = in.newFramePool(JITTER_CAPACITY + 2);
+        Thread reader = new Thread(() -> {
+            try {
+                while (true) {
+                    buffer.offer(in.readFrame(pool));
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }, "LifecycleSoak-jitter-reader");
+        reader.start();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STOP_TIMEOUT_MILLIS);
+        for (int i = 0; i < frames && System.nanoTime() < deadline; i++) {
+            MjpegFrame frame = buffer.poll(0, STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+                frame.release();
+            }
+        }
+        stop(in, reader);
+        buffer.clear();
+        pool.close();
+    }
+
+    /*
+     * The frames of the client, unsubscribed after a few.
+     */
+    private void playFrames(int frames) throws InterruptedException {
+        CountDownLatch read = new CountDownLatch(frames);
+        Subscription subscription = new MjpegClient().openFrames(simulator.getUrl())
+                .subscribe(frame -> {
+                    frame.release();
+                    read.countDown();
+                }, throwable -> failure.compareAndSet(null, throwable));
+        read.await(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        subscription.unsubscribe();
+    }
+
+    private void stop(MjpegInputStream in, Thread reader) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        in.close();
+        reader.join(STOP_TIMEOUT_MILLIS);
+        long stopNanos = System.nanoTime() - start;
+        stopNanosMax.accumulateAndGet(stopNanos, Math::max);
+        if (reader.isAlive()) {
+            throw new IllegalStateException(reader.getName() + " still reading "
+                    + TimeUnit.NANOSECONDS.toMillis(stopNanos) + " ms after close");
+        }
+    }
+
+    /*
+     * Wait for the resources released to go away, up to the baseline if given.
+     */
+    private Sample settle(Sample baseline) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+        Sample sample = Sample.take(simulator);
+        while ((baseline != null ? !sample.leaksSince(baseline).isEmpty() : sample.connections > 0)
+                && System.nanoTime() < deadline) {
+            Thread.sleep(500);
+            sample = Sample.take(simulator);
+        }
+        return sample;
+    }
+
+    /*
+     * Resources held by the process at a point in time.
+     */
+    private static final class Sample {
+        final int threads;
+        final int connections;
+        final long fileDescriptors;
+        final long heapBytes;
+        final int accounts;
+        final long accountedBytes;
+
+        private Sample(int threads, int connections, long fileDescriptors, long heapBytes, int accounts, long accountedBytes) {
+            this.threads = threads;
+            this.connections = connections;
+            this.fileDescriptors = fileDescriptors;
+            this.heapBytes = heapBytes;
+            this.accounts = accounts;
+            this.accountedBytes = accountedBytes;
+        }
+
+        static Sample take(MjpegSimulator simulator) {
+            System.gc();
+            System.gc();
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            Runtime runtime = Runtime.getRuntime();
+            MjpegMemoryBudget budget = MjpegMemoryBudget.getInstance();
+            return new Sample(threads.getThreadCount(), simulator.getOpenConnectionCount(), openFileDescriptors(),
+                    runtime.totalMemory() - runtime.freeMemory(), budget.getAccounts().size(), budget.getUsedBytes());
+        }
+
+        List<String> leaksSince(Sample baseline) {
+            List<String> leaks = new ArrayList<>();
+            if (threads > baseline.threads + THREAD_SLACK) {
+                leaks.add("threads " + baseline.threads + " -> " + threads);
+            }
+            if (connections > 0) {
+                leaks.add(connections + " connections open");
+            }
+            if (fileDescriptors > baseline.fileDescriptors + THREAD_SLACK) {
+                leaks.add("file descriptors " + baseline.fileDescriptors + " -> " + fileDescriptors);
+            }
+            if (heapBytes > baseline.heapBytes + HEAP_SLACK_BYTES) {
+                leaks.add("heap " + baseline.heapBytes / 1024 + " KB -> " + heapBytes / 1024 + " KB");
+            }
+            if (accounts > 0 || accountedBytes > 0) {
+                leaks.add(accounts + " memory accounts open, " + accountedBytes / 1024 + " KB");
+            }
+            return leaks;
+        }
+
+        /*
+         * -1 where the JVM doesn't tell
+         */
+        private static long openFileDescriptors() {
+            OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            return os instanceof UnixOperatingSystemMXBean ? ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount() : -1;
+        }
+
+        @Override
+        public String toString() {
+            return "threads " + threads + ", connections " + connections + ", fds " + fileDescriptors
+                    + ", heap " + heapBytes / 1024 + " KB, accounts " + accounts + " (" + accountedBytes / 1024 + " KB)";
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multipart streams of the committed corpus, built in memory from the frames in corpus/frames
+ * with the part layouts seen on real cameras, or read from a recorded stream.
+ */
+class MjpegCorpus {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // enough frames to cycle through all the corpus frames several times
+    private static final int STREAM_FRAMES = 60;
+
+    enum Layout {
+        /**
+         * Axis style: boundary, Content-Type and Content-Length.
+         */
+        CONTENT_LENGTH,
+        /**
+         * No Content-Length, the parser scans for the end of image marker.
+         */
+        NO_CONTENT_LENGTH,
+        /**
+         * CRLF before the boundary, as in RFC 2046, and a custom timestamp header.
+         */
+        EXTRA_HEADERS
+    }
+
+    static File corpusDir() {
+        return new File(System.getProperty("mjpeg.corpus", "corpus"));
+    }
+
+    static File jpeg8dDir() {
+        return new File(System.getProperty("mjpeg.jpeg8d", "../mjpeg-view/src/main/jni/jpeg8d"));
+    }
+
+    /**
+     * @param name frames/file.jpg in the corpus, or jpeg8d/file.jpg for the test images of the library
+     */
+    static byte[] readImage(String name) throws IOException {
+        File file = name.startsWith("jpeg8d/")
+                ? new File(jpeg8dDir(), name.substring("jpeg8d/".length()))
+                : new File(corpusDir(), name);
+        return Files.readAllBytes(file.toPath());
+    }
+
+    static List<byte[]> frames() throws IOException {
+        File[] files = new File(corpusDir(), "frames").listFiles((dir, name) -> name.endsWith(".jpg"));
+        if (files == null || files.length == 0) {
+            throw new IOException("no frames in " + corpusDir() + ", see CorpusGenerator");
+        }
+        Arrays.sort(files);
+        List<byte[]> frames = new ArrayList<>();
+        for (File file : files) {
+            frames.add(Files.readAllBytes(file.toPath()));
+        }
+        return frames;
+    }
+
+    /**
+     * @param corpus name of a {@link Layout}, or path of a recorded stream
+     * @return the whole multipart stream
+     */
+    static byte[] stream(String corpus) throws IOException {
+        File recorded = new File(corpus);
+        if (recorded.isFile()) {
+            return Files.readAllBytes(recorded.toPath());
+        }
+        Layout layout = Layout.valueOf(corpus);
+        List<byte[]> frames = frames();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < STREAM_FRAMES; i++) {
+            byte[] frame = frames.get(i % frames.size());
+            String header;
+            switch (layout) {
+                case CONTENT_LENGTH:
+                    header = "--myboundary\r\nContent-Type: image/jpeg\r\nContent-Length: " + frame.length + "\r\n\r\n";
+                    break;
+                case NO_CONTENT_LENGTH:
+                    header = "--frame\r\nContent-Type: image/jpeg\r\n\r\n";
+                    break;
+                default:
+                    header = "\r\n--ipcamera\r\nContent-Type: image/jpeg\r\nContent-Length: " + frame.length
+                            + "\r\nX-Timestamp: " + (1700000000000L + i * 40L) + "\r\n\r\n";
+                    break;
+            }
+            out.write(header.getBytes(ASCII));
+            out.write(frame);
+            if (layout != Layout.EXTRA_HEADERS) {
+                out.write('\r');
+                out.write('\n');
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return number of frames the parser reads from a stream
+     */
+    static int countFrames(byte[] stream) {
+        MjpegInputStream in = new MjpegInputStream(new LoopingInputStream(stream, 1));
+        int frames = 0;
+        try {
+            while (true) {
+                in.readMjpegFrame();
+                frames++;
+            }
+        } catch (IOException endOfStream) {
+            return frames;
+        }
+    }
+
+    /**
+     * Replays a stream the given number of times, forever if negative,
+     * to measure the parser without any network or allocation of its own.
+     */
+    static class LoopingInputStream extends InputStream {
+        private final byte[] data;
+        private int loops;
+        private int position = 0;
+
+        LoopingInputStream(byte[] data, int loops) {
+            this.data = data;
+            this.loops = loops;
+        }
+
+        @Override
+        public int read() {
+            if (!rewind()) {
+                return -1;
+            }
+            return data[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            if (length == 0) {
+                return 0;
+            }
+            if (!rewind()) {
+                return -1;
+            }
+            int count = Math.min(length, data.length - position);
+            System.arraycopy(data, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return data.length - position;
+        }
+
+        private boolean rewind() {
+            if (position < data.length) {
+                return true;
+            }
+            if (loops == 1) {
+                return false;
+            }
+            if (loops > 0) {
+                loops--;
+            }
+            position = 0;
+            return true;
+        }
+    }
+}
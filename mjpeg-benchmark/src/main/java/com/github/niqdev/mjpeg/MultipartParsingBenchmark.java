@@ -0,0 +1,64 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of {@link MjpegInputStream#readMjpegFrame()} on an in-memory stream replayed forever:
+ * the primary score is in frames/s, the bytes counter in bytes/s.
+ * A recorded stream is measured with -p corpus=/path/to/recording.mjpeg
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MultipartParsingBenchmark {
+
+    @Param({"CONTENT_LENGTH", "NO_CONTENT_LENGTH", "EXTRA_HEADERS"})
+    public String corpus;
+
+    private MjpegInputStream in;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] stream = MjpegCorpus.stream(corpus);
+        if (MjpegCorpus.countFrames(stream) == 0) {
+            throw new IOException("no frame parsed in " + corpus);
+        }
+        in = new MjpegInputStream(new MjpegCorpus.LoopingInputStream(stream, -1));
+    }
+
+    @Benchmark
+    public int readMjpegFrame(Counters counters) throws IOException {
+        int length = in.readMjpegFrame();
+        counters.bytes += length;
+        return length;
+    }
+}
@@ -0,0 +1,72 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Decode time of ImageProc.c and jpeg8d built for this machine, see {@link HostImageProc}:
+ * the plain C reference, the SIMD path, the restart-marker slices on all cores
+ * and the centered quarter decoded when zoomed in twice.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class NativeDecodeBenchmark {
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    @Param({"frames/frame-00.jpg", "jpeg8d/testimg.jpg", "jpeg8d/testprog.jpg"})
+    public String image;
+
+    private byte[] jpeg;
+    private int width;
+    private int height;
+    private int[] pixels;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        jpeg = MjpegCorpus.readImage(image);
+        int[] size = new int[2];
+        if (HostImageProc.dimensions(jpeg, jpeg.length, size) != 0) {
+            throw new IOException("cannot read " + image);
+        }
+        width = size[0];
+        height = size[1];
+        pixels = new int[width * height];
+    }
+
+    @Benchmark
+    public int reference() {
+        return HostImageProc.decodeReference(jpeg, jpeg.length, pixels, width, height);
+    }
+
+    @Benchmark
+    public int simd() {
+        return HostImageProc.decode(jpeg, jpeg.length, pixels, width, height, 1);
+    }
+
+    @Benchmark
+    public int slices() {
+        return HostImageProc.decode(jpeg, jpeg.length, pixels, width, height, THREADS);
+    }
+
+    @Benchmark
+    public int zoomedRegion() {
+        return HostImageProc.decodeRegion(jpeg, jpeg.length, pixels, width / 4, height / 4, width / 2, height / 2, 1);
+    }
+}
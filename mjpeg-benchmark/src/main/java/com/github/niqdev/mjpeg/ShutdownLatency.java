@@ -0,0 +1,141 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops views stuck on a stalled camera and fails if any stop takes more than 50 ms. The
+ * {@link MjpegSimulator} sends its response headers and then stalls before every frame, so each
+ * reader is blocked in <code>readMjpegFrame()</code> when stopped. Views are stopped together the
+ * way <code>stopPlayback()</code> does it: the close and the join of the reader on a shared pool.
+ * <p>
+ * Runs on a plain JVM, the surface itself isn't exercised.
+ * <pre>
+ * ./gradlew :mjpeg-benchmark:shutdown -Pshutdown="16 20", views and rounds
+ * </pre>
+ */
+public class ShutdownLatency {
+    private static final int DEFAULT_VIEWS = 16;
+    private static final int DEFAULT_ROUNDS = 20;
+    private static final long MAX_STOP_MILLIS = 50;
+    // longer than the whole run, no frame ever arrives
+    private static final int STALL_MILLIS = 600000;
+    // for the readers to be blocked in the socket read
+    private static final long BLOCKED_MILLIS = 100;
+    // reported as a failure rather than waited for
+    private static final long GIVE_UP_MILLIS = 5000;
+
+    private final MjpegSimulator simulator;
+    private final int views;
+    private final int rounds;
+    private final ExecutorService teardown = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ShutdownLatency-teardown");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    ShutdownLatency(MjpegSimulator simulator, int views, int rounds) {
+        this.simulator = simulator;
+        this.views = views;
+        this.rounds = rounds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int views = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_VIEWS;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ROUNDS;
+        MjpegSimulator simulator = new MjpegSimulator().size(320, 180).stalls(1, STALL_MILLIS).start();
+        boolean passed;
+        try {
+            passed = new ShutdownLatency(simulator, views, rounds).run();
+        } finally {
+            simulator.close();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * @return true if every stop took less than the limit
+     */
+    boolean run() throws Exception {
+        long slowestNanos = 0;
+        int slow = 0;
+        for (int round = 0; round < rounds; round++) {
+            List<Long> stops = round();
+            long roundMax = 0;
+            for (long nanos : stops) {
+                roundMax = Math.max(roundMax, nanos);
+                if (nanos > TimeUnit.MILLISECONDS.toNanos(MAX_STOP_MILLIS)) {
+                    slow++;
+                }
+            }
+            slowestNanos = Math.max(slowestNanos, roundMax);
+            System.out.printf("round %d: %d views stopped, slowest %.1f ms%n", round + 1, stops.size(), roundMax / 1e6);
+        }
+        teardown.shutdown();
+        System.out.printf("slowest stop %.1f ms of %d, %d over %d ms%n",
+                slowestNanos / 1e6, views * rounds, slow, MAX_STOP_MILLIS);
+        boolean passed = slow == 0;
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    /*
+     * Connect the views, wait for their readers to block, stop them all at once.
+     *
+     * @return time of every stop, from the request to the reader gone
+     */
+    private List<Long> round() throws Exception {
+        List<MjpegInputStream> streams = new ArrayList<>();
+        List<Thread> readers = new ArrayList<>();
+        CountDownLatch reading = new CountDownLatch(views);
+        for (int v = 0; v < views; v++) {
+            MjpegInputStream in = new MjpegClient().connect(simulator.getUrl());
+            Thread reader = new Thread(() -> {
+                reading.countDown();
+                try {
+                    in.readMjpegFrame();
+                } catch (IOException e) {
+                    // closed
+                }
+            }, "ShutdownLatency-reader-" + v);
+            reader.start();
+            streams.add(in);
+            readers.add(reader);
+        }
+        reading.await();
+        Thread.sleep(BLOCKED_MILLIS);
+        for (Thread reader : readers) {
+            if (!reader.isAlive()) {
+                throw new IllegalStateException(reader.getName() + " got a frame from a stalled camera");
+            }
+        }
+
+        List<Future<Long>> stops = new ArrayList<>();
+        for (int v = 0; v < views; v++) {
+            MjpegInputStream in = streams.get(v);
+            Thread reader = readers.get(v);
+            long requested = System.nanoTime();
+            stops.add(teardown.submit(() -> {
+                in.close();
+                reader.join(GIVE_UP_MILLIS);
+                return System.nanoTime() - requested;
+            }));
+        }
+        List<Long> nanos = new ArrayList<>();
+        for (int v = 0; v < views; v++) {
+            long stop = stops.get(v).get();
+            if (readers.get(v).isAlive()) {
+                throw new IllegalStateException(readers.get(v).getName() + " still reading "
+                        + TimeUnit.NANOSECONDS.toMillis(stop) + " ms after close");
+            }
+            nanos.add(stop);
+        }
+        return nanos;
+    }
+}
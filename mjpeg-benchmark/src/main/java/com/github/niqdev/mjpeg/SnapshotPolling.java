@@ -0,0 +1,130 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Polls the snapshots of a local {@link MjpegSimulator} answering each one late, and fails if the
+ * requests in flight don't hide the round trip, if the request rate doesn't slow down to what a
+ * slow camera sustains, if a snapshot is played after a newer one or if more connections than
+ * requests in flight are opened.
+ * <ul>
+ * <li>at 100 ms per snapshot, 15 fps targeted: depth 1 gets one snapshot per round trip, depth 2
+ * must get at least a third more</li>
+ * <li>at 300 ms per snapshot, 30 fps targeted: the period must stretch to the response time over
+ * the depth, the frame rate stay near what the depth allows</li>
+ * </ul>
+ * The capture timestamp of every snapshot is the arrival of its request at the simulator, it
+ * must increase from one frame to the next, jitter reordering the responses.
+ * <pre>
+ * ./gradlew :mjpeg-benchmark:snapshots -Psnapshots="10", seconds per run
+ * </pre>
+ */
+public class SnapshotPolling {
+    private static final int DEFAULT_SECONDS = 10;
+    private static final int FAST_LATENCY_MILLIS = 100;
+    private static final int FAST_FPS = 15;
+    private static final int SLOW_LATENCY_MILLIS = 300;
+    private static final int SLOW_FPS = 30;
+    // on top of the latency, enough for responses to overtake each other
+    private static final int JITTER_MILLIS = 60;
+    // depth 2 over depth 1, at the fast latency
+    private static final double MIN_DEPTH_SPEEDUP = 1.33;
+    // of the frame rate the depth allows at the slow latency
+    private static final double MIN_SLOW_FPS_RATIO = 0.7;
+    private static final double MIN_PERIOD_RATIO = 0.8;
+
+    private final int seconds;
+    private boolean passed = true;
+
+    SnapshotPolling(int seconds) {
+        this.seconds = seconds;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SECONDS;
+        System.exit(new SnapshotPolling(seconds).run() ? 0 : 1);
+    }
+
+    /**
+     * @return true if every check passed
+     */
+    boolean run() throws IOException {
+        Run serial = poll(FAST_LATENCY_MILLIS, FAST_FPS, 1);
+        Run overlapped = poll(FAST_LATENCY_MILLIS, FAST_FPS, 2);
+        check(overlapped.fps >= MIN_DEPTH_SPEEDUP * serial.fps, String.format(
+                "depth 2 at %.1f fps, depth 1 at %.1f fps, at least x%.2f expected",
+                overlapped.fps, serial.fps, MIN_DEPTH_SPEEDUP));
+
+        Run slow = poll(SLOW_LATENCY_MILLIS, SLOW_FPS, 2);
+        double sustained = 2 * 1000.0 / SLOW_LATENCY_MILLIS;
+        check(slow.fps >= MIN_SLOW_FPS_RATIO * sustained && slow.fps <= 1.1 * sustained, String.format(
+                "%.1f fps at %d ms per snapshot, %.1f sustained", slow.fps, SLOW_LATENCY_MILLIS, sustained));
+        long adapted = slow.responseNanos / 2;
+        check(slow.periodNanos >= MIN_PERIOD_RATIO * adapted
+                        && slow.periodNanos > TimeUnit.SECONDS.toNanos(1) / SLOW_FPS, String.format(
+                "period %.1f ms, response %.1f ms over depth 2, target %.1f ms",
+                slow.periodNanos / 1e6, adapted / 1e6, 1000.0 / SLOW_FPS));
+
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    /*
+     * Play the snapshots of a fresh simulator for the run, checking their order as they come.
+     */
+    private Run poll(int latencyMillis, int fps, int depth) throws IOException {
+        MjpegSimulator simulator = new MjpegSimulator().size(320, 180).latency(latencyMillis)
+                .jitter(JITTER_MILLIS).start();
+        Run run = new Run();
+        try {
+            MjpegSnapshotStream snapshots = new MjpegSnapshotStream(new MjpegClient(), simulator.getSnapshotUrl(), fps, depth);
+            MjpegInputStream in = new MjpegInputStream(snapshots);
+            try {
+                // the first snapshot pays for the connections
+                in.readMjpegFrame();
+                long previous = in.getCaptureTimestamp();
+                long start = System.nanoTime();
+                long end = start + TimeUnit.SECONDS.toNanos(seconds);
+                int frames = 0;
+                int reordered = 0;
+                while (System.nanoTime() < end) {
+                    in.readMjpegFrame();
+                    frames++;
+                    long captured = in.getCaptureTimestamp();
+                    if (captured <= previous) {
+                        reordered++;
+                    }
+                    previous = captured;
+                }
+                run.fps = frames * 1e9 / (System.nanoTime() - start);
+                run.periodNanos = snapshots.getPeriodNanos();
+                run.responseNanos = snapshots.getResponseNanos();
+                check(reordered == 0, reordered + " of " + frames + " snapshots older than the one before");
+            } finally {
+                in.close();
+            }
+            int connections = simulator.getConnectionCount();
+            System.out.printf("latency %d ms, target %d fps, depth %d: %.1f fps, period %.1f ms, response %.1f ms,"
+                            + " %d connections%n", latencyMillis, fps, depth, run.fps, run.periodNanos / 1e6,
+                    run.responseNanos / 1e6, connections);
+            check(connections <= depth, connections + " connections for depth " + depth);
+        } finally {
+            simulator.close();
+        }
+        return run;
+    }
+
+    private void check(boolean condition, String failure) {
+        if (!condition) {
+            System.out.println("FAILED " + failure);
+            passed = false;
+        }
+    }
+
+    private static final class Run {
+        double fps;
+        long periodNanos;
+        long responseNanos;
+    }
+}
@@ -0,0 +1,393 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Minimal baseline jpeg encoder, YCbCr 4:2:0 with the standard Huffman tables,
+ * so that frames can be made without java.awt or android.graphics.
+ * Slow compared to libjpeg, meant for frames encoded once and sent many times.
+ */
+final class JpegEncoder {
+
+    private static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63};
+
+    private static final int[] LUMINANCE_QUANT = {
+            16, 11, 10, 16, 24, 40, 51, 61,
+            12, 12, 14, 19, 26, 58, 60, 55,
+            14, 13, 16, 24, 40, 57, 69, 56,
+            14, 17, 22, 29, 51, 87, 80, 62,
+            18, 22, 37, 56, 68, 109, 103, 77,
+            24, 35, 55, 64, 81, 104, 113, 92,
+            49, 64, 78, 87, 103, 121, 120, 101,
+            72, 92, 95, 98, 112, 100, 103, 99};
+
+    private static final int[] CHROMINANCE_QUANT = {
+            17, 18, 24, 47, 99, 99, 99, 99,
+            18, 21, 26, 66, 99, 99, 99, 99,
+            24, 26, 56, 99, 99, 99, 99, 99,
+            47, 66, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99,
+            99, 99, 99, 99, 99, 99, 99, 99};
+
+    private static final int[] BITS_DC_LUMINANCE = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] BITS_DC_CHROMINANCE = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] VAL_DC = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+
+    private static final int[] BITS_AC_LUMINANCE = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] VAL_AC_LUMINANCE = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12,
+            0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08,
+            0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16,
+            0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39,
+            0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59,
+            0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79,
+            0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98,
+            0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6,
+            0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4,
+            0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea,
+            0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+
+    private static final int[] BITS_AC_CHROMINANCE = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] VAL_AC_CHROMINANCE = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21,
+            0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91,
+            0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34,
+            0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38,
+            0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58,
+            0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78,
+            0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96,
+            0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4,
+            0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2,
+            0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9,
+            0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa};
+
+    private static final float[] COS = new float[64];
+
+    static {
+        for (int x = 0; x < 8; x++) {
+            for (int u = 0; u < 8; u++) {
+                double c = u == 0 ? Math.sqrt(0.125) : 0.5;
+                COS[u * 8 + x] = (float) (c * Math.cos((2 * x + 1) * u * Math.PI / 16));
+            }
+        }
+    }
+
+    private final byte[] quantTables;
+    private final int[] luminanceQuant = new int[64];
+    private final int[] chrominanceQuant = new int[64];
+    private final int[][] dcLuminance = huffmanCodes(BITS_DC_LUMINANCE, VAL_DC);
+    private final int[][] dcChrominance = huffmanCodes(BITS_DC_CHROMINANCE, VAL_DC);
+    private final int[][] acLuminance = huffmanCodes(BITS_AC_LUMINANCE, VAL_AC_LUMINANCE);
+    private final int[][] acChrominance = huffmanCodes(BITS_AC_CHROMINANCE, VAL_AC_CHROMINANCE);
+
+    private final float[] block = new float[64];
+    private final float[] tmp = new float[64];
+    private final int[] coefficients = new int[64];
+
+    private ByteArrayOutputStream out;
+    private int bitBuffer;
+    private int bitCount;
+
+    /**
+     * @param quality 1..100, as for libjpeg
+     */
+    JpegEncoder(int quality) {
+        quantTables = quantTables(quality);
+        for (int k = 0; k < 64; k++) {
+            luminanceQuant[ZIGZAG[k]] = quantTables[k] & 0xFF;
+            chrominanceQuant[ZIGZAG[k]] = quantTables[64 + k] & 0xFF;
+        }
+    }
+
+    /**
+     * The standard tables scaled as libjpeg does, which is also how RFC 2435 defines
+     * the tables of an RTP/JPEG quality factor from 1 to 99.
+     *
+     * @param quality 1..100
+     * @return luminance then chrominance table, 64 bytes each in zigzag order
+     */
+    static byte[] quantTables(int quality) {
+        quality = Math.max(1, Math.min(100, quality));
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        byte[] tables = new byte[128];
+        for (int k = 0; k < 64; k++) {
+            tables[k] = (byte) Math.max(1, Math.min(255, (LUMINANCE_QUANT[ZIGZAG[k]] * scale + 50) / 100));
+            tables[64 + k] = (byte) Math.max(1, Math.min(255, (CHROMINANCE_QUANT[ZIGZAG[k]] * scale + 50) / 100));
+        }
+        return tables;
+    }
+
+    /**
+     * Write the headers of a baseline YCbCr jpeg with the standard Huffman tables, up to the
+     * start of scan: all the headers of a frame of an RTP/JPEG stream.
+     *
+     * @param quant           luminance then chrominance table, 64 bytes each in zigzag order
+     * @param lumaSampling    0x22 for 4:2:0, 0x21 for 4:2:2
+     * @param restartInterval MCUs between restart markers, 0 for none
+     */
+    static void writeHeaders(ByteArrayOutputStream out, int width, int height, byte[] quant,
+                             int lumaSampling, int restartInterval) {
+        writeMarker(out, 0xD8);
+        writeQuantTable(out, 0, quant, 0);
+        writeQuantTable(out, 1, quant, 64);
+        writeFrameHeader(out, width, height, lumaSampling);
+        writeHuffmanTable(out, 0x00, BITS_DC_LUMINANCE, VAL_DC);
+        writeHuffmanTable(out, 0x10, BITS_AC_LUMINANCE, VAL_AC_LUMINANCE);
+        writeHuffmanTable(out, 0x01, BITS_DC_CHROMINANCE, VAL_DC);
+        writeHuffmanTable(out, 0x11, BITS_AC_CHROMINANCE, VAL_AC_CHROMINANCE);
+        if (restartInterval > 0) {
+            writeMarker(out, 0xDD);
+            writeShort(out, 4);
+            writeShort(out, restartInterval);
+        }
+        writeScanHeader(out);
+    }
+
+    /**
+     * @param argb   pixels, row by row
+     * @param width  of the image
+     * @param height of the image
+     * @return the jpeg
+     */
+    byte[] encode(int[] argb, int width, int height) {
+        out = new ByteArrayOutputStream(width * height / 4);
+        bitBuffer = 0;
+        bitCount = 0;
+
+        writeHeaders(out, width, height, quantTables, 0x22, 0);
+
+        int[] dc = new int[3];
+        for (int my = 0; my < height; my += 16) {
+            for (int mx = 0; mx < width; mx += 16) {
+                for (int i = 0; i < 4; i++) {
+                    loadLuminance(argb, width, height, mx + (i & 1) * 8, my + (i >> 1) * 8);
+                    dc[0] = encodeBlock(dc[0], luminanceQuant, dcLuminance, acLuminance);
+                }
+                loadChrominance(argb, width, height, mx, my, true);
+                dc[1] = encodeBlock(dc[1], chrominanceQuant, dcChrominance, acChrominance);
+                loadChrominance(argb, width, height, mx, my, false);
+                dc[2] = encodeBlock(dc[2], chrominanceQuant, dcChrominance, acChrominance);
+            }
+        }
+        // pad the last byte with 1 bits
+        writeBits(0x7F, 7);
+        writeMarker(out, 0xD9);
+        byte[] jpeg = out.toByteArray();
+        out = null;
+        return jpeg;
+    }
+
+    private void loadLuminance(int[] argb, int width, int height, int x0, int y0) {
+        for (int y = 0; y < 8; y++) {
+            int row = Math.min(y0 + y, height - 1) * width;
+            for (int x = 0; x < 8; x++) {
+                int c = argb[row + Math.min(x0 + x, width - 1)];
+                int r = (c >> 16) & 0xFF, g = (c >> 8) & 0xFF, b = c & 0xFF;
+                block[y * 8 + x] = 0.299f * r + 0.587f * g + 0.114f * b - 128f;
+            }
+        }
+    }
+
+    /*
+     * Average of 2x2 pixels, for the Cb or Cr block of a 16x16 MCU.
+     */
+    private void loadChrominance(int[] argb, int width, int height, int x0, int y0, boolean blue) {
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                float sum = 0;
+                for (int i = 0; i < 4; i++) {
+                    int py = Math.min(y0 + y * 2 + (i >> 1), height - 1);
+                    int px = Math.min(x0 + x * 2 + (i & 1), width - 1);
+                    int c = argb[py * width + px];
+                    int r = (c >> 16) & 0xFF, g = (c >> 8) & 0xFF, b = c & 0xFF;
+                    sum += blue
+                            ? -0.168736f * r - 0.331264f * g + 0.5f * b
+                            : 0.5f * r - 0.418688f * g - 0.081312f * b;
+                }
+                block[y * 8 + x] = sum / 4;
+            }
+        }
+    }
+
+    private int encodeBlock(int previousDc, int[] quant, int[][] dcCodes, int[][] acCodes) {
+        // separable 2D DCT: rows into tmp, then columns
+        for (int y = 0; y < 8; y++) {
+            for (int u = 0; u < 8; u++) {
+                float s = 0;
+                for (int x = 0; x < 8; x++) {
+                    s += COS[u * 8 + x] * block[y * 8 + x];
+                }
+                tmp[y * 8 + u] = s;
+            }
+        }
+        for (int u = 0; u < 8; u++) {
+            for (int v = 0; v < 8; v++) {
+                float s = 0;
+                for (int y = 0; y < 8; y++) {
+                    s += COS[v * 8 + y] * tmp[y * 8 + u];
+                }
+                coefficients[v * 8 + u] = Math.round(s / quant[v * 8 + u]);
+            }
+        }
+
+        int dc = coefficients[0];
+        writeCoefficient(dcCodes, 0, dc - previousDc);
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int value = coefficients[ZIGZAG[k]];
+            if (value == 0) {
+                run++;
+                continue;
+            }
+            while (run > 15) {
+                writeBits(acCodes[0][0xF0], acCodes[1][0xF0]);
+                run -= 16;
+            }
+            writeCoefficient(acCodes, run << 4, value);
+            run = 0;
+        }
+        if (run > 0) {
+            writeBits(acCodes[0][0x00], acCodes[1][0x00]);
+        }
+        return dc;
+    }
+
+    private void writeCoefficient(int[][] codes, int symbol, int value) {
+        int magnitude = Math.abs(value);
+        int size = 0;
+        while (magnitude > 0) {
+            size++;
+            magnitude >>= 1;
+        }
+        writeBits(codes[0][symbol | size], codes[1][symbol | size]);
+        if (size > 0) {
+            writeBits(value < 0 ? value - 1 : value, size);
+        }
+    }
+
+    private void writeBits(int bits, int length) {
+        bitBuffer = (bitBuffer << length) | (bits & ((1 << length) - 1));
+        bitCount += length;
+        while (bitCount >= 8) {
+            int b = (bitBuffer >> (bitCount - 8)) & 0xFF;
+            out.write(b);
+            if (b == 0xFF) {
+                // byte stuffing
+                out.write(0);
+            }
+            bitCount -= 8;
+        }
+    }
+
+    private static void writeMarker(ByteArrayOutputStream out, int marker) {
+        out.write(0xFF);
+        out.write(marker);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value & 0xFF);
+    }
+
+    private static void writeQuantTable(ByteArrayOutputStream out, int id, byte[] quant, int offset) {
+        writeMarker(out, 0xDB);
+        writeShort(out, 67);
+        out.write(id);
+        out.write(quant, offset, 64);
+    }
+
+    private static void writeFrameHeader(ByteArrayOutputStream out, int width, int height, int lumaSampling) {
+        writeMarker(out, 0xC0);
+        writeShort(out, 17);
+        out.write(8);
+        writeShort(out, height);
+        writeShort(out, width);
+        out.write(3);
+        // Y sampled 2x2 or 2x1, Cb and Cr 1x1
+        out.write(1);
+        out.write(lumaSampling);
+        out.write(0);
+        out.write(2);
+        out.write(0x11);
+        out.write(1);
+        out.write(3);
+        out.write(0x11);
+        out.write(1);
+    }
+
+    private static void writeHuffmanTable(ByteArrayOutputStream out, int id, int[] bits, int[] values) {
+        writeMarker(out, 0xC4);
+        writeShort(out, 3 + 16 + values.length);
+        out.write(id);
+        for (int b : bits) {
+            out.write(b);
+        }
+        for (int v : values) {
+            out.write(v);
+        }
+    }
+
+    private static void writeScanHeader(ByteArrayOutputStream out) {
+        writeMarker(out, 0xDA);
+        writeShort(out, 12);
+        out.write(3);
+        out.write(1);
+        out.write(0x00);
+        out.write(2);
+        out.write(0x11);
+        out.write(3);
+        out.write(0x11);
+        out.write(0);
+        out.write(63);
+        out.write(0);
+    }
+
+    /*
+     * Canonical Huffman codes of a table: [0][symbol] the code, [1][symbol] its length.
+     */
+    private static int[][] huffmanCodes(int[] bits, int[] values) {
+        int[][] codes = new int[2][256];
+        int code = 0;
+        int k = 0;
+        for (int length = 1; length <= 16; length++) {
+            for (int i = 0; i < bits[length - 1]; i++) {
+                codes[0][values[k]] = code;
+                codes[1][values[k]] = length;
+                code++;
+                k++;
+            }
+            code <<= 1;
+        }
+        return codes;
+    }
+}
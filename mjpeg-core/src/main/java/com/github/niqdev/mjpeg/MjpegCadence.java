@@ -0,0 +1,77 @@
+package com.github.niqdev.mjpeg;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frame period and interarrival jitter of a stream, estimated as in RFC 3550 from the arrival
+ * times and the capture timestamps of the frames, or from the arrivals only when the camera
+ * sends no timestamp. Updated by a single thread, read by any.
+ */
+final class MjpegCadence {
+    private static final int GAIN = 16;
+    // an arrival this many periods after the previous one is a stall of the camera, not jitter
+    private static final int GAP_PERIODS = 4;
+
+    private boolean started = false;
+    private boolean captured;
+    private long lastArrivalNanos;
+    private long lastSourceNanos;
+    private volatile long periodNanos = 0;
+    private volatile long jitterNanos = 0;
+
+    /**
+     * @param arrivalNanos     {@link System#nanoTime()} when the frame was received
+     * @param captureTimestamp capture time in milliseconds since the epoch, -1 if unknown
+     * @return time of the frame at the source, in nanoseconds: on the clock of the camera,
+     * or following the estimated period without a capture timestamp
+     */
+    long update(long arrivalNanos, long captureTimestamp) {
+        boolean hasCapture = captureTimestamp >= 0;
+        if (!started || hasCapture != captured) {
+            started = true;
+            captured = hasCapture;
+            lastArrivalNanos = arrivalNanos;
+            lastSourceNanos = hasCapture ? TimeUnit.MILLISECONDS.toNanos(captureTimestamp) : arrivalNanos;
+            return lastSourceNanos;
+        }
+        long interarrival = arrivalNanos - lastArrivalNanos;
+        long period = periodNanos;
+        long source;
+        if (hasCapture) {
+            source = TimeUnit.MILLISECONDS.toNanos(captureTimestamp);
+            long delta = source - lastSourceNanos;
+            if (delta > 0) {
+                period = period == 0 ? delta : period + (delta - period) / GAIN;
+            }
+        } else if (period == 0 || interarrival > GAP_PERIODS * period) {
+            // second frame or a stall: the source moved on as much as the arrivals
+            source = lastSourceNanos + interarrival;
+            if (period == 0) {
+                period = interarrival;
+            }
+        } else {
+            source = lastSourceNanos + period;
+            period += (Math.max(period / GAP_PERIODS, interarrival) - period) / GAIN;
+        }
+        long deviation = Math.abs(interarrival - (source - lastSourceNanos));
+        jitterNanos += (deviation - jitterNanos) / GAIN;
+        periodNanos = period;
+        lastArrivalNanos = arrivalNanos;
+        lastSourceNanos = source;
+        return source;
+    }
+
+    /**
+     * @return estimated time between frames at the source, 0 until two frames are received
+     */
+    long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * @return smoothed deviation of the arrivals from the source cadence
+     */
+    long getJitterNanos() {
+        return jitterNanos;
+    }
+}
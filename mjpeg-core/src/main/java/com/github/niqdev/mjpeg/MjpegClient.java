@@ -0,0 +1,295 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.Authenticator;
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.HttpURLConnection;
+import java.net.PasswordAuthentication;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+/**
+ * Connects to Mjpeg streams over HTTP, with no dependency on Android:
+ * the same client runs in an app or headless on a plain JVM.
+ */
+public class MjpegClient {
+
+    private static final CookieManager msCookieManager = new CookieManager();
+    private boolean sendConnectionCloseHeader = false;
+    private MjpegMetrics metrics;
+
+    public MjpegClient() {
+    }
+
+    /**
+     * Configure authentication.
+     *
+     * @param username credential
+     * @param password credential
+     * @return MjpegClient instance
+     */
+    public MjpegClient credential(String username, String password) {
+        if (!isEmpty(username) && !isEmpty(password)) {
+            Authenticator.setDefault(new Authenticator() {
+                protected PasswordAuthentication getPasswordAuthentication() {
+                    return new PasswordAuthentication(username, password.toCharArray());
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Configure cookies.
+     *
+     * @param cookie cookie string
+     * @return MjpegClient instance
+     */
+    public MjpegClient addCookie(String cookie) {
+        if (!isEmpty(cookie)) {
+            msCookieManager.getCookieStore().add(null, HttpCookie.parse(cookie).get(0));
+        }
+        return this;
+    }
+
+    /**
+     * Send a "Connection: close" header to fix
+     * <code>java.net.ProtocolException: Unexpected status line</code>
+     *
+     * @return MjpegClient instance
+     */
+    public MjpegClient sendConnectionCloseHeader() {
+        sendConnectionCloseHeader = true;
+        return this;
+    }
+
+    /**
+     * Record all the connections of this client in the same metrics, e.g. those of a camera,
+     * instead of new metrics for every stream.
+     *
+     * @param metrics of the streams opened from now on
+     * @return MjpegClient instance
+     */
+    public MjpegClient metrics(MjpegMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Connect to a Mjpeg stream, blocking until the response headers are received.
+     *
+     * @param url source
+     * @return the stream
+     * @throws IOException if the connection fails
+     */
+    public MjpegInputStream connect(String url) throws IOException {
+        return connect(url, 0);
+    }
+
+    /*
+     * Connect, failing with a SocketTimeoutException if connecting, or any read, takes longer
+     * than timeoutMillis, 0 for no timeout.
+     */
+    MjpegInputStream connect(String url, int timeoutMillis) throws IOException {
+        MjpegMetrics streamMetrics = metrics != null ? metrics : new MjpegMetrics();
+        streamMetrics.onConnecting();
+        HttpURLConnection urlConnection = openConnection(url);
+        urlConnection.setConnectTimeout(timeoutMillis);
+        urlConnection.setReadTimeout(timeoutMillis);
+        InputStream inputStream = urlConnection.getInputStream();
+        MjpegInputStream stream = new MjpegInputStream(inputStream, streamMetrics);
+        stream.setUrl(url);
+        // closing the socket aborts a blocked read, closing the body stream may wait for it
+        stream.setConnection(urlConnection::disconnect);
+        return stream;
+    }
+
+    /**
+     * Poll the still image of a camera without Mjpeg, e.g. <code>snapshot.jpg</code>, and play its
+     * snapshots as a Mjpeg stream. Requests overlap, on keep-alive connections, and slow down to
+     * what the camera sustains.
+     *
+     * @param url   of the still image
+     * @param fps   target frame rate
+     * @param depth requests in flight at most, 2 is usually enough to hide the round trip
+     * @return the stream, polling until closed
+     */
+    public MjpegInputStream connectSnapshots(String url, int fps, int depth) {
+        MjpegMetrics streamMetrics = metrics != null ? metrics : new MjpegMetrics();
+        streamMetrics.onConnecting();
+        MjpegSnapshotStream snapshots = new MjpegSnapshotStream(this, url, fps, depth);
+        MjpegInputStream stream = new MjpegInputStream(snapshots, streamMetrics);
+        stream.setUrl(url);
+        stream.setConnection(snapshots);
+        return stream;
+    }
+
+    /**
+     * Poll the still image of a camera without Mjpeg, two requests in flight.
+     *
+     * @param url source
+     * @param fps target frame rate
+     * @return Observable Mjpeg stream
+     * @see #connectSnapshots(String, int, int)
+     */
+    public Observable<MjpegInputStream> openSnapshots(String url, int fps) {
+        return Observable.fromCallable(() -> connectSnapshots(url, fps, MjpegSnapshotStream.DEFAULT_DEPTH))
+                .subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Play the JPEG video track of an RTSP camera (RTP/JPEG, RFC 2435) as a Mjpeg stream, blocking
+     * until the camera answers PLAY. Credentials in the url, or those of {@link #credential(String, String)},
+     * answer Basic or Digest authentication.
+     *
+     * @param url         <code>rtsp://[user:password@]host[:port]/path</code>
+     * @param interleaved true to receive the packets in the RTSP connection, which passes NAT and firewalls,
+     *                    false for UDP, with less latency on a lossy network
+     * @return the stream, playing until closed
+     * @throws IOException if the connection, or the session setup, fails
+     */
+    public MjpegInputStream connectRtsp(String url, boolean interleaved) throws IOException {
+        MjpegMetrics streamMetrics = metrics != null ? metrics : new MjpegMetrics();
+        streamMetrics.onConnecting();
+        MjpegRtspStream rtsp = new MjpegRtspStream(url, interleaved, streamMetrics);
+        MjpegInputStream stream = new MjpegInputStream(rtsp, streamMetrics);
+        stream.setUrl(url);
+        stream.setConnection(rtsp);
+        return stream;
+    }
+
+    /**
+     * Play the JPEG video track of an RTSP camera on an io thread, over UDP.
+     *
+     * @param url source
+     * @return Observable Mjpeg stream
+     * @see #connectRtsp(String, boolean)
+     */
+    public Observable<MjpegInputStream> openRtsp(String url) {
+        return Observable.fromCallable(() -> connectRtsp(url, false))
+                .subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Connect to a Mjpeg stream on an io thread.
+     *
+     * @param url source
+     * @return Observable Mjpeg stream
+     */
+    public Observable<MjpegInputStream> open(String url) {
+        return Observable.fromCallable(() -> connect(url))
+                .subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Connect to a Mjpeg stream on an io thread.
+     *
+     * @param url     source
+     * @param timeout in seconds
+     * @return Observable Mjpeg stream
+     */
+    public Observable<MjpegInputStream> open(String url, int timeout) {
+        return Observable.defer(() -> {
+            // a connection completing after the timeout has no subscriber left to close it
+            AtomicBoolean abandoned = new AtomicBoolean(false);
+            return Observable.fromCallable(() -> {
+                MjpegInputStream stream = connect(url);
+                if (abandoned.get()) {
+                    closeQuietly(stream);
+                    throw new InterruptedIOException("connected after the timeout");
+                }
+                return stream;
+            })
+                    .doOnUnsubscribe(() -> abandoned.set(true))
+                    .timeout(timeout, TimeUnit.SECONDS);
+        })
+                .subscribeOn(Schedulers.io());
+    }
+
+    /**
+     * Connect to a Mjpeg stream and emit its frames, read on an io thread and observed on it too.
+     * The connection is closed on unsubscribe.
+     *
+     * @param url          source
+     * @param backpressure what to do with frames read ahead of the requests
+     * @param bufferSize   frames queued with {@link MjpegFrame.Backpressure#BUFFER}
+     * @return Observable of frames, each one must be released
+     * @see MjpegInputStream#frames(MjpegFrame.Backpressure, int)
+     */
+    public Observable<MjpegFrame> openFrames(String url, MjpegFrame.Backpressure backpressure, int bufferSize) {
+        return open(url)
+                .concatMap(inputStream -> {
+                    // the read aborted by closing on unsubscribe may fail before the reader sees it unsubscribed
+                    AtomicBoolean closed = new AtomicBoolean(false);
+                    return inputStream.frames(backpressure, bufferSize)
+                            .onErrorResumeNext(throwable -> closed.get() ? Observable.empty() : Observable.error(throwable))
+                            .doOnUnsubscribe(() -> {
+                                closed.set(true);
+                                closeQuietly(inputStream);
+                            });
+                });
+    }
+
+    /**
+     * Connect to a Mjpeg stream and emit always its latest frame.
+     *
+     * @param url source
+     * @return Observable of frames, each one must be released
+     */
+    public Observable<MjpegFrame> openFrames(String url) {
+        return openFrames(url, MjpegFrame.Backpressure.LATEST, 1);
+    }
+
+    private static void closeQuietly(MjpegInputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException ignored) {
+            // nothing left to read from it anyway
+        }
+    }
+
+    /*
+     * A connection with the request properties and the cookies of this client, not yet connected.
+     */
+    HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        loadConnectionProperties(urlConnection);
+        return urlConnection;
+    }
+
+    /**
+     * Configure request properties
+     *
+     * @param urlConnection the url connection to add properties and cookies to
+     */
+    private void loadConnectionProperties(HttpURLConnection urlConnection) {
+        urlConnection.setRequestProperty("Cache-Control", "no-cache");
+        if (sendConnectionCloseHeader) {
+            urlConnection.setRequestProperty("Connection", "close");
+        }
+
+        List<HttpCookie> cookies = msCookieManager.getCookieStore().getCookies();
+        if (!cookies.isEmpty()) {
+            StringBuilder header = new StringBuilder();
+            for (HttpCookie cookie : cookies) {
+                if (header.length() > 0) {
+                    header.append(';');
+                }
+                header.append(cookie);
+            }
+            urlConnection.setRequestProperty("Cookie", header.toString());
+        }
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.isEmpty();
+    }
+}
@@ -0,0 +1,202 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A frame read from a Mjpeg stream: the JPEG bytes, the headers of its multipart part and
+ * when it was received.
+ * <p>
+ * Frames are leased from a pool: call {@link #release()} once done with it, or {@link #retain()}
+ * before handing it to one more consumer, so that its buffers are reused by the next frames.
+ * A released frame must not be read anymore.
+ */
+public final class MjpegFrame {
+
+    /**
+     * What to do with the frames read while the subscriber has not requested any.
+     */
+    public enum Backpressure {
+        /**
+         * Keep only the most recent frame, released frames in between are dropped.
+         */
+        LATEST,
+        /**
+         * Drop every frame arriving without a pending request.
+         */
+        DROP,
+        /**
+         * Queue up to the buffer size, then stop reading the stream until more frames are requested.
+         */
+        BUFFER
+    }
+
+    private final MjpegFramePool pool;
+    private final AtomicInteger references = new AtomicInteger();
+    byte[] data;
+    byte[] header;
+    private int length;
+    private int headerLength;
+    private long sequenceNumber;
+    private long timestamp;
+    private long receivedNanos;
+    private long captureTimestamp;
+    private boolean duplicate;
+    private Map<String, String> headers;
+
+    MjpegFrame(MjpegFramePool pool, byte[] data, byte[] header) {
+        this.pool = pool;
+        this.data = data;
+        this.header = header;
+    }
+
+    void set(byte[] data, int length, byte[] header, int headerLength,
+             long sequenceNumber, long timestamp, long receivedNanos, long captureTimestamp, boolean duplicate) {
+        this.data = data;
+        this.length = length;
+        this.header = header;
+        this.headerLength = headerLength;
+        this.sequenceNumber = sequenceNumber;
+        this.timestamp = timestamp;
+        this.receivedNanos = receivedNanos;
+        this.captureTimestamp = captureTimestamp;
+        this.duplicate = duplicate;
+        this.headers = null;
+        references.set(1);
+    }
+
+    /**
+     * @return the backing array, holding the JPEG in its first {@link #getLength()} bytes. Must not be modified.
+     */
+    public byte[] getBytes() {
+        checkNotReleased();
+        return data;
+    }
+
+    /**
+     * @return size of the JPEG in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return a copy of the JPEG
+     */
+    public byte[] toByteArray() {
+        checkNotReleased();
+        byte[] copy = new byte[length];
+        System.arraycopy(data, 0, copy, 0, length);
+        return copy;
+    }
+
+    public InputStream getInputStream() {
+        checkNotReleased();
+        return new ByteArrayInputStream(data, 0, length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        checkNotReleased();
+        out.write(data, 0, length);
+    }
+
+    /**
+     * Parsed on first access.
+     *
+     * @return headers of the multipart part, case-insensitive names
+     */
+    public Map<String, String> getHeaders() {
+        checkNotReleased();
+        if (headers == null) {
+            headers = Collections.unmodifiableMap(parseHeaders(header, headerLength));
+        }
+        return headers;
+    }
+
+    /**
+     * @param name case-insensitive header name
+     * @return value of the header in the multipart part, or null
+     */
+    public String getHeader(String name) {
+        return getHeaders().get(name);
+    }
+
+    /**
+     * @return position of the frame in the stream, from 1
+     */
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    /**
+     * @return wall-clock time the frame was received, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the frame was received, to measure latencies
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * @return capture time given by the camera, in milliseconds since the epoch, -1 if unknown
+     * @see MjpegInputStream#getCaptureTimestamp()
+     */
+    public long getCaptureTimestamp() {
+        return captureTimestamp;
+    }
+
+    /**
+     * @return true if the frame decodes to the same image as the previous one of the stream
+     * @see MjpegInputStream#isDuplicateFrame()
+     */
+    public boolean isDuplicate() {
+        return duplicate;
+    }
+
+    /**
+     * Add a reference, each one needs its own {@link #release()}.
+     *
+     * @return this frame
+     */
+    public MjpegFrame retain() {
+        checkNotReleased();
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drop a reference, the last one gives the buffers back to the pool.
+     */
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left == 0) {
+            pool.recycle(this);
+        } else if (left < 0) {
+            references.incrementAndGet();
+            throw new IllegalStateException("frame already released");
+        }
+    }
+
+    private void checkNotReleased() {
+        if (references.get() <= 0) {
+            throw new IllegalStateException("frame already released");
+        }
+    }
+
+    private static Map<String, String> parseHeaders(byte[] header, int length) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        MjpegHeaders.parse(header, length, headers);
+        return headers;
+    }
+}
@@ -0,0 +1,86 @@
+package com.github.niqdev.mjpeg;
+
+import java.util.ArrayDeque;
+
+/**
+ * Recycles released frames with their buffers, so that a steady stream allocates nothing.
+ * Frames beyond the pool size are left to the garbage collector, as are all of them under
+ * memory pressure.
+ */
+class MjpegFramePool {
+    private final int frameLength;
+    private final int headerLength;
+    private final int maxSize;
+    private final MjpegMemoryBudget.Account account;
+    private final ArrayDeque<MjpegFrame> frames;
+    private final MjpegMemoryBudget.Listener trimListener = pressure -> clear();
+    private boolean closed = false;
+
+    MjpegFramePool(int frameLength, int headerLength, int maxSize, MjpegMemoryBudget.Account account) {
+        this.frameLength = frameLength;
+        this.headerLength = headerLength;
+        this.maxSize = maxSize;
+        this.account = account;
+        this.frames = new ArrayDeque<>(maxSize);
+        account.addListener(trimListener);
+    }
+
+    /**
+     * @return a released frame, or a new one, holding spare buffers of the pool sizes
+     */
+    MjpegFrame lease() {
+        MjpegFrame frame;
+        synchronized (frames) {
+            frame = frames.pollFirst();
+        }
+        if (frame == null) {
+            frame = new MjpegFrame(this, new byte[frameLength], new byte[headerLength]);
+            account.allocate(sizeOf(frame));
+        }
+        return frame;
+    }
+
+    void recycle(MjpegFrame frame) {
+        if (MjpegMemoryBudget.getInstance().getPressure() == MjpegMemoryBudget.Pressure.NONE) {
+            synchronized (frames) {
+                if (!closed && frames.size() < maxSize) {
+                    frames.addFirst(frame);
+                    return;
+                }
+            }
+        }
+        account.free(sizeOf(frame));
+    }
+
+    /**
+     * Stop listening to the memory account and drop the spare frames, once the reader leasing
+     * them is done: the frames still leased are freed as they are released.
+     */
+    void close() {
+        account.removeListener(trimListener);
+        synchronized (frames) {
+            closed = true;
+        }
+        clear();
+    }
+
+    /*
+     * Drop the spare frames.
+     */
+    private void clear() {
+        MjpegFrame frame;
+        while (true) {
+            synchronized (frames) {
+                frame = frames.pollFirst();
+            }
+            if (frame == null) {
+                return;
+            }
+            account.free(sizeOf(frame));
+        }
+    }
+
+    private static long sizeOf(MjpegFrame frame) {
+        return frame.data.length + frame.header.length;
+    }
+}
@@ -0,0 +1,15 @@
+package com.github.niqdev.mjpeg;
+
+/**
+ * Sees every new frame read from a {@link MjpegInputStream}, before any decoding.
+ */
+public interface MjpegFrameProcessor {
+
+    /**
+     * Called on the thread reading the stream, the frame buffer is reused once it returns.
+     *
+     * @param frame  buffer holding the JPEG
+     * @param length size of the JPEG in bytes
+     */
+    void process(byte[] frame, int length);
+}
@@ -0,0 +1,181 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import rx.Producer;
+import rx.Subscriber;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Reads frames on the subscribing thread and emits them as they are requested.
+ * <p>
+ * Frames read ahead of the requests are queued, and dropped or held back according to the
+ * {@link MjpegFrame.Backpressure} strategy. Every frame dropped here, or still queued on
+ * unsubscribe, is released.
+ */
+class MjpegFrameProducer implements Producer {
+    private final Subscriber<? super MjpegFrame> child;
+    private final MjpegFrame.Backpressure backpressure;
+    private final int bufferSize;
+    // guarded by this
+    private final ArrayDeque<MjpegFrame> queue;
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile boolean done;
+    private volatile Throwable error;
+    private MjpegMetrics metrics;
+
+    MjpegFrameProducer(Subscriber<? super MjpegFrame> child, MjpegFrame.Backpressure backpressure, int bufferSize) {
+        this.child = child;
+        this.backpressure = backpressure;
+        this.bufferSize = Math.max(1, bufferSize);
+        this.queue = new ArrayDeque<>(this.bufferSize + 1);
+    }
+
+    /**
+     * Read from the stream until unsubscribed or the stream ends.
+     */
+    void run(MjpegInputStream in, MjpegFramePool pool) {
+        child.add(Subscriptions.create(this::cancel));
+        child.setProducer(this);
+        metrics = in.getMetrics();
+        try {
+            while (!child.isUnsubscribed()) {
+                offer(in.readFrame(pool));
+            }
+        } catch (EOFException e) {
+            done = true;
+            drain();
+        } catch (IOException e) {
+            error = e;
+            done = true;
+            drain();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void request(long n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("n >= 0 required but it was " + n);
+        }
+        if (n == 0) {
+            return;
+        }
+        long current;
+        long next;
+        do {
+            current = requested.get();
+            next = current + n < 0 ? Long.MAX_VALUE : current + n;
+        } while (!requested.compareAndSet(current, next));
+        synchronized (this) {
+            notifyAll();
+        }
+        drain();
+    }
+
+    private void offer(MjpegFrame frame) throws InterruptedException {
+        synchronized (this) {
+            switch (backpressure) {
+                case LATEST:
+                    if (queue.size() > requested.get()) {
+                        queue.pollLast().release();
+                        metrics.onFrameDropped();
+                    }
+                    break;
+                case DROP:
+                    if (queue.size() >= requested.get()) {
+                        frame.release();
+                        metrics.onFrameDropped();
+                        return;
+                    }
+                    break;
+                case BUFFER:
+                    while (queue.size() >= Math.min(Long.MAX_VALUE - bufferSize, requested.get()) + bufferSize) {
+                        if (child.isUnsubscribed()) {
+                            frame.release();
+                            return;
+                        }
+                        wait();
+                    }
+                    break;
+            }
+            queue.addLast(frame);
+        }
+        drain();
+    }
+
+    /*
+     * Serialized emission loop, whichever thread gets in first emits for the others.
+     */
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        int missed = 1;
+        for (; ; ) {
+            long r = requested.get();
+            long emitted = 0;
+            while (emitted != r) {
+                if (child.isUnsubscribed()) {
+                    clear();
+                    return;
+                }
+                if (error != null) {
+                    clear();
+                    child.onError(error);
+                    return;
+                }
+                MjpegFrame frame;
+                synchronized (this) {
+                    frame = queue.pollFirst();
+                    notifyAll();
+                }
+                if (frame == null) {
+                    break;
+                }
+                child.onNext(frame);
+                emitted++;
+            }
+            if (done && !child.isUnsubscribed()) {
+                boolean empty;
+                synchronized (this) {
+                    empty = queue.isEmpty();
+                }
+                if (error != null) {
+                    clear();
+                    child.onError(error);
+                    return;
+                }
+                if (empty) {
+                    child.onCompleted();
+                    return;
+                }
+            }
+            if (emitted != 0 && r != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+            missed = wip.addAndGet(-missed);
+            if (missed == 0) {
+                break;
+            }
+        }
+    }
+
+    private void cancel() {
+        clear();
+    }
+
+    private synchronized void clear() {
+        MjpegFrame frame;
+        while ((frame = queue.pollFirst()) != null) {
+            frame.release();
+        }
+        notifyAll();
+    }
+}
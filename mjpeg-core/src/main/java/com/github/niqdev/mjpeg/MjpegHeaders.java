@@ -0,0 +1,223 @@
+package com.github.niqdev.mjpeg;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Tokenizer of the headers of a multipart part, working in place on the bytes read:
+ * looking up a header allocates nothing, whatever the length of the headers.
+ * Names are matched case-insensitively, values are trimmed.
+ */
+final class MjpegHeaders {
+
+    static final byte[] CONTENT_LENGTH = lowerCase("Content-Length");
+    static final byte[] X_TIMESTAMP = lowerCase("X-Timestamp");
+    // prefix of a comment segment with the capture time, as written by MjpegSimulator
+    static final String TIMESTAMP_COMMENT = "MjpegSimulator ts=";
+
+    private static final byte[] TIMESTAMP_PREFIX = TIMESTAMP_COMMENT.getBytes(StandardCharsets.US_ASCII);
+
+    // after this, an integer timestamp is in milliseconds rather than in seconds: year 5138 in seconds
+    private static final long MAX_SECONDS = 99999999999L;
+
+    private MjpegHeaders() {
+    }
+
+    /**
+     * @param name lower case, letters, digits and dashes only
+     * @return offset of the trimmed value of the first header with that name, -1 if absent
+     */
+    static int valueOffset(byte[] header, int length, byte[] name) {
+        int line = 0;
+        while (line < length) {
+            int end = lineEnd(header, line, length);
+            int colon = line + name.length;
+            if (colon < end && matchesName(header, line, name)) {
+                while (colon < end && isSpace(header[colon])) {
+                    colon++;
+                }
+                if (colon < end && header[colon] == ':') {
+                    int value = colon + 1;
+                    while (value < end && isSpace(header[value])) {
+                        value++;
+                    }
+                    return value;
+                }
+            }
+            line = end + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @return end, exclusive, of the trimmed value starting at offset
+     */
+    static int valueEnd(byte[] header, int offset, int length) {
+        int end = lineEnd(header, offset, length);
+        while (end > offset && isSpace(header[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * @return value of Content-Length, -1 if absent or not a number
+     */
+    static int contentLength(byte[] header, int length) {
+        int offset = valueOffset(header, length, CONTENT_LENGTH);
+        if (offset < 0) {
+            return -1;
+        }
+        long value = parseDigits(header, offset, valueEnd(header, offset, length));
+        return value > Integer.MAX_VALUE ? -1 : (int) value;
+    }
+
+    /**
+     * Capture time set by the camera in <code>X-Timestamp</code>, in seconds with an optional
+     * fraction as mjpg-streamer does, or in milliseconds.
+     *
+     * @return milliseconds since the epoch, -1 if absent or not a number
+     */
+    static long timestamp(byte[] header, int length) {
+        int offset = valueOffset(header, length, X_TIMESTAMP);
+        if (offset < 0) {
+            return -1;
+        }
+        int end = valueEnd(header, offset, length);
+        int dot = offset;
+        while (dot < end && header[dot] != '.') {
+            dot++;
+        }
+        long integer = parseDigits(header, offset, dot);
+        if (integer < 0) {
+            return -1;
+        }
+        if (dot == end) {
+            return integer > MAX_SECONDS ? integer : integer * 1000;
+        }
+        // first three digits of the fraction
+        long millis = 0;
+        for (int i = 1; i <= 3; i++) {
+            int digit = dot + i < end ? header[dot + i] - '0' : 0;
+            if (digit < 0 || digit > 9) {
+                digit = 0;
+            }
+            millis = millis * 10 + digit;
+        }
+        return integer * 1000 + millis;
+    }
+
+    /**
+     * Capture time in a comment segment right after the start of the jpeg, the fallback without
+     * <code>X-Timestamp</code>.
+     *
+     * @return milliseconds since the epoch, -1 if the jpeg doesn't start with such a comment
+     */
+    static long commentTimestamp(byte[] jpeg, int length) {
+        // SOI, then COM and its length
+        int start = 6;
+        if (length < start + TIMESTAMP_PREFIX.length || (jpeg[2] & 0xFF) != 0xFF || (jpeg[3] & 0xFF) != 0xFE) {
+            return -1;
+        }
+        int end = Math.min(length, 4 + (((jpeg[4] & 0xFF) << 8) | (jpeg[5] & 0xFF)));
+        for (int i = 0; i < TIMESTAMP_PREFIX.length; i++) {
+            if (jpeg[start + i] != TIMESTAMP_PREFIX[i]) {
+                return -1;
+            }
+        }
+        long timestamp = 0;
+        for (int i = start + TIMESTAMP_PREFIX.length; i < end; i++) {
+            int digit = jpeg[i] - '0';
+            if (digit < 0 || digit > 9) {
+                break;
+            }
+            timestamp = timestamp * 10 + digit;
+        }
+        return timestamp;
+    }
+
+    /**
+     * @return offset of the first line starting with <code>--</code>, the multipart boundary, -1 if none
+     */
+    static int boundaryOffset(byte[] header, int length) {
+        int line = 0;
+        while (line < length) {
+            if (line + 1 < length && header[line] == '-' && header[line + 1] == '-') {
+                return line;
+            }
+            line = lineEnd(header, line, length) + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Add every header to map, allocating the strings.
+     */
+    static void parse(byte[] header, int length, Map<String, String> headers) {
+        int line = 0;
+        while (line < length) {
+            int end = lineEnd(header, line, length);
+            int colon = line;
+            while (colon < end && header[colon] != ':') {
+                colon++;
+            }
+            if (colon > line && colon < end) {
+                int value = colon + 1;
+                while (value < end && isSpace(header[value])) {
+                    value++;
+                }
+                headers.put(new String(header, line, colon - line, StandardCharsets.ISO_8859_1).trim(),
+                        new String(header, value, valueEnd(header, value, length) - value, StandardCharsets.ISO_8859_1));
+            }
+            line = end + 1;
+        }
+    }
+
+    /*
+     * Index of the '\n' ending the line, or length. A '\r' before it is left to the trimming.
+     */
+    private static int lineEnd(byte[] header, int offset, int length) {
+        int i = offset;
+        while (i < length && header[i] != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean matchesName(byte[] header, int offset, byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            // lower case for letters, unchanged for digits and dashes
+            if ((header[offset + i] | 0x20) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Non-negative decimal number, -1 if empty or not only digits.
+     */
+    private static long parseDigits(byte[] header, int from, int to) {
+        if (from >= to || to - from > 18) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = header[i] - '0';
+            if (digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\r';
+    }
+
+    private static byte[] lowerCase(String name) {
+        return name.toLowerCase(Locale.US).getBytes(StandardCharsets.US_ASCII);
+    }
+}
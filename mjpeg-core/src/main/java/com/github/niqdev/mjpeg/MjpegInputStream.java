@@ -0,0 +1,512 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import rx.Observable;
+import rx.schedulers.Schedulers;
+
+public class MjpegInputStream extends DataInputStream {
+    // the buffers grow to fit larger headers and frames
+    private final static int HEADER_INITIAL_LENGTH = 100;
+    final static int FRAME_MAX_LENGTH = 150000;
+    // a Content-Length outside these is corrupted: a jpeg has at least its start and end of image
+    private final static int CONTENT_MIN_LENGTH = 4;
+    private final static int CONTENT_MAX_LENGTH = 16 * 1024 * 1024;
+    // the end of image may be followed by a few bytes of padding within the Content-Length
+    private final static int END_OF_IMAGE_SLACK = 16;
+    // frames queued by the producer, plus those in use downstream
+    private final static int FRAME_POOL_EXTRA = 4;
+    // the boundary line of the stream once known, and its failure function to match it in a single pass
+    private byte[] boundary;
+    private int[] boundaryFallback;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    public byte[] frameBuffer = new byte[FRAME_MAX_LENGTH];
+    public byte[] headerBuffer = new byte[HEADER_INITIAL_LENGTH];
+    private volatile MjpegFrameProcessor frameProcessor;
+    private long frameHash;
+    private boolean duplicateFrame = false;
+    private long duplicateFrameCount = 0;
+    private int headerLength;
+    private long receivedNanos;
+    private long receivedTimestamp;
+    private long captureTimestamp = -1;
+    private long frameCount = 0;
+    private final MjpegMetrics metrics;
+    private final MjpegMemoryBudget.Account memoryAccount;
+    private volatile Closeable connection;
+    private volatile String url;
+    private volatile MjpegTrace trace;
+    private volatile int traceTrack;
+    // no more accessible
+    MjpegInputStream(InputStream in) {
+        this(in, newMetrics());
+    }
+
+    MjpegInputStream(InputStream in, MjpegMetrics metrics) {
+        super(new BufferedInputStream(in, FRAME_MAX_LENGTH));
+        this.metrics = metrics;
+        this.memoryAccount = MjpegMemoryBudget.getInstance().openAccount(getClass().getSimpleName());
+        memoryAccount.allocate(FRAME_MAX_LENGTH + frameBuffer.length + headerBuffer.length);
+    }
+
+    private static MjpegMetrics newMetrics() {
+        MjpegMetrics metrics = new MjpegMetrics();
+        metrics.onConnecting();
+        return metrics;
+    }
+
+    /**
+     * @return metrics of this stream, also fed by the view or the consumers of its frames
+     */
+    public MjpegMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return url of the camera, null for a stream not opened by {@link MjpegClient}
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /*
+     * Also names the memory account of the stream.
+     */
+    void setUrl(String url) {
+        this.url = url;
+        memoryAccount.setName(url);
+    }
+
+    /**
+     * @return memory held for this stream, by its buffers and pools and the bitmaps of its view,
+     * until it is closed
+     */
+    public MjpegMemoryBudget.Account getMemoryAccount() {
+        return memoryAccount;
+    }
+
+    /*
+     * Closed first by close(), to abort a read in progress right away, e.g. the HTTP connection.
+     */
+    void setConnection(Closeable connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Close the connection, from any thread: a read in progress fails right away.
+     *
+     * @throws IOException if closing fails
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            Closeable c = connection;
+            if (c != null) {
+                c.close();
+            }
+        } finally {
+            try {
+                super.close();
+            } finally {
+                memoryAccount.close();
+            }
+        }
+    }
+
+    /**
+     * Record the wait for every frame and its parsing.
+     *
+     * @param trace timeline to record into, null to stop tracing
+     * @param track of this stream in the trace
+     */
+    public void setTrace(MjpegTrace trace, int track) {
+        this.traceTrack = track;
+        this.trace = trace;
+    }
+
+    /**
+     * @return number of frames read, that of the last one
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Capture time of the last frame given by the camera, in the <code>X-Timestamp</code> part header
+     * as mjpg-streamer sends it, or by a {@link MjpegSimulator}. Compared to the local clock it
+     * gives the latency of the frame, as accurate as the clocks are synchronized.
+     *
+     * @return milliseconds since the epoch, -1 if the camera doesn't send it
+     */
+    public long getCaptureTimestamp() {
+        return captureTimestamp;
+    }
+
+    /**
+     * @return wall-clock time the last frame was received, in milliseconds since the epoch
+     */
+    public long getReceivedTimestamp() {
+        return receivedTimestamp;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the last frame was received
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    /**
+     * Run a processor, e.g. a motion detector, on every new frame read from this stream.
+     * Duplicate frames are not processed again.
+     *
+     * @param frameProcessor processor, or null to disable it
+     */
+    public void setFrameProcessor(MjpegFrameProcessor frameProcessor) {
+        this.frameProcessor = frameProcessor;
+    }
+
+    /**
+     * @return true if the last frame read decodes to the same image as the previous one: same
+     * tables and entropy-coded data, compared by a 64-bit hash, APP and COM segments ignored
+     */
+    public boolean isDuplicateFrame() {
+        return duplicateFrame;
+    }
+
+    /**
+     * @return number of frames identical to their predecessor since the stream was opened
+     */
+    public long getDuplicateFrameCount() {
+        return duplicateFrameCount;
+    }
+
+    /**
+     * Frames of this stream as they are read, on an io thread from subscription, completing when
+     * the stream ends. Only one consumer at a time: not to be used with a {@link MjpegSurfaceView}
+     * playing the same stream. Unsubscribing doesn't close the stream, close it to stop a read in
+     * progress. Every frame must be released once consumed.
+     * <p>
+     * Operators with a queue of their own, e.g. <code>observeOn</code>, should be given a small
+     * buffer size, so that the backpressure strategy applies here instead of filling their queue.
+     *
+     * @param backpressure what to do with frames read ahead of the requests
+     * @param bufferSize   frames queued with {@link MjpegFrame.Backpressure#BUFFER}
+     * @return Observable of leased frames
+     */
+    public Observable<MjpegFrame> frames(MjpegFrame.Backpressure backpressure, int bufferSize) {
+        return Observable.<MjpegFrame>unsafeCreate(subscriber -> {
+            MjpegFramePool pool = newFramePool(bufferSize + FRAME_POOL_EXTRA);
+            try {
+                new MjpegFrameProducer(subscriber, backpressure, bufferSize).run(this, pool);
+            } finally {
+                pool.close();
+            }
+        }).subscribeOn(Schedulers.io(), false);
+    }
+
+    /*
+     * Pool of frames for readFrame, sized as the buffers of this stream.
+     */
+    MjpegFramePool newFramePool(int maxSize) {
+        return new MjpegFramePool(frameBuffer.length, headerBuffer.length, maxSize, memoryAccount);
+    }
+
+    /*
+     * Read a frame and swap its buffers with the spare ones of a frame leased from pool:
+     * no copy and, once the pool is warm, no allocation.
+     */
+    MjpegFrame readFrame(MjpegFramePool pool) throws IOException {
+        return takeFrame(pool, readMjpegFrame());
+    }
+
+    /*
+     * The frame last parsed by readMjpegFrame, of that length, swapped into a frame leased from pool.
+     */
+    MjpegFrame takeFrame(MjpegFramePool pool, int length) {
+        MjpegFrame frame = pool.lease();
+        byte[] data = frameBuffer;
+        byte[] header = headerBuffer;
+        frameBuffer = frame.data;
+        headerBuffer = frame.header;
+        frame.set(data, length, header, headerLength, frameCount, receivedTimestamp, receivedNanos, captureTimestamp, duplicateFrame);
+        return frame;
+    }
+
+    /*
+     * Read up to the end of image, from after the start of image.
+     *
+     * @return bytes read up to and including the end of image, -1 if the boundary of the
+     * next part comes first, the part is truncated, or none in FRAME_MAX_LENGTH bytes
+     */
+    private int getEndOfImage() throws IOException {
+        int matched = 0;
+        int previous = -1;
+        for (int i = 0; i < FRAME_MAX_LENGTH; i++) {
+            int b = readUnsignedByte();
+            if (previous == 0xFF && b == 0xD9) {
+                return i + 1;
+            }
+            if (boundary != null && (matched = matchBoundary(matched, b)) == boundary.length) {
+                return -1;
+            }
+            previous = b;
+        }
+        return -1;
+    }
+
+    /*
+     * Read the part headers into headerBuffer, growing it as needed, up to and including
+     * the start of image.
+     *
+     * @return length of the headers, without the start of image, -1 if there is no start of
+     * image in FRAME_MAX_LENGTH bytes
+     */
+    private int readHeaders(int first) throws IOException {
+        headerBuffer[0] = (byte) first;
+        int length = 1;
+        int previous = -1;
+        int b = first;
+        while (previous != 0xFF || b != 0xD8) {
+            previous = b;
+            b = readUnsignedByte();
+            if (length == headerBuffer.length) {
+                if (length >= FRAME_MAX_LENGTH) {
+                    return -1;
+                }
+                headerBuffer = Arrays.copyOf(headerBuffer, length * 2);
+                memoryAccount.allocate(length);
+            }
+            headerBuffer[length++] = (byte) b;
+        }
+        return length - 2;
+    }
+    /*
+     * The end of image closes the frame, give or take some padding: a truncated part ends
+     * with the data of the next one instead.
+     */
+    private static boolean hasEndOfImage(byte[] frame, int length) {
+        for (int i = length - 2; i >= Math.max(2, length - 2 - END_OF_IMAGE_SLACK); i--) {
+            if (frame[i] == (byte) 0xFF && frame[i + 1] == (byte) 0xD9) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Skip past the next boundary, without closing the connection, after a truncated or
+     * corrupted part. Until the boundary is known, the next start of image is found with
+     * the headers instead.
+     *
+     * @return bytes skipped
+     */
+    private long resync() throws IOException {
+        if (boundary == null) {
+            return 0;
+        }
+        long skipped = 0;
+        int matched = 0;
+        while (matched < boundary.length) {
+            int b = read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            skipped++;
+            matched = matchBoundary(matched, b);
+        }
+        return skipped;
+    }
+
+    /*
+     * Knuth-Morris-Pratt step: boundary bytes matched once b is read, after matched of them.
+     */
+    private int matchBoundary(int matched, int b) {
+        while (matched > 0 && b != (boundary[matched] & 0xFF)) {
+            matched = boundaryFallback[matched - 1];
+        }
+        return b == (boundary[matched] & 0xFF) ? matched + 1 : 0;
+    }
+
+    /*
+     * The first line of the headers of a valid part is the boundary of the stream, if any.
+     */
+    private void learnBoundary(int headerLen) {
+        int offset = MjpegHeaders.boundaryOffset(headerBuffer, headerLen);
+        if (offset < 0) {
+            return;
+        }
+        byte[] line = Arrays.copyOfRange(headerBuffer, offset, MjpegHeaders.valueEnd(headerBuffer, offset, headerLen));
+        // length of the longest proper prefix of line[0..i] which is also a suffix of it
+        int[] fallback = new int[line.length];
+        for (int i = 1, k = 0; i < line.length; i++) {
+            while (k > 0 && line[i] != line[k]) {
+                k = fallback[k - 1];
+            }
+            if (line[i] == line[k]) {
+                k++;
+            }
+            fallback[i] = k;
+        }
+        boundaryFallback = fallback;
+        boundary = line;
+    }
+
+    /*
+     * 64-bit FNV-1a of everything which decodes into the image: the tables, the frame header and
+     * the entropy-coded segment, from the start of image on. Cameras often stamp the time or a
+     * frame counter in APP/COM segments, so those are left out.
+     */
+    private long hashFrame(byte[] frame, int length) {
+        long hash = FNV_OFFSET_BASIS;
+        int i = 2;
+        while (i + 3 < length && frame[i] == (byte) 0xFF) {
+            int marker = frame[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // fill byte
+                i++;
+                continue;
+            }
+            if (marker == 0xDA) {
+                break;
+            }
+            int end = Math.min(length, i + 2 + ((frame[i + 2] & 0xFF) << 8 | frame[i + 3] & 0xFF));
+            if (!(marker >= 0xE0 && marker <= 0xEF || marker == 0xFE)) {
+                hash = hashBytes(hash, frame, i, end);
+            }
+            i = end;
+        }
+        // the scan, or whatever follows a malformed segment
+        return hashBytes(hash, frame, i, length);
+    }
+
+    /*
+     * FNV-1a over 4-byte words
+     */
+    private static long hashBytes(long hash, byte[] frame, int from, int to) {
+        int i = from;
+        for (; i + 3 < to; i += 4) {
+            hash ^= (frame[i] & 0xFF) | (frame[i + 1] & 0xFF) << 8 | (frame[i + 2] & 0xFF) << 16 | frame[i + 3] << 24;
+            hash *= FNV_PRIME;
+        }
+        for (; i < to; i++) {
+            hash ^= frame[i] & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Read the next frame into {@link #frameBuffer} and its part headers into {@link #headerBuffer}.
+     * Truncated or corrupted parts are skipped up to the next boundary, on the same connection,
+     * and counted by {@link MjpegMetrics#onFrameDiscarded(long)}.
+     *
+     * @return size of the frame in bytes
+     * @throws IOException if the stream fails or ends
+     */
+    public int readMjpegFrame() throws IOException {
+        long waitStart = System.nanoTime();
+        long parseStart;
+        int skipped;
+        int headerLen;
+        int contentLength;
+        while (true) {
+            // skip the end of the previous part: the parse time starts with this part,
+            // not while waiting for the camera
+            skipped = -1;
+            int b;
+            do {
+                b = read();
+                skipped++;
+            } while (b == '\r' || b == '\n');
+            if (b == -1) {
+                throw new EOFException();
+            }
+            parseStart = System.nanoTime();
+            headerLen = readHeaders(b);
+            if (headerLen < 0) {
+                // no start of image where the headers should end
+                metrics.onFrameDiscarded(skipped + FRAME_MAX_LENGTH + resync());
+                continue;
+            }
+            headerLength = headerLen;
+            // read so far: the headers and the start of image
+            int partLength = skipped + headerLen + 2;
+            contentLength = MjpegHeaders.contentLength(headerBuffer, headerLen);
+            boolean marked = false;
+            if (contentLength < 0) {
+                // no Content-Length: look ahead for the end of image, then read the frame from after its start
+                mark(FRAME_MAX_LENGTH);
+                int end = getEndOfImage();
+                reset();
+                if (end < 0) {
+                    metrics.onFrameDiscarded(partLength + resync());
+                    continue;
+                }
+                contentLength = end + 2;
+            } else if (contentLength < CONTENT_MIN_LENGTH || contentLength > CONTENT_MAX_LENGTH) {
+                metrics.onFrameDiscarded(partLength + resync());
+                continue;
+            } else if (contentLength <= FRAME_MAX_LENGTH) {
+                // within the buffer of the stream: a truncated part can be read again from its start of image
+                mark(contentLength);
+                marked = true;
+            }
+            if (contentLength > frameBuffer.length) {
+                memoryAccount.allocate(contentLength - frameBuffer.length);
+                frameBuffer = new byte[contentLength];
+            }
+            // the start of image was read with the headers
+            frameBuffer[0] = (byte) 0xFF;
+            frameBuffer[1] = (byte) 0xD8;
+            readFully(frameBuffer, 2, contentLength - 2);
+            if (hasEndOfImage(frameBuffer, contentLength)) {
+                break;
+            }
+            // truncated: the Content-Length ran into the next part, whose boundary is to be found again
+            if (marked) {
+                reset();
+            } else {
+                partLength += contentLength - 2;
+            }
+            metrics.onFrameDiscarded(partLength + resync());
+        }
+        if (boundary == null) {
+            learnBoundary(headerLen);
+        }
+        receivedNanos = System.nanoTime();
+        receivedTimestamp = System.currentTimeMillis();
+        long captured = MjpegHeaders.timestamp(headerBuffer, headerLen);
+        captureTimestamp = captured >= 0 ? captured : MjpegHeaders.commentTimestamp(frameBuffer, contentLength);
+        frameCount++;
+        long hash = hashFrame(frameBuffer, contentLength);
+        duplicateFrame = hash == frameHash;
+        frameHash = hash;
+        metrics.onFrameReceived(skipped + headerLen + contentLength, contentLength, receivedNanos - parseStart);
+        metrics.onFrameArrival(receivedNanos, captureTimestamp);
+        if (captureTimestamp >= 0) {
+            metrics.onCaptureToReceive(receivedTimestamp - captureTimestamp);
+        }
+        MjpegTrace t = trace;
+        if (t != null) {
+            t.record(traceTrack, MjpegTrace.Stage.NETWORK, frameCount, waitStart, parseStart);
+            t.record(traceTrack, MjpegTrace.Stage.PARSE, frameCount, parseStart, receivedNanos);
+        }
+        if (duplicateFrame) {
+            duplicateFrameCount++;
+            return contentLength;
+        }
+        MjpegFrameProcessor processor = frameProcessor;
+        if (processor != null) {
+            processor.process(frameBuffer, contentLength);
+        }
+        return contentLength;
+    }
+}
\ No newline at end of file
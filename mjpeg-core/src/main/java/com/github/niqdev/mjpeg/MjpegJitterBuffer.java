@@ -0,0 +1,193 @@
+package com.github.niqdev.mjpeg;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds the frames of a stream for up to a target latency and hands them out at the cadence of the
+ * camera, smoothing the bursts of the network, e.g. over Wi-Fi. The cadence follows the capture
+ * timestamps when the camera sends them, the smoothed arrival times otherwise.
+ * <p>
+ * Each frame is due at its time at the source, plus a low estimate of the recent transits, plus the
+ * target latency: frames delayed less than the target are evened out, later ones are handed out
+ * as soon as they arrive and counted as late. Frames stay encoded while buffered.
+ * <pre>
+ * MjpegJitterBuffer buffer = new MjpegJitterBuffer(150, TimeUnit.MILLISECONDS, 16);
+ * // reading thread
+ * buffer.offer(frame);
+ * // presenting thread
+ * MjpegFrame frame = buffer.poll(decodeNanos, 100, TimeUnit.MILLISECONDS);
+ * </pre>
+ */
+public class MjpegJitterBuffer {
+    // the low estimate of the transit follows shorter transits by this fraction of the difference,
+    // and rises back towards longer ones by this one: frames are rarely late and the schedule doesn't jump
+    private static final int TRANSIT_DESCENT = 8;
+    private static final int TRANSIT_RECOVERY = 64;
+    // beyond this, the clock of the camera jumped or the stream restarted
+    private static final long RESYNC_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    private final long targetNanos;
+    private final MjpegCadence cadence = new MjpegCadence();
+    // guarded by this, a ring of the frames and of the times they are due
+    private final MjpegFrame[] frames;
+    private final long[] due;
+    private int head = 0;
+    private int size = 0;
+    private boolean synced = false;
+    private long transitNanos;
+    private long lastDueNanos;
+    private volatile long lateFrames = 0;
+
+    /**
+     * @param targetLatency added at most to smooth the cadence, 0 hands out frames on arrival
+     * @param unit          of the target latency
+     * @param capacity      frames held at most, the oldest one is dropped to make room
+     */
+    public MjpegJitterBuffer(long targetLatency, TimeUnit unit, int capacity) {
+        this.targetNanos = unit.toNanos(Math.max(0, targetLatency));
+        this.frames = new MjpegFrame[Math.max(1, capacity)];
+        this.due = new long[frames.length];
+    }
+
+    /**
+     * Add a frame just received, the buffer takes over its reference.
+     *
+     * @param frame next frame of the stream
+     * @return false if the oldest frame was dropped to make room, released
+     */
+    public synchronized boolean offer(MjpegFrame frame) {
+        long arrival = frame.getReceivedNanos();
+        long source = cadence.update(arrival, frame.getCaptureTimestamp());
+        long transit = arrival - source;
+        if (!synced || Math.abs(transit - transitNanos) > RESYNC_NANOS) {
+            synced = true;
+            transitNanos = transit;
+        } else if (transit < transitNanos) {
+            transitNanos += (transit - transitNanos) / TRANSIT_DESCENT;
+        } else {
+            transitNanos += (transit - transitNanos) / TRANSIT_RECOVERY;
+        }
+        long dueNanos = source + transitNanos + targetNanos;
+        if (dueNanos < arrival) {
+            lateFrames++;
+            dueNanos = arrival;
+        }
+        // in order, whatever the estimates
+        dueNanos = Math.max(dueNanos, lastDueNanos);
+        lastDueNanos = dueNanos;
+
+        boolean dropped = false;
+        if (size == frames.length) {
+            removeFirst().release();
+            dropped = true;
+        }
+        int tail = (head + size) % frames.length;
+        frames[tail] = frame;
+        due[tail] = dueNanos;
+        size++;
+        notifyAll();
+        return !dropped;
+    }
+
+    /**
+     * Wait for the next frame to be due.
+     *
+     * @param leadNanos how long before it is due to hand it out, e.g. the time to decode and draw it
+     * @param timeout   to wait at most
+     * @param unit      of the timeout
+     * @return the next frame, to release once presented, or null if none was due in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized MjpegFrame poll(long leadNanos, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            long now = System.nanoTime();
+            long wait = deadline - now;
+            if (size > 0) {
+                long untilDue = due[head] - leadNanos - now;
+                if (untilDue <= 0) {
+                    return removeFirst();
+                }
+                wait = Math.min(wait, untilDue);
+            }
+            if (wait <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+    }
+
+    /**
+     * Take the newest frame whether due or not, releasing the older ones, e.g. to keep up with a
+     * stream while it isn't shown.
+     *
+     * @param timeout to wait at most for a frame if none is held
+     * @param unit    of the timeout
+     * @return the newest frame, to release, or null if none arrived in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized MjpegFrame pollLatest(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long wait;
+        while (size == 0 && (wait = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+        }
+        if (size == 0) {
+            return null;
+        }
+        while (size > 1) {
+            removeFirst().release();
+        }
+        return removeFirst();
+    }
+
+    /**
+     * Release the frames held.
+     */
+    public synchronized void clear() {
+        while (size > 0) {
+            removeFirst().release();
+        }
+    }
+
+    /**
+     * @return frames held
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    public long getTargetLatencyMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(targetNanos);
+    }
+
+    /**
+     * @return smoothed deviation of the arrivals from the cadence of the camera, the target
+     * latency needed for a smooth playback is a few times this
+     */
+    public long getJitterMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(cadence.getJitterNanos());
+    }
+
+    /**
+     * @return estimated time between frames at the camera, 0 until two frames are received
+     */
+    public long getFramePeriodMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(cadence.getPeriodNanos());
+    }
+
+    /**
+     * @return frames which arrived after they were due, each one a stutter the target latency didn't absorb
+     */
+    public long getLateFrameCount() {
+        return lateFrames;
+    }
+
+    private MjpegFrame removeFirst() {
+        MjpegFrame frame = frames[head];
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        size--;
+        return frame;
+    }
+}
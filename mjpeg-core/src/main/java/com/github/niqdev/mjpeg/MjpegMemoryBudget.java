@@ -0,0 +1,229 @@
+package com.github.niqdev.mjpeg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Process-wide accounting of the buffers and bitmaps held by the library, one account per stream,
+ * against a budget. Above 80% of the budget, or after a trim request, e.g. from
+ * <code>onTrimMemory</code>, the library degrades instead of running out of memory: pools stop
+ * keeping spare buffers, caches are evicted and views decode at a lower scale.
+ * <pre>
+ * MjpegMemoryBudget.getInstance().setBudget(64 * 1024 * 1024);
+ * for (MjpegMemoryBudget.Account account : MjpegMemoryBudget.getInstance().getAccounts()) {
+ *     Log.d(TAG, account.toString());
+ * }
+ * </pre>
+ * Accounting is approximate, lock-free and allocation-free on the frame path.
+ */
+public final class MjpegMemoryBudget {
+
+    public enum Pressure {
+        NONE,
+        /**
+         * Keep no spare buffers nor caches.
+         */
+        MODERATE,
+        /**
+         * Also trade image quality for memory.
+         */
+        CRITICAL
+    }
+
+    /**
+     * Called on the thread crossing the budget or requesting the trim, to release what can be.
+     */
+    public interface Listener {
+        void onTrim(Pressure pressure);
+    }
+
+    // above this fraction of the budget the pressure is moderate
+    private static final double MODERATE_RATIO = 0.8;
+    // a trim request holds its pressure this long
+    private static final long TRIM_HOLD_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    private static final MjpegMemoryBudget INSTANCE = new MjpegMemoryBudget();
+
+    private final AtomicLong used = new AtomicLong();
+    private final CopyOnWriteArrayList<Account> accounts = new CopyOnWriteArrayList<>();
+    // pressure last notified, to notify once on the way up
+    private final AtomicReference<Pressure> notified = new AtomicReference<>(Pressure.NONE);
+    private volatile long budget = Runtime.getRuntime().maxMemory() / 2;
+    private volatile Pressure trimPressure = Pressure.NONE;
+    private volatile long trimNanos;
+
+    private MjpegMemoryBudget() {
+    }
+
+    public static MjpegMemoryBudget getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * @param bytes held by the library at most before degrading, half of the maximum heap by default
+     */
+    public void setBudget(long bytes) {
+        this.budget = Math.max(1, bytes);
+        checkPressure();
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return bytes held by all the streams
+     */
+    public long getUsedBytes() {
+        return used.get();
+    }
+
+    /**
+     * @return the open accounts, one per stream
+     */
+    public List<Account> getAccounts() {
+        return new ArrayList<>(accounts);
+    }
+
+    /**
+     * @return the highest of the pressure of the budget and of the last trim request
+     */
+    public Pressure getPressure() {
+        long current = used.get();
+        long limit = budget;
+        Pressure pressure = current >= limit ? Pressure.CRITICAL
+                : current >= limit * MODERATE_RATIO ? Pressure.MODERATE : Pressure.NONE;
+        Pressure trimmed = trimPressure;
+        if (trimmed.compareTo(pressure) > 0 && System.nanoTime() - trimNanos < TRIM_HOLD_NANOS) {
+            return trimmed;
+        }
+        return pressure;
+    }
+
+    /**
+     * Release memory now and degrade for a while, e.g. from <code>onTrimMemory</code>.
+     *
+     * @param pressure how much to release
+     */
+    public void trim(Pressure pressure) {
+        if (pressure == Pressure.NONE) {
+            return;
+        }
+        trimNanos = System.nanoTime();
+        trimPressure = pressure;
+        notified.set(pressure);
+        notifyListeners(pressure);
+    }
+
+    /**
+     * @param name of the stream, e.g. its url
+     * @return a new account, to close with the stream
+     */
+    public Account openAccount(String name) {
+        Account account = new Account(this, name);
+        accounts.add(account);
+        return account;
+    }
+
+    private void add(long bytes) {
+        used.addAndGet(bytes);
+        if (bytes > 0) {
+            checkPressure();
+        }
+    }
+
+    private void checkPressure() {
+        Pressure pressure = getPressure();
+        Pressure previous = notified.get();
+        if (pressure.compareTo(previous) > 0) {
+            if (notified.compareAndSet(previous, pressure)) {
+                notifyListeners(pressure);
+            }
+        } else if (pressure == Pressure.NONE && previous != Pressure.NONE) {
+            notified.compareAndSet(previous, Pressure.NONE);
+        }
+    }
+
+    private void notifyListeners(Pressure pressure) {
+        for (Account account : accounts) {
+            for (Listener listener : account.listeners) {
+                listener.onTrim(pressure);
+            }
+        }
+    }
+
+    /**
+     * Memory held for a stream, by its buffers, pools and the bitmaps of its view.
+     */
+    public static final class Account {
+        private final MjpegMemoryBudget budget;
+        private final AtomicLong used = new AtomicLong();
+        private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+        private volatile String name;
+        private volatile boolean closed = false;
+
+        private Account(MjpegMemoryBudget budget, String name) {
+            this.budget = budget;
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return bytes held for the stream
+         */
+        public long getUsedBytes() {
+            return used.get();
+        }
+
+        public void allocate(long bytes) {
+            if (!closed) {
+                used.addAndGet(bytes);
+                budget.add(bytes);
+            }
+        }
+
+        public void free(long bytes) {
+            allocate(-bytes);
+        }
+
+        /**
+         * @param listener told to release memory while this account is open
+         */
+        public void addListener(Listener listener) {
+            listeners.add(listener);
+        }
+
+        public void removeListener(Listener listener) {
+            listeners.remove(listener);
+        }
+
+        /**
+         * Give back everything held, the stream is closed.
+         */
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            budget.accounts.remove(this);
+            budget.add(-used.getAndSet(0));
+            listeners.clear();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + used.get() / 1024 + " KB";
+        }
+    }
+}
@@ -0,0 +1,520 @@
+package com.github.niqdev.mjpeg;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import rx.Observable;
+
+/**
+ * Counters and histograms of a stream, from the connection to the screen, shared by whoever
+ * reads, decodes and draws its frames. Recording is lock-free and allocation-free, cheap enough
+ * to be always on; reading is by {@link #snapshot()} or periodically by {@link #snapshots(long, TimeUnit)}.
+ * <p>
+ * One instance can follow a camera across connections, see {@link MjpegClient#metrics(MjpegMetrics)}:
+ * every connection after the first is counted as a reconnect.
+ */
+public class MjpegMetrics {
+
+    private final long createdNanos = System.nanoTime();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong framesReceived = new AtomicLong();
+    private final AtomicLong framesDecoded = new AtomicLong();
+    private final AtomicLong framesRendered = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong framesDiscarded = new AtomicLong();
+    private final AtomicLong bytesDiscarded = new AtomicLong();
+    private final AtomicLong connections = new AtomicLong();
+    private volatile long connectNanos = createdNanos;
+    private volatile long timeToFirstFrameNanos = -1;
+    private volatile boolean awaitingFirstFrame = true;
+    private volatile long timeToFirstPixelNanos = -1;
+    private volatile boolean awaitingFirstPixel = true;
+    private final Histogram frameSize = new Histogram();
+    private final Histogram parseNanos = new Histogram();
+    private final Histogram decodeNanos = new Histogram();
+    private final Histogram drawNanos = new Histogram();
+    private final Histogram captureToReceiveMillis = new Histogram();
+    private final Histogram captureToPresentMillis = new Histogram();
+    private final Histogram stopNanos = new Histogram();
+    private final MjpegCadence cadence = new MjpegCadence();
+
+    public MjpegMetrics() {
+    }
+
+    /**
+     * A connection is being opened, the time to first frame starts now.
+     */
+    public void onConnecting() {
+        connectNanos = System.nanoTime();
+        awaitingFirstFrame = true;
+        awaitingFirstPixel = true;
+        connections.incrementAndGet();
+    }
+
+    /**
+     * @param bytes      read for the frame, part headers included
+     * @param length     of the jpeg
+     * @param parseNanos from the first byte of the part to the end of the frame
+     */
+    public void onFrameReceived(int bytes, int length, long parseNanos) {
+        if (awaitingFirstFrame) {
+            awaitingFirstFrame = false;
+            timeToFirstFrameNanos = System.nanoTime() - connectNanos;
+        }
+        bytesReceived.addAndGet(bytes);
+        framesReceived.incrementAndGet();
+        frameSize.record(length);
+        this.parseNanos.record(parseNanos);
+    }
+
+    /**
+     * A truncated or corrupted part, skipped up to the next one on the same connection.
+     *
+     * @param bytes read and thrown away, part headers and resynchronization included
+     */
+    public void onFrameDiscarded(long bytes) {
+        bytesReceived.addAndGet(bytes);
+        bytesDiscarded.addAndGet(bytes);
+        framesDiscarded.incrementAndGet();
+    }
+
+    /**
+     * @param nanos spent decoding the frame
+     */
+    public void onFrameDecoded(long nanos) {
+        framesDecoded.incrementAndGet();
+        decodeNanos.record(nanos);
+    }
+
+    /**
+     * @param nanos spent drawing the frame and posting it
+     */
+    public void onFrameRendered(long nanos) {
+        framesRendered.incrementAndGet();
+        drawNanos.record(nanos);
+    }
+
+    /**
+     * Arrival of a frame, for the cadence and the jitter of the stream. From the thread reading
+     * the stream only.
+     *
+     * @param receivedNanos    {@link System#nanoTime()} when the frame was received
+     * @param captureTimestamp capture time in milliseconds since the epoch, -1 if unknown
+     */
+    public void onFrameArrival(long receivedNanos, long captureTimestamp) {
+        cadence.update(receivedNanos, captureTimestamp);
+    }
+
+    /**
+     * Latency of a frame with a capture timestamp, see {@link MjpegInputStream#getCaptureTimestamp()}.
+     * Negative values, from clocks out of sync, count as 0.
+     *
+     * @param millis from the capture by the camera to the end of the frame received
+     */
+    public void onCaptureToReceive(long millis) {
+        captureToReceiveMillis.record(millis);
+    }
+
+    /**
+     * Glass-to-glass latency of a frame with a capture timestamp.
+     *
+     * @param millis from the capture by the camera to the frame posted to the screen
+     */
+    public void onCaptureToPresent(long millis) {
+        captureToPresentMillis.record(millis);
+    }
+
+    /**
+     * Something of the stream is on screen, the last frame cached for the camera or a live one:
+     * the first call after connecting gives the time to first pixel.
+     */
+    public void onFirstPixel() {
+        if (awaitingFirstPixel) {
+            awaitingFirstPixel = false;
+            timeToFirstPixelNanos = System.nanoTime() - connectNanos;
+        }
+    }
+
+    /**
+     * @param nanos from the request to stop playing to the connection closed and the rendering stopped
+     */
+    public void onStopped(long nanos) {
+        stopNanos.record(nanos);
+    }
+
+    /**
+     * A frame received and not shown, e.g. superseded by a newer one or not decodable.
+     */
+    public void onFrameDropped() {
+        framesDropped.incrementAndGet();
+    }
+
+    /**
+     * @return frames rendered so far, for consumers cheaper to feed than with a snapshot
+     */
+    public long getFramesRendered() {
+        return framesRendered.get();
+    }
+
+    /**
+     * @return bytes received so far
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return totals, distributions and rates since this instance was created
+     */
+    public Snapshot snapshot() {
+        return snapshot(null);
+    }
+
+    /**
+     * Snapshots taken every interval on the computation scheduler, with rates and
+     * distributions over the last interval only.
+     *
+     * @param interval between snapshots
+     * @param unit     of the interval
+     * @return Observable of snapshots
+     */
+    public Observable<Snapshot> snapshots(long interval, TimeUnit unit) {
+        return Observable.defer(() -> Observable.interval(interval, interval, unit)
+                .scan(snapshot(), (previous, tick) -> snapshot(previous))
+                .skip(1));
+    }
+
+    private Snapshot snapshot(Snapshot previous) {
+        return new Snapshot(this, previous);
+    }
+
+    /**
+     * Immutable state of the metrics at a point in time.
+     */
+    public static final class Snapshot {
+        private final long nanoTime;
+        private final long intervalNanos;
+        private final long bytesReceived;
+        private final long framesReceived;
+        private final long framesDecoded;
+        private final long framesRendered;
+        private final long framesDropped;
+        private final long framesDiscarded;
+        private final long bytesDiscarded;
+        private final long reconnects;
+        private final long timeToFirstFrameNanos;
+        private final long timeToFirstPixelNanos;
+        private final long framePeriodNanos;
+        private final long jitterNanos;
+        private final Distribution frameSize;
+        private final Distribution parseNanos;
+        private final Distribution decodeNanos;
+        private final Distribution drawNanos;
+        private final Distribution captureToReceiveMillis;
+        private final Distribution captureToPresentMillis;
+        private final Distribution stopNanos;
+        private final double bytesPerSecond;
+        private final double framesPerSecond;
+        private final double renderedFramesPerSecond;
+
+        private Snapshot(MjpegMetrics metrics, Snapshot previous) {
+            nanoTime = System.nanoTime();
+            intervalNanos = nanoTime - (previous != null ? previous.nanoTime : metrics.createdNanos);
+            bytesReceived = metrics.bytesReceived.get();
+            framesReceived = metrics.framesReceived.get();
+            framesDecoded = metrics.framesDecoded.get();
+            framesRendered = metrics.framesRendered.get();
+            framesDropped = metrics.framesDropped.get();
+            framesDiscarded = metrics.framesDiscarded.get();
+            bytesDiscarded = metrics.bytesDiscarded.get();
+            reconnects = Math.max(0, metrics.connections.get() - 1);
+            timeToFirstFrameNanos = metrics.timeToFirstFrameNanos;
+            timeToFirstPixelNanos = metrics.timeToFirstPixelNanos;
+            framePeriodNanos = metrics.cadence.getPeriodNanos();
+            jitterNanos = metrics.cadence.getJitterNanos();
+            frameSize = metrics.frameSize.distribution(previous != null ? previous.frameSize : null);
+            parseNanos = metrics.parseNanos.distribution(previous != null ? previous.parseNanos : null);
+            decodeNanos = metrics.decodeNanos.distribution(previous != null ? previous.decodeNanos : null);
+            drawNanos = metrics.drawNanos.distribution(previous != null ? previous.drawNanos : null);
+            captureToReceiveMillis = metrics.captureToReceiveMillis.distribution(previous != null ? previous.captureToReceiveMillis : null);
+            captureToPresentMillis = metrics.captureToPresentMillis.distribution(previous != null ? previous.captureToPresentMillis : null);
+            stopNanos = metrics.stopNanos.distribution(previous != null ? previous.stopNanos : null);
+            double seconds = Math.max(1, intervalNanos) / 1e9;
+            bytesPerSecond = (bytesReceived - (previous != null ? previous.bytesReceived : 0)) / seconds;
+            framesPerSecond = (framesReceived - (previous != null ? previous.framesReceived : 0)) / seconds;
+            renderedFramesPerSecond = (framesRendered - (previous != null ? previous.framesRendered : 0)) / seconds;
+        }
+
+        /**
+         * @return length of the interval covered by the rates and distributions
+         */
+        public long getIntervalNanos() {
+            return intervalNanos;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getFramesReceived() {
+            return framesReceived;
+        }
+
+        public long getFramesDecoded() {
+            return framesDecoded;
+        }
+
+        public long getFramesRendered() {
+            return framesRendered;
+        }
+
+        public long getFramesDropped() {
+            return framesDropped;
+        }
+
+        /**
+         * @return truncated or corrupted parts skipped without reconnecting
+         */
+        public long getFramesDiscarded() {
+            return framesDiscarded;
+        }
+
+        /**
+         * @return bytes of the parts discarded and skipped to find the next one
+         */
+        public long getBytesDiscarded() {
+            return bytesDiscarded;
+        }
+
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        /**
+         * @return from the start of the last connection to its first frame, -1 if none yet
+         */
+        public long getTimeToFirstFrameNanos() {
+            return timeToFirstFrameNanos;
+        }
+
+        /**
+         * @return from the start of the last connection to something on screen, a cached frame
+         * or the first one, -1 if nothing yet
+         */
+        public long getTimeToFirstPixelNanos() {
+            return timeToFirstPixelNanos;
+        }
+
+        /**
+         * @return estimated time between frames at the camera, from capture timestamps or arrivals
+         */
+        public long getFramePeriodNanos() {
+            return framePeriodNanos;
+        }
+
+        /**
+         * @return smoothed interarrival jitter, as in RFC 3550
+         */
+        public long getJitterNanos() {
+            return jitterNanos;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * @return frames received per second
+         */
+        public double getFramesPerSecond() {
+            return framesPerSecond;
+        }
+
+        public double getRenderedFramesPerSecond() {
+            return renderedFramesPerSecond;
+        }
+
+        /**
+         * @return sizes of the jpegs in bytes
+         */
+        public Distribution getFrameSize() {
+            return frameSize;
+        }
+
+        public Distribution getParseNanos() {
+            return parseNanos;
+        }
+
+        public Distribution getDecodeNanos() {
+            return decodeNanos;
+        }
+
+        public Distribution getDrawNanos() {
+            return drawNanos;
+        }
+
+        /**
+         * @return latencies from the capture to the reception, empty if the camera sends no capture timestamp
+         */
+        public Distribution getCaptureToReceiveMillis() {
+            return captureToReceiveMillis;
+        }
+
+        /**
+         * @return glass-to-glass latencies, empty if the camera sends no capture timestamp
+         */
+        public Distribution getCaptureToPresentMillis() {
+            return captureToPresentMillis;
+        }
+
+        /**
+         * @return times taken by the views to stop playing
+         */
+        public Distribution getStopNanos() {
+            return stopNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f fps, %.1f rendered fps, %.0f KB/s, frames %d received %d decoded %d rendered %d dropped %d discarded, "
+                            + "%d reconnects, first frame %d ms, first pixel %d ms, jitter %d ms, size p50 %d B, parse p50 %d us, decode p50 %d us, draw p50 %d us, glass-to-glass p50 %d ms",
+                    framesPerSecond, renderedFramesPerSecond, bytesPerSecond / 1024,
+                    framesReceived, framesDecoded, framesRendered, framesDropped, framesDiscarded, reconnects,
+                    timeToFirstFrameNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(timeToFirstFrameNanos),
+                    timeToFirstPixelNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(timeToFirstPixelNanos),
+                    TimeUnit.NANOSECONDS.toMillis(jitterNanos),
+                    frameSize.getPercentile(50),
+                    TimeUnit.NANOSECONDS.toMicros(parseNanos.getPercentile(50)),
+                    TimeUnit.NANOSECONDS.toMicros(decodeNanos.getPercentile(50)),
+                    TimeUnit.NANOSECONDS.toMicros(drawNanos.getPercentile(50)),
+                    captureToPresentMillis.getCount() == 0 ? -1 : captureToPresentMillis.getPercentile(50));
+        }
+    }
+
+    /**
+     * Distribution of the values recorded in a histogram, within 1/16 of their magnitude.
+     */
+    public static final class Distribution {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+        // counts and sum since the start, to subtract from the next snapshot
+        private final long[] totalCounts;
+        private final long totalSum;
+
+        private Distribution(long[] counts, long count, long sum, long max, long[] totalCounts, long totalSum) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+            this.totalCounts = totalCounts;
+            this.totalSum = totalSum;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return largest value, of the bucket if the distribution covers an interval
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param percentile 0..100
+         * @return value below which that percentage of the values falls, 0 if empty
+         */
+        public long getPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(max, Histogram.valueOf(i));
+                }
+            }
+            return max;
+        }
+    }
+
+    /*
+     * Log-linear buckets, 8 per power of 2, as in HdrHistogram with 1 significant digit:
+     * a fixed array of atomic counters, no lock and no allocation to record.
+     */
+    private static final class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            counts.incrementAndGet(indexOf(value));
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // retry
+            }
+        }
+
+        /*
+         * Copy of the counts, minus those of previous if not null.
+         */
+        Distribution distribution(Distribution previous) {
+            long[] totals = new long[BUCKETS];
+            long[] interval = new long[BUCKETS];
+            long total = 0;
+            int highest = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                totals[i] = counts.get(i);
+                interval[i] = totals[i] - (previous != null ? previous.totalCounts[i] : 0);
+                if (interval[i] > 0) {
+                    total += interval[i];
+                    highest = i;
+                }
+            }
+            // recorded concurrently with the copy, the sum is close enough
+            long totalSum = sum.get();
+            long intervalSum = totalSum - (previous != null ? previous.totalSum : 0);
+            long largest = previous == null ? max.get() : (total == 0 ? 0 : valueOf(highest));
+            return new Distribution(interval, total, intervalSum, largest, totals, totalSum);
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int magnitude = 63 - Long.numberOfLeadingZeros(value);
+            int shift = magnitude - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        /*
+         * Middle of the bucket.
+         */
+        static long valueOf(int index) {
+            if (index < SUB_BUCKETS) {
+                return index;
+            }
+            int shift = index / SUB_BUCKETS - 1;
+            long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+            return lowest + ((1L << shift) >> 1);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Multipart stream of the frames of a source other than an Mjpeg response, queued by the threads
+ * of the source as they complete, so that {@link MjpegInputStream} and everything downstream play
+ * it as any other stream. A reader falling behind gets the newest frames: beyond a couple of parts
+ * waiting, the oldest one is dropped.
+ */
+abstract class MjpegPartStream extends InputStream {
+    // parts waiting to be read, the oldest one is dropped beyond
+    private static final int QUEUE_LENGTH = 2;
+    // read() checks the stream is still open at least this often
+    private static final long POLL_MILLIS = 100;
+
+    private final String boundary;
+    // guarded by itself
+    private final ArrayDeque<byte[]> parts = new ArrayDeque<>(QUEUE_LENGTH + 1);
+    private volatile IOException error;
+    private volatile boolean closed = false;
+    // read side
+    private byte[] part;
+    private int position;
+
+    /**
+     * @param boundary of the parts, without the leading dashes
+     */
+    MjpegPartStream(String boundary) {
+        this.boundary = boundary;
+    }
+
+    /**
+     * Queue a frame for the reader as a multipart part.
+     *
+     * @param jpeg   frame
+     * @param length of the frame in the array
+     */
+    void queue(byte[] jpeg, int length) {
+        byte[] header = ("--" + boundary + "\r\n"
+                + "Content-Type: image/jpeg\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] part = new byte[header.length + length + 2];
+        System.arraycopy(header, 0, part, 0, header.length);
+        System.arraycopy(jpeg, 0, part, header.length, length);
+        part[part.length - 2] = '\r';
+        part[part.length - 1] = '\n';
+        synchronized (parts) {
+            if (closed) {
+                return;
+            }
+            if (parts.size() == QUEUE_LENGTH) {
+                parts.pollFirst();
+            }
+            parts.addLast(part);
+            parts.notifyAll();
+        }
+    }
+
+    /**
+     * Fail the stream: the reader gets the error once the parts queued are read.
+     */
+    void fail(IOException e) {
+        synchronized (parts) {
+            if (error == null) {
+                error = e;
+            }
+            parts.notifyAll();
+        }
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /*
+     * Wait for the next part.
+     */
+    private boolean nextPart() throws IOException {
+        synchronized (parts) {
+            while (parts.isEmpty()) {
+                if (closed) {
+                    return false;
+                }
+                if (error != null) {
+                    throw error;
+                }
+                try {
+                    parts.wait(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            part = parts.pollFirst();
+            position = 0;
+            return true;
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ((part == null || position == part.length) && !nextPart()) {
+            return -1;
+        }
+        return part[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if ((part == null || position == part.length) && !nextPart()) {
+            return -1;
+        }
+        int count = Math.min(len, part.length - position);
+        System.arraycopy(part, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return part != null ? part.length - position : 0;
+    }
+
+    /**
+     * Stop the source and wake the reader, from any thread.
+     */
+    @Override
+    public void close() {
+        synchronized (parts) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            parts.clear();
+            parts.notifyAll();
+        }
+        onClose();
+    }
+
+    /**
+     * Release the threads and connections of the source, once.
+     */
+    abstract void onClose();
+}
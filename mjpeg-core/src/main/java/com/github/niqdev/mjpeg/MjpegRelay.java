@@ -0,0 +1,471 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embeddable HTTP server re-serving cameras to many local clients, for cameras which accept
+ * only a couple of viewers: one upstream connection per camera, opened with the first client
+ * and closed a few seconds after the last one leaves.
+ * <p>
+ * Every client gets the <code>multipart/x-mixed-replace</code> stream of its camera, written
+ * from the buffers of the frames read upstream, shared by all the clients and never copied
+ * nor re-encoded. A slow client skips to the latest frame once done writing the previous one,
+ * so that it holds one frame at most; a client not reading anything for a while is disconnected.
+ * <pre>
+ * MjpegRelay relay = new MjpegRelay()
+ *     .camera("/garage", "http://192.168.1.10/video.mjpg")
+ *     .start(8080);
+ * // other devices on site open http://&lt;this device&gt;:8080/garage
+ * relay.close();
+ * </pre>
+ */
+public class MjpegRelay implements Closeable {
+    private static final String BOUNDARY = "MjpegRelay";
+    private static final byte[] CRLF = {'\r', '\n'};
+    // upstream connection kept after the last client, e.g. across a page reload
+    private static final long LINGER_MILLIS = 5000;
+    private static final long RETRY_MIN_MILLIS = 500;
+    private static final long RETRY_MAX_MILLIS = 10000;
+    // a client blocked this long writing a frame is gone
+    private static final long WRITE_TIMEOUT_MILLIS = 10000;
+    // clients waiting for a frame check the relay is still running at least this often
+    private static final long POLL_MILLIS = 500;
+    // spare frames of a camera, beyond those held by its clients
+    private static final int POOL_SIZE = 4;
+    private static final int SOCKET_BUFFER_SIZE = 8 * 1024;
+    // a client not done sending its request by then is gone
+    private static final int REQUEST_TIMEOUT_MILLIS = 10000;
+
+    private final MjpegClient client;
+    private final Map<String, Camera> cameras = new HashMap<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    // guarded by itself
+    private final Set<Viewer> viewers = new HashSet<>();
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+
+    public MjpegRelay() {
+        this(new MjpegClient());
+    }
+
+    /**
+     * @param client to connect to the cameras with, credentials and cookies included
+     */
+    public MjpegRelay(MjpegClient client) {
+        this.client = client;
+    }
+
+    /**
+     * @param path local path of the camera, e.g. <code>/garage</code>
+     * @param url  of the Mjpeg stream of the camera
+     * @return MjpegRelay instance
+     */
+    public synchronized MjpegRelay camera(String path, String url) {
+        if (running) {
+            throw new IllegalStateException("already started");
+        }
+        cameras.put(path, new Camera(path, url));
+        return this;
+    }
+
+    /**
+     * Listen on a free port of the loopback interface.
+     *
+     * @return MjpegRelay instance
+     * @throws IOException if the server socket cannot be opened
+     */
+    public MjpegRelay start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * Listen on all the interfaces, to serve other devices.
+     *
+     * @param port to listen on, 0 for a free one on the loopback interface
+     * @return MjpegRelay instance
+     * @throws IOException if the server socket cannot be opened
+     */
+    public synchronized MjpegRelay start(int port) throws IOException {
+        if (running) {
+            throw new IllegalStateException("already started");
+        }
+        serverSocket = port == 0
+                ? new ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+                : new ServerSocket(port);
+        running = true;
+        Thread acceptor = new Thread(this::accept, "MjpegRelay-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Thread watchdog = new Thread(this::watch, "MjpegRelay-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+        return this;
+    }
+
+    /**
+     * @return port listened on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @param path of a camera
+     * @return url of the camera on the relay
+     */
+    public String getUrl(String path) {
+        InetAddress address = serverSocket.getInetAddress();
+        if (address.isAnyLocalAddress()) {
+            address = InetAddress.getLoopbackAddress();
+        }
+        return "http://" + address.getHostAddress() + ":" + getPort() + path;
+    }
+
+    /**
+     * @return clients connected, to all the cameras
+     */
+    public int getViewerCount() {
+        synchronized (viewers) {
+            return viewers.size();
+        }
+    }
+
+    /**
+     * @return cameras with an upstream connection open or being opened
+     */
+    public int getUpstreamCount() {
+        int count = 0;
+        for (Camera camera : cameras.values()) {
+            synchronized (camera) {
+                count += camera.upstream != null ? 1 : 0;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stop listening, disconnect the clients and close the upstream connections.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        List<Viewer> open;
+        synchronized (viewers) {
+            open = new ArrayList<>(viewers);
+            viewers.clear();
+        }
+        for (Viewer viewer : open) {
+            viewer.close();
+        }
+        for (Camera camera : cameras.values()) {
+            camera.close();
+        }
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket socket = serverSocket.accept();
+                Viewer viewer = new Viewer(socket);
+                synchronized (viewers) {
+                    viewers.add(viewer);
+                }
+                Thread thread = new Thread(viewer::serve, "MjpegRelay-client-" + connections.getAndIncrement());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    /*
+     * Disconnect the clients stuck in a write, gone without closing their connection.
+     */
+    private void watch() {
+        long timeout = TimeUnit.MILLISECONDS.toNanos(WRITE_TIMEOUT_MILLIS);
+        while (running) {
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            List<Viewer> stuck = new ArrayList<>();
+            long now = System.nanoTime();
+            synchronized (viewers) {
+                for (Viewer viewer : viewers) {
+                    long writeStart = viewer.writeStartNanos;
+                    if (writeStart != 0 && now - writeStart > timeout) {
+                        stuck.add(viewer);
+                    }
+                }
+            }
+            for (Viewer viewer : stuck) {
+                viewer.close();
+            }
+        }
+    }
+
+    /*
+     * A frame read upstream with its part header, shared read-only by the clients.
+     */
+    private static final class Part {
+        final MjpegFrame frame;
+        final byte[] header;
+        final long sequence;
+
+        Part(MjpegFrame frame, long sequence) {
+            this.frame = frame;
+            this.sequence = sequence;
+            StringBuilder header = new StringBuilder(128)
+                    .append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: image/jpeg\r\n")
+                    .append("Content-Length: ").append(frame.getLength()).append("\r\n");
+            long captureTimestamp = frame.getCaptureTimestamp();
+            if (captureTimestamp >= 0) {
+                header.append("X-Timestamp: ").append(captureTimestamp / 1000).append('.')
+                        .append(String.format(Locale.ROOT, "%03d", captureTimestamp % 1000)).append("000\r\n");
+            }
+            this.header = header.append("\r\n").toString().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /*
+     * The upstream connection of a camera and its latest frame. Guarded by itself.
+     */
+    private final class Camera {
+        final String path;
+        final String url;
+        Thread upstream;
+        volatile MjpegInputStream stream;
+        Part latest;
+        long sequence = 0;
+        int viewerCount = 0;
+        long idleSinceNanos;
+
+        Camera(String path, String url) {
+            this.path = path;
+            this.url = url;
+        }
+
+        synchronized void join() {
+            viewerCount++;
+            if (upstream == null) {
+                upstream = new Thread(this::relay, "MjpegRelay-upstream" + path);
+                upstream.setDaemon(true);
+                upstream.start();
+            }
+        }
+
+        synchronized void leave() {
+            if (--viewerCount == 0) {
+                idleSinceNanos = System.nanoTime();
+            }
+        }
+
+        /*
+         * The part newer than the one given, retained for the caller, waiting for it.
+         */
+        synchronized Part next(long after) throws InterruptedException {
+            while (running && (latest == null || latest.sequence == after)) {
+                wait(POLL_MILLIS);
+            }
+            if (!running) {
+                return null;
+            }
+            latest.frame.retain();
+            return latest;
+        }
+
+        /*
+         * Read the camera while it has clients, reconnecting as needed.
+         */
+        private void relay() {
+            long retryMillis = RETRY_MIN_MILLIS;
+            while (!isIdle()) {
+                try {
+                    MjpegInputStream in = client.connect(url);
+                    stream = in;
+                    MjpegFramePool pool = in.newFramePool(POOL_SIZE);
+                    try {
+                        retryMillis = RETRY_MIN_MILLIS;
+                        while (!isIdle()) {
+                            publish(in.readFrame(pool));
+                        }
+                    } finally {
+                        stream = null;
+                        in.close();
+                        pool.close();
+                    }
+                } catch (IOException e) {
+                    try {
+                        Thread.sleep(retryMillis);
+                    } catch (InterruptedException interrupted) {
+                        break;
+                    }
+                    retryMillis = Math.min(retryMillis * 2, RETRY_MAX_MILLIS);
+                }
+            }
+            synchronized (this) {
+                if (upstream == Thread.currentThread()) {
+                    upstream = null;
+                }
+            }
+        }
+
+        /*
+         * True once without clients for the linger time, then the upstream thread exits:
+         * the next client starts a new one.
+         */
+        private synchronized boolean isIdle() {
+            boolean idle = !running || (viewerCount == 0
+                    && System.nanoTime() - idleSinceNanos > TimeUnit.MILLISECONDS.toNanos(LINGER_MILLIS));
+            if (idle && upstream == Thread.currentThread()) {
+                upstream = null;
+                replace(null);
+            }
+            return idle;
+        }
+
+        private synchronized void publish(MjpegFrame frame) {
+            replace(new Part(frame, ++sequence));
+            notifyAll();
+        }
+
+        /*
+         * The reference of the camera moves to the new part, clients release theirs.
+         */
+        private void replace(Part part) {
+            if (latest != null) {
+                latest.frame.release();
+            }
+            latest = part;
+        }
+
+        void close() {
+            MjpegInputStream in = stream;
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // closed anyway
+                }
+            }
+            synchronized (this) {
+                if (upstream != null) {
+                    upstream.interrupt();
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /*
+     * A client connection, writing the parts of its camera as fast as it reads them.
+     */
+    private final class Viewer {
+        final Socket socket;
+        volatile long writeStartNanos = 0;
+
+        Viewer(Socket socket) {
+            this.socket = socket;
+        }
+
+        void serve() {
+            Camera camera = null;
+            try {
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+                InputStream in = socket.getInputStream();
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), SOCKET_BUFFER_SIZE);
+                String request;
+                try {
+                    request = MjpegRequestReader.read(in);
+                } catch (MjpegRequestReader.TooLongException e) {
+                    out.write(("HTTP/1.0 431 Request Header Fields Too Large\r\n"
+                            + "Server: MjpegRelay\r\n"
+                            + "Connection: close\r\n"
+                            + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    return;
+                }
+                // GET /path?query HTTP/1.1
+                String[] requestLine = request.substring(0, request.indexOf('\r')).split(" ");
+                String path = requestLine.length > 1 ? requestLine[1].split("\\?")[0] : "";
+                camera = cameras.get(path);
+                if (camera == null) {
+                    out.write(("HTTP/1.0 404 Not Found\r\n"
+                            + "Server: MjpegRelay\r\n"
+                            + "Connection: close\r\n"
+                            + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    return;
+                }
+                camera.join();
+                out.write(("HTTP/1.0 200 OK\r\n"
+                        + "Server: MjpegRelay\r\n"
+                        + "Connection: close\r\n"
+                        + "Cache-Control: no-cache\r\n"
+                        + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+                        + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                out.flush();
+                long sent = 0;
+                Part part;
+                while ((part = camera.next(sent)) != null) {
+                    sent = part.sequence;
+                    writeStartNanos = System.nanoTime();
+                    try {
+                        out.write(part.header);
+                        // larger than the buffer, straight from the shared frame to the socket
+                        out.write(part.frame.getBytes(), 0, part.frame.getLength());
+                        out.write(CRLF);
+                        out.flush();
+                    } finally {
+                        writeStartNanos = 0;
+                        part.frame.release();
+                    }
+                }
+            } catch (IOException e) {
+                // disconnected by either side
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (camera != null) {
+                    camera.leave();
+                }
+                synchronized (viewers) {
+                    viewers.remove(this);
+                }
+                close();
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // already closed
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketException;
+
+/**
+ * Reader of the requests of the embedded servers, HTTP and RTSP: the request line and the headers,
+ * up to a length, so that a client sending endless headers can't grow the memory of the server.
+ */
+final class MjpegRequestReader {
+
+    static final int MAX_REQUEST_LENGTH = 8 * 1024;
+
+    private MjpegRequestReader() {
+    }
+
+    /**
+     * @return request line and headers, each one ended by CRLF
+     * @throws TooLongException if the headers go on past {@link #MAX_REQUEST_LENGTH}
+     * @throws IOException      if the connection is closed before their end
+     */
+    static String read(InputStream in) throws IOException {
+        return read(in, MAX_REQUEST_LENGTH);
+    }
+
+    /**
+     * @param maxLength of the request line and headers, the empty line included
+     * @return request line and headers, each one ended by CRLF
+     * @throws TooLongException if the headers go on past <code>maxLength</code>
+     * @throws IOException      if the connection is closed before their end
+     */
+    static String read(InputStream in, int maxLength) throws IOException {
+        StringBuilder request = new StringBuilder();
+        int matched = 0;
+        while (matched < 4) {
+            if (request.length() == maxLength) {
+                throw new TooLongException(maxLength);
+            }
+            int b = in.read();
+            if (b == -1) {
+                throw new SocketException("closed before the end of the request");
+            }
+            request.append((char) b);
+            matched = b == (matched % 2 == 0 ? '\r' : '\n') ? matched + 1 : (b == '\r' ? 1 : 0);
+        }
+        return request.substring(0, request.length() - 2);
+    }
+
+    /**
+     * A request longer than the limit, to answer 431 rather than to read to its end.
+     */
+    static final class TooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLongException(int maxLength) {
+            super("request headers longer than " + maxLength + " bytes");
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Reassembles the frames of an RTP/JPEG stream (RFC 2435) from its packets, in any order,
+ * and rebuilds the jpeg headers the packets leave out: quantization tables, either sent
+ * in the first packet of a frame or derived from its quality factor, frame header,
+ * the standard Huffman tables and the restart interval.
+ * <p>
+ * A few frames are assembled at once, so that packets reordered across frames still complete
+ * them. A frame is given up, and counted as lost, when a newer one completes or when it
+ * falls out of the window; packets of frames already given up are dropped.
+ * Not thread-safe, fed by one receiver.
+ */
+final class MjpegRtpDepacketizer {
+    static final int PAYLOAD_TYPE = 26;
+    // frames assembled at once
+    static final int DEFAULT_WINDOW = 3;
+    private static final int RTP_VERSION = 2;
+    private static final int RTP_HEADER_LENGTH = 12;
+    private static final int JPEG_HEADER_LENGTH = 8;
+    private static final int RESTART_HEADER_LENGTH = 4;
+    private static final int QUANT_HEADER_LENGTH = 4;
+    // first quality factor with the tables sent in the stream
+    private static final int Q_INBAND = 128;
+    private static final int MAX_FRAME_LENGTH = 8 * 1024 * 1024;
+
+    private final int payloadType;
+    private final Assembly[] window;
+    private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream(64 * 1024);
+    private boolean started = false;
+    private int lastTimestamp;
+    // tables of the last quality factor from 1 to 99, and of the last ones sent in the stream
+    private int derivedQuality = -1;
+    private byte[] derivedTables;
+    private byte[] inbandTables;
+    private long packetsReceived = 0;
+    private long packetsDropped = 0;
+    private long framesCompleted = 0;
+    private long framesLost = 0;
+
+    /**
+     * @param payloadType of the stream, 26 unless the session description maps another one to JPEG
+     * @param window      frames assembled at once
+     */
+    MjpegRtpDepacketizer(int payloadType, int window) {
+        this.payloadType = payloadType;
+        this.window = new Assembly[Math.max(1, window)];
+        for (int i = 0; i < this.window.length; i++) {
+            this.window[i] = new Assembly();
+        }
+    }
+
+    /**
+     * @param packet RTP packet
+     * @param length of the packet in the array
+     * @return true if the packet completed a frame, then available from {@link #getFrame()}
+     */
+    boolean push(byte[] packet, int length) {
+        packetsReceived++;
+        if (length < RTP_HEADER_LENGTH + JPEG_HEADER_LENGTH
+                || (packet[0] & 0xFF) >> 6 != RTP_VERSION
+                || (packet[1] & 0x7F) != payloadType) {
+            packetsDropped++;
+            return false;
+        }
+        boolean marker = (packet[1] & 0x80) != 0;
+        int timestamp = readInt(packet, 4);
+        int offset = RTP_HEADER_LENGTH + (packet[0] & 0x0F) * 4;
+        if ((packet[0] & 0x20) != 0) {
+            // padding, its length in the last byte
+            length -= packet[length - 1] & 0xFF;
+        }
+        if ((packet[0] & 0x10) != 0 && offset + 4 <= length) {
+            offset += 4 + readShort(packet, offset + 2) * 4;
+        }
+        if (offset + JPEG_HEADER_LENGTH > length) {
+            packetsDropped++;
+            return false;
+        }
+        int fragmentOffset = readInt(packet, offset) & 0xFFFFFF;
+        int type = packet[offset + 4] & 0xFF;
+        int quality = packet[offset + 5] & 0xFF;
+        int width = (packet[offset + 6] & 0xFF) * 8;
+        int height = (packet[offset + 7] & 0xFF) * 8;
+        offset += JPEG_HEADER_LENGTH;
+        int restartInterval = 0;
+        if (type >= 64 && type < 128) {
+            if (offset + RESTART_HEADER_LENGTH > length) {
+                packetsDropped++;
+                return false;
+            }
+            restartInterval = readShort(packet, offset);
+            offset += RESTART_HEADER_LENGTH;
+            type -= 64;
+        }
+        byte[] tables = null;
+        if (quality >= Q_INBAND && fragmentOffset == 0) {
+            if (offset + QUANT_HEADER_LENGTH > length) {
+                packetsDropped++;
+                return false;
+            }
+            int precision = packet[offset + 1] & 0xFF;
+            int tablesLength = readShort(packet, offset + 2);
+            offset += QUANT_HEADER_LENGTH;
+            if (tablesLength > 0) {
+                // 16 bit tables aren't baseline, a luminance table alone serves chrominance too
+                if (precision != 0 || (tablesLength != 64 && tablesLength != 128) || offset + tablesLength > length) {
+                    packetsDropped++;
+                    return false;
+                }
+                tables = new byte[128];
+                System.arraycopy(packet, offset, tables, 0, tablesLength);
+                if (tablesLength == 64) {
+                    System.arraycopy(packet, offset, tables, 64, 64);
+                }
+                offset += tablesLength;
+            }
+        }
+
+        if (started && timestamp - lastTimestamp <= 0) {
+            // late packet of a frame completed or given up
+            packetsDropped++;
+            return false;
+        }
+        Assembly assembly = assemblyOf(timestamp);
+        if (assembly == null || !assembly.add(packet, offset, length - offset, fragmentOffset, marker)) {
+            packetsDropped++;
+            return false;
+        }
+        if (fragmentOffset == 0) {
+            assembly.type = type;
+            assembly.quality = quality;
+            assembly.width = width;
+            assembly.height = height;
+            assembly.restartInterval = restartInterval;
+            if (tables != null) {
+                assembly.tables = tables;
+            }
+        }
+        if (!assembly.isComplete()) {
+            return false;
+        }
+        // frames older than the one completed won't be shown anymore
+        for (Assembly other : window) {
+            if (other.active && other != assembly && other.timestamp - timestamp < 0) {
+                other.reset();
+                framesLost++;
+            }
+        }
+        started = true;
+        lastTimestamp = timestamp;
+        boolean built = build(assembly);
+        assembly.reset();
+        if (built) {
+            framesCompleted++;
+        } else {
+            framesLost++;
+        }
+        return built;
+    }
+
+    /**
+     * @return the jpeg of the last frame completed
+     */
+    byte[] getFrame() {
+        return jpeg.toByteArray();
+    }
+
+    long getPacketsReceived() {
+        return packetsReceived;
+    }
+
+    long getPacketsDropped() {
+        return packetsDropped;
+    }
+
+    long getFramesCompleted() {
+        return framesCompleted;
+    }
+
+    long getFramesLost() {
+        return framesLost;
+    }
+
+    /*
+     * The frame of a timestamp being assembled, or a new one in place of the oldest,
+     * null for a frame older than all those of a full window.
+     */
+    private Assembly assemblyOf(int timestamp) {
+        Assembly free = null;
+        Assembly oldest = null;
+        for (Assembly assembly : window) {
+            if (!assembly.active) {
+                free = free != null ? free : assembly;
+            } else if (assembly.timestamp == timestamp) {
+                return assembly;
+            } else if (oldest == null || assembly.timestamp - oldest.timestamp < 0) {
+                oldest = assembly;
+            }
+        }
+        if (free == null) {
+            if (timestamp - oldest.timestamp < 0) {
+                return null;
+            }
+            oldest.reset();
+            framesLost++;
+            free = oldest;
+        }
+        free.begin(timestamp);
+        return free;
+    }
+
+    /*
+     * Rebuild the jpeg of a complete frame, false if its type or tables aren't known.
+     */
+    private boolean build(Assembly assembly) {
+        // type 0 is 4:2:2, type 1 is 4:2:0, the others aren't defined
+        if (assembly.type > 1 || assembly.width == 0 || assembly.height == 0) {
+            return false;
+        }
+        byte[] tables;
+        if (assembly.quality >= Q_INBAND) {
+            if (assembly.tables != null) {
+                inbandTables = assembly.tables;
+            }
+            // the tables may be sent once for all the frames
+            tables = inbandTables;
+        } else if (assembly.quality > 0 && assembly.quality < 100) {
+            if (assembly.quality != derivedQuality) {
+                derivedTables = JpegEncoder.quantTables(assembly.quality);
+                derivedQuality = assembly.quality;
+            }
+            tables = derivedTables;
+        } else {
+            tables = null;
+        }
+        if (tables == null) {
+            return false;
+        }
+        jpeg.reset();
+        JpegEncoder.writeHeaders(jpeg, assembly.width, assembly.height, tables,
+                assembly.type == 0 ? 0x21 : 0x22, assembly.restartInterval);
+        jpeg.write(assembly.data, 0, assembly.length);
+        if (assembly.length < 2 || assembly.data[assembly.length - 2] != (byte) 0xFF
+                || assembly.data[assembly.length - 1] != (byte) 0xD9) {
+            jpeg.write(0xFF);
+            jpeg.write(0xD9);
+        }
+        return true;
+    }
+
+    private static int readShort(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 8 | b[offset + 1] & 0xFF;
+    }
+
+    private static int readInt(byte[] b, int offset) {
+        return (b[offset] & 0xFF) << 24 | (b[offset + 1] & 0xFF) << 16 | (b[offset + 2] & 0xFF) << 8 | b[offset + 3] & 0xFF;
+    }
+
+    /*
+     * Fragments of a frame, placed at their offsets as they come.
+     */
+    private static final class Assembly {
+        boolean active = false;
+        int timestamp;
+        byte[] data = new byte[64 * 1024];
+        // end of the frame, once the fragment with the marker came
+        int length = -1;
+        int received;
+        // offsets of the fragments received, sorted, to drop duplicates
+        int[] offsets = new int[64];
+        int fragments;
+        int type;
+        int quality;
+        int width;
+        int height;
+        int restartInterval;
+        byte[] tables;
+
+        void begin(int timestamp) {
+            this.active = true;
+            this.timestamp = timestamp;
+        }
+
+        /*
+         * False for a duplicate fragment, or one beyond any frame.
+         */
+        boolean add(byte[] packet, int offset, int count, int fragmentOffset, boolean marker) {
+            int end = fragmentOffset + count;
+            if (count <= 0 || end > MAX_FRAME_LENGTH || (length >= 0 && end > length)) {
+                return false;
+            }
+            int index = Arrays.binarySearch(offsets, 0, fragments, fragmentOffset);
+            if (index >= 0) {
+                return false;
+            }
+            index = -index - 1;
+            if (fragments == offsets.length) {
+                offsets = Arrays.copyOf(offsets, fragments * 2);
+            }
+            System.arraycopy(offsets, index, offsets, index + 1, fragments - index);
+            offsets[index] = fragmentOffset;
+            fragments++;
+            if (end > data.length) {
+                data = Arrays.copyOf(data, Math.max(end, data.length * 2));
+            }
+            System.arraycopy(packet, offset, data, fragmentOffset, count);
+            received += count;
+            if (marker) {
+                length = end;
+            }
+            return true;
+        }
+
+        boolean isComplete() {
+            return length >= 0 && received == length;
+        }
+
+        void reset() {
+            active = false;
+            length = -1;
+            received = 0;
+            fragments = 0;
+            tables = null;
+        }
+    }
+}
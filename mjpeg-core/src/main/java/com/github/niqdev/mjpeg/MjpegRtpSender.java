@@ -0,0 +1,341 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * RTSP session of a {@link MjpegSimulator} connection: answers the requests of a client and,
+ * once playing, sends the frames as RTP/JPEG packets (RFC 2435) over UDP or interleaved in
+ * the connection, dropping or swapping packets at the configured rates.
+ * <p>
+ * The frames keep only their scan data: type 1 (4:2:0) with the standard Huffman tables, as
+ * encoded by {@link JpegEncoder}, the quantization tables derived from the quality factor, or
+ * sent in the first packet of every frame at quality 100. Sizes go in multiples of 8 pixels,
+ * up to 2040, as RTP/JPEG allows.
+ */
+final class MjpegRtpSender {
+    private static final int PAYLOAD_LENGTH = 1400;
+    private static final int RTP_HEADER_LENGTH = 12;
+    private static final int JPEG_HEADER_LENGTH = 8;
+    private static final int QUANT_HEADER_LENGTH = 4;
+    private static final int TYPE_420 = 1;
+    private static final int Q_INBAND = 255;
+    private static final int SESSION_TIMEOUT_SECONDS = 60;
+
+    private final Socket client;
+    private final InputStream in;
+    private final OutputStream out;
+    private final Frame[] frames;
+    private final int fps;
+    private final int quality;
+    private final double lossProbability;
+    private final double reorderProbability;
+    private final Random random;
+    private final BooleanSupplier running;
+    private final int connection;
+    private final int ssrc;
+    private DatagramSocket udp;
+    private InetSocketAddress destination;
+    private int channel = -1;
+    private Thread sender;
+    private volatile boolean playing = false;
+
+    MjpegRtpSender(Socket client, InputStream in, OutputStream out, byte[][] frames, int fps, int quality,
+                   double lossProbability, double reorderProbability, long seed, BooleanSupplier running, int connection) {
+        this.client = client;
+        this.in = in;
+        this.out = out;
+        this.frames = new Frame[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            this.frames[i] = Frame.parse(frames[i]);
+        }
+        this.fps = fps;
+        this.quality = quality;
+        this.lossProbability = lossProbability;
+        this.reorderProbability = reorderProbability;
+        this.random = new Random(seed);
+        this.running = running;
+        this.connection = connection;
+        this.ssrc = random.nextInt();
+    }
+
+    /**
+     * Answer the requests of the connection, until TEARDOWN or until it is closed.
+     *
+     * @param request the first one, already read
+     */
+    void serve(String request) throws IOException {
+        try {
+            while (running.getAsBoolean() && answer(request)) {
+                request = MjpegRequestReader.read(in);
+            }
+        } finally {
+            playing = false;
+            if (sender != null) {
+                sender.interrupt();
+            }
+            if (udp != null) {
+                udp.close();
+            }
+        }
+    }
+
+    /*
+     * False once torn down.
+     */
+    private boolean answer(String request) throws IOException {
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        String method = requestLine[0];
+        String url = requestLine.length > 1 ? requestLine[1] : "";
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0) {
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT), lines[i].substring(colon + 1).trim());
+            }
+        }
+        String cseq = headers.containsKey("cseq") ? headers.get("cseq") : "0";
+        switch (method) {
+            case "OPTIONS":
+            case "GET_PARAMETER":
+                respond(cseq, "Public: OPTIONS, DESCRIBE, SETUP, PLAY, TEARDOWN, GET_PARAMETER\r\n", null);
+                return true;
+            case "DESCRIBE":
+                String sdp = "v=0\r\n"
+                        + "o=- " + connection + " 1 IN IP4 " + client.getLocalAddress().getHostAddress() + "\r\n"
+                        + "s=MjpegSimulator\r\n"
+                        + "t=0 0\r\n"
+                        + "m=video 0 RTP/AVP " + MjpegRtpDepacketizer.PAYLOAD_TYPE + "\r\n"
+                        + "a=framerate:" + fps + "\r\n"
+                        + "a=control:track1\r\n";
+                respond(cseq, "Content-Base: " + (url.endsWith("/") ? url : url + "/") + "\r\n"
+                        + "Content-Type: application/sdp\r\n", sdp);
+                return true;
+            case "SETUP":
+                String transport = headers.containsKey("transport") ? headers.get("transport") : "";
+                if (transport.contains("RTP/AVP/TCP")) {
+                    int[] channels = range(transport, "interleaved=", 0);
+                    channel = channels[0];
+                    transport = "RTP/AVP/TCP;unicast;interleaved=" + channels[0] + "-" + channels[1];
+                } else {
+                    int[] ports = range(transport, "client_port=", -1);
+                    if (ports[0] < 0) {
+                        respond(cseq, null, null, "461 Unsupported Transport");
+                        return true;
+                    }
+                    udp = new DatagramSocket();
+                    destination = new InetSocketAddress(client.getInetAddress(), ports[0]);
+                    transport = "RTP/AVP;unicast;client_port=" + ports[0] + "-" + ports[1]
+                            + ";server_port=" + udp.getLocalPort() + "-" + (udp.getLocalPort() + 1);
+                }
+                respond(cseq, "Transport: " + transport + "\r\n"
+                        + "Session: " + sessionId() + ";timeout=" + SESSION_TIMEOUT_SECONDS + "\r\n", null);
+                return true;
+            case "PLAY":
+                respond(cseq, "Session: " + sessionId() + "\r\n", null);
+                if (!playing) {
+                    playing = true;
+                    sender = new Thread(this::send, "MjpegSimulator-rtp-" + connection);
+                    sender.setDaemon(true);
+                    sender.start();
+                }
+                return true;
+            case "TEARDOWN":
+                playing = false;
+                respond(cseq, null, null);
+                return false;
+            default:
+                respond(cseq, null, null, "501 Not Implemented");
+                return true;
+        }
+    }
+
+    private String sessionId() {
+        return Integer.toHexString(ssrc);
+    }
+
+    private void respond(String cseq, String headers, String body) throws IOException {
+        respond(cseq, headers, body, "200 OK");
+    }
+
+    private void respond(String cseq, String headers, String body, String status) throws IOException {
+        byte[] content = body != null ? body.getBytes(StandardCharsets.US_ASCII) : new byte[0];
+        String response = "RTSP/1.0 " + status + "\r\n"
+                + "CSeq: " + cseq + "\r\n"
+                + "Server: MjpegSimulator\r\n"
+                + (headers != null ? headers : "")
+                + (content.length > 0 ? "Content-Length: " + content.length + "\r\n" : "")
+                + "\r\n";
+        synchronized (out) {
+            out.write(response.getBytes(StandardCharsets.US_ASCII));
+            out.write(content);
+            out.flush();
+        }
+    }
+
+    /*
+     * The two numbers of a transport parameter, e.g. client_port=5000-5001.
+     */
+    private static int[] range(String transport, String name, int missing) {
+        int index = transport.indexOf(name);
+        if (index < 0) {
+            return new int[]{missing, missing + 1};
+        }
+        String[] values = transport.substring(index + name.length()).split(";")[0].split("-");
+        int first = Integer.parseInt(values[0].trim());
+        return new int[]{first, values.length > 1 ? Integer.parseInt(values[1].trim()) : first + 1};
+    }
+
+    private void send() {
+        long period = TimeUnit.SECONDS.toNanos(1) / fps;
+        long next = System.nanoTime();
+        int index = connection * 7;
+        int sequence = random.nextInt(0x10000);
+        byte[] packet = new byte[RTP_HEADER_LENGTH + JPEG_HEADER_LENGTH + QUANT_HEADER_LENGTH + 128 + PAYLOAD_LENGTH];
+        byte[] held = new byte[packet.length];
+        int heldLength = 0;
+        try {
+            while (playing && running.getAsBoolean()) {
+                long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                next = Math.max(next + period, System.nanoTime());
+                Frame frame = frames[index++ % frames.length];
+                // 90 kHz clock
+                int timestamp = (int) (TimeUnit.NANOSECONDS.toMicros(System.nanoTime()) * 9 / 100);
+                for (int offset = 0; offset < frame.scanLength; ) {
+                    int length = RTP_HEADER_LENGTH;
+                    int count = Math.min(PAYLOAD_LENGTH, frame.scanLength - offset);
+                    boolean last = offset + count == frame.scanLength;
+                    packet[0] = (byte) 0x80;
+                    packet[1] = (byte) ((last ? 0x80 : 0) | MjpegRtpDepacketizer.PAYLOAD_TYPE);
+                    writeShort(packet, 2, sequence++);
+                    writeInt(packet, 4, timestamp);
+                    writeInt(packet, 8, ssrc);
+                    boolean inband = quality < 1 || quality > 99;
+                    writeInt(packet, length, offset);
+                    packet[length + 4] = TYPE_420;
+                    packet[length + 5] = (byte) (inband ? Q_INBAND : quality);
+                    packet[length + 6] = (byte) Math.min(255, frame.width / 8);
+                    packet[length + 7] = (byte) Math.min(255, frame.height / 8);
+                    length += JPEG_HEADER_LENGTH;
+                    if (inband && offset == 0) {
+                        packet[length] = 0;
+                        packet[length + 1] = 0;
+                        writeShort(packet, length + 2, frame.tables.length);
+                        length += QUANT_HEADER_LENGTH;
+                        System.arraycopy(frame.tables, 0, packet, length, frame.tables.length);
+                        length += frame.tables.length;
+                    }
+                    System.arraycopy(frame.jpeg, frame.scanOffset + offset, packet, length, count);
+                    length += count;
+                    offset += count;
+
+                    if (lossProbability > 0 && random.nextDouble() < lossProbability) {
+                        continue;
+                    }
+                    if (heldLength == 0 && !last && reorderProbability > 0 && random.nextDouble() < reorderProbability) {
+                        // sent after the next one
+                        System.arraycopy(packet, 0, held, 0, length);
+                        heldLength = length;
+                        continue;
+                    }
+                    sendPacket(packet, length);
+                    if (heldLength > 0) {
+                        sendPacket(held, heldLength);
+                        heldLength = 0;
+                    }
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // torn down or disconnected
+        }
+    }
+
+    private void sendPacket(byte[] packet, int length) throws IOException {
+        if (udp != null) {
+            udp.send(new DatagramPacket(packet, length, destination));
+            return;
+        }
+        synchronized (out) {
+            out.write('$');
+            out.write(channel);
+            out.write(length >> 8);
+            out.write(length & 0xFF);
+            out.write(packet, 0, length);
+            out.flush();
+        }
+    }
+
+    private static void writeShort(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 8);
+        b[offset + 1] = (byte) value;
+    }
+
+    private static void writeInt(byte[] b, int offset, int value) {
+        b[offset] = (byte) (value >> 24);
+        b[offset + 1] = (byte) (value >> 16);
+        b[offset + 2] = (byte) (value >> 8);
+        b[offset + 3] = (byte) value;
+    }
+
+    /*
+     * What RTP/JPEG keeps of a frame of the encoder: size, quantization tables and scan data.
+     */
+    private static final class Frame {
+        final byte[] jpeg;
+        final int width;
+        final int height;
+        final byte[] tables;
+        final int scanOffset;
+        final int scanLength;
+
+        private Frame(byte[] jpeg, int width, int height, byte[] tables, int scanOffset, int scanLength) {
+            this.jpeg = jpeg;
+            this.width = width;
+            this.height = height;
+            this.tables = tables;
+            this.scanOffset = scanOffset;
+            this.scanLength = scanLength;
+        }
+
+        static Frame parse(byte[] jpeg) {
+            int width = 0;
+            int height = 0;
+            byte[] tables = new byte[128];
+            int offset = 2;
+            while (offset + 4 <= jpeg.length) {
+                int marker = jpeg[offset + 1] & 0xFF;
+                int length = (jpeg[offset + 2] & 0xFF) << 8 | jpeg[offset + 3] & 0xFF;
+                if (marker == 0xDB) {
+                    // one 8 bit table per segment, as the encoder writes them
+                    int id = jpeg[offset + 4] & 0x0F;
+                    System.arraycopy(jpeg, offset + 5, tables, id * 64, 64);
+                } else if (marker == 0xC0) {
+                    height = (jpeg[offset + 5] & 0xFF) << 8 | jpeg[offset + 6] & 0xFF;
+                    width = (jpeg[offset + 7] & 0xFF) << 8 | jpeg[offset + 8] & 0xFF;
+                } else if (marker == 0xDA) {
+                    int scanOffset = offset + 2 + length;
+                    // up to EOI
+                    return new Frame(jpeg, width, height, tables, scanOffset, jpeg.length - 2 - scanOffset);
+                }
+                offset += 2 + length;
+            }
+            throw new IllegalArgumentException("no scan in the frame");
+        }
+    }
+}
@@ -0,0 +1,530 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multipart stream of the frames of an RTP/JPEG camera, so that {@link MjpegInputStream} and
+ * everything downstream play it as any other stream.
+ * <p>
+ * A minimal RTSP client: DESCRIBE, SETUP of the first JPEG video track, over UDP or interleaved
+ * in the RTSP connection, PLAY, OPTIONS to keep the session alive and TEARDOWN on close,
+ * with Basic or Digest authentication. The packets are reassembled by a {@link MjpegRtpDepacketizer};
+ * frames lost on the way are counted as discarded in the metrics.
+ */
+final class MjpegRtspStream extends MjpegPartStream {
+    static final int DEFAULT_PORT = 554;
+    private static final String BOUNDARY = "MjpegRtsp";
+    private static final int TIMEOUT_MILLIS = 10000;
+    // the receiver checks the stream is still open, and the session alive, at least this often
+    private static final int POLL_MILLIS = 500;
+    private static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 60;
+    private static final int MAX_PACKET_LENGTH = 65536;
+    private static final int MAX_BODY_LENGTH = 64 * 1024;
+    // pairs of UDP ports tried, the other port of a free one may be taken
+    private static final int MAX_PORT_ATTEMPTS = 16;
+
+    private final String url;
+    private final boolean interleaved;
+    private final MjpegMetrics metrics;
+    private final Socket control;
+    private final InputStream controlIn;
+    private final OutputStream controlOut;
+    private final String username;
+    private final String password;
+    private DatagramSocket rtp;
+    // open so that the reports of the camera aren't answered port unreachable, never read otherwise
+    private DatagramSocket rtcp;
+    private MjpegRtpDepacketizer depacketizer;
+    private int rtpChannel = 0;
+    private int cseq = 0;
+    private String session;
+    private long keepaliveNanos = TimeUnit.SECONDS.toNanos(DEFAULT_SESSION_TIMEOUT_SECONDS / 2);
+    private String authorizationScheme;
+    private String realm;
+    private String nonce;
+
+    /**
+     * Set up and play the session, blocking until the camera answers PLAY.
+     *
+     * @param url         of the camera, <code>rtsp://[user:password@]host[:port]/path</code>
+     * @param interleaved true to receive the packets in the RTSP connection, through NAT and firewalls,
+     *                    false for UDP
+     * @param metrics     counting the frames lost
+     * @throws IOException if the connection, or the session setup, fails
+     */
+    MjpegRtspStream(String url, boolean interleaved, MjpegMetrics metrics) throws IOException {
+        super(BOUNDARY);
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new IOException("invalid url " + url, e);
+        }
+        if (!"rtsp".equalsIgnoreCase(uri.getScheme()) || uri.getHost() == null) {
+            throw new IOException("not an rtsp url " + url);
+        }
+        String userInfo = uri.getUserInfo();
+        int separator = userInfo != null ? userInfo.indexOf(':') : -1;
+        if (separator >= 0) {
+            this.username = userInfo.substring(0, separator);
+            this.password = userInfo.substring(separator + 1);
+        } else {
+            // the credential of the client, if any
+            PasswordAuthentication authentication = Authenticator.requestPasswordAuthentication(
+                    uri.getHost(), null, uri.getPort(), "rtsp", null, "basic");
+            this.username = authentication != null ? authentication.getUserName() : null;
+            this.password = authentication != null ? new String(authentication.getPassword()) : null;
+        }
+        int port = uri.getPort() > 0 ? uri.getPort() : DEFAULT_PORT;
+        this.url = "rtsp://" + uri.getHost() + ":" + port + (uri.getRawPath() != null ? uri.getRawPath() : "")
+                + (uri.getRawQuery() != null ? "?" + uri.getRawQuery() : "");
+        this.interleaved = interleaved;
+        this.metrics = metrics;
+        this.control = new Socket();
+        try {
+            control.connect(new InetSocketAddress(uri.getHost(), port), TIMEOUT_MILLIS);
+            control.setSoTimeout(TIMEOUT_MILLIS);
+            control.setTcpNoDelay(true);
+            this.controlIn = new BufferedInputStream(control.getInputStream());
+            this.controlOut = control.getOutputStream();
+            setUp();
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+        Thread receiver = new Thread(this::receive, "MjpegRtsp");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    private void setUp() throws IOException {
+        Response describe = request("DESCRIBE", url, "Accept: application/sdp\r\n");
+        String base = describe.headers.get("content-base");
+        if (base == null) {
+            base = describe.headers.get("content-location");
+        }
+        if (base == null) {
+            base = url;
+        }
+        Track track = Track.parse(describe.body, base);
+        depacketizer = new MjpegRtpDepacketizer(track.payloadType, MjpegRtpDepacketizer.DEFAULT_WINDOW);
+
+        String transport;
+        if (interleaved) {
+            transport = "RTP/AVP/TCP;unicast;interleaved=0-1";
+        } else {
+            bindPorts();
+            rtp.setReceiveBufferSize(1024 * 1024);
+            rtp.setSoTimeout(POLL_MILLIS);
+            rtcp.setSoTimeout(1);
+            int rtpPort = rtp.getLocalPort();
+            transport = "RTP/AVP;unicast;client_port=" + rtpPort + "-" + (rtpPort + 1);
+        }
+        Response setup = request("SETUP", track.url, "Transport: " + transport + "\r\n");
+        String sessionHeader = setup.headers.get("session");
+        if (sessionHeader == null) {
+            throw new IOException("no session from " + url);
+        }
+        String[] sessionParameters = sessionHeader.split(";");
+        session = sessionParameters[0].trim();
+        for (String parameter : sessionParameters) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("timeout=")) {
+                int seconds = parseInt(parameter.substring("timeout=".length()), "session timeout");
+                keepaliveNanos = TimeUnit.SECONDS.toNanos(Math.max(2, seconds)) / 2;
+            }
+        }
+        String serverTransport = setup.headers.get("transport");
+        if (interleaved && serverTransport != null) {
+            int index = serverTransport.indexOf("interleaved=");
+            if (index >= 0) {
+                String channels = serverTransport.substring(index + "interleaved=".length());
+                rtpChannel = parseInt(channels.split("[-;]")[0], "interleaved channel");
+            }
+        }
+        // the aggregate control of the session
+        request("PLAY", base, "Range: npt=0.000-\r\n");
+    }
+
+    /*
+     * RTP on an even port and RTCP on the next one, as cameras expect (RFC 3550).
+     */
+    private void bindPorts() throws IOException {
+        for (int attempt = 0; attempt < MAX_PORT_ATTEMPTS; attempt++) {
+            DatagramSocket free = new DatagramSocket();
+            int port = free.getLocalPort();
+            try {
+                if (port % 2 == 0) {
+                    rtcp = new DatagramSocket(port + 1);
+                    rtp = free;
+                } else {
+                    rtp = new DatagramSocket(port - 1);
+                    rtcp = free;
+                }
+                return;
+            } catch (SocketException e) {
+                // the other port of the pair is taken
+                free.close();
+            }
+        }
+        throw new IOException("no pair of free UDP ports for RTP and RTCP");
+    }
+
+    /*
+     * Discard the reports received, without waiting for more.
+     */
+    private void drainRtcp(DatagramPacket datagram) throws IOException {
+        try {
+            while (true) {
+                rtcp.receive(datagram);
+            }
+        } catch (SocketTimeoutException e) {
+            // drained
+        }
+    }
+
+    private void receive() {
+        byte[] buffer = new byte[MAX_PACKET_LENGTH];
+        DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+        long nextKeepalive = System.nanoTime() + keepaliveNanos;
+        long lastPacket = System.nanoTime();
+        long nextDrain = System.nanoTime();
+        long lost = 0;
+        try {
+            while (!isClosed()) {
+                int length = -1;
+                if (interleaved) {
+                    length = readInterleaved(buffer);
+                } else {
+                    try {
+                        rtp.receive(datagram);
+                        if (datagram.getAddress().equals(control.getInetAddress())) {
+                            length = datagram.getLength();
+                        }
+                    } catch (SocketTimeoutException e) {
+                        // nothing yet, the keepalive and the timeout are checked below
+                    }
+                }
+                long now = System.nanoTime();
+                if (length >= 0) {
+                    lastPacket = now;
+                    if (depacketizer.push(buffer, length)) {
+                        byte[] jpeg = depacketizer.getFrame();
+                        queue(jpeg, jpeg.length);
+                    }
+                    for (; lost < depacketizer.getFramesLost(); lost++) {
+                        metrics.onFrameDiscarded(0);
+                    }
+                } else if (now - lastPacket > TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS)) {
+                    throw new SocketTimeoutException("no RTP packet from " + url + " for " + TIMEOUT_MILLIS + " ms");
+                }
+                if (rtcp != null && now - nextDrain > 0) {
+                    nextDrain = now + TimeUnit.MILLISECONDS.toNanos(POLL_MILLIS);
+                    drainRtcp(datagram);
+                }
+                if (now - nextKeepalive > 0) {
+                    nextKeepalive = now + keepaliveNanos;
+                    keepalive();
+                }
+            }
+        } catch (IOException e) {
+            if (!isClosed()) {
+                fail(e);
+            }
+        }
+    }
+
+    /*
+     * The next packet of the RTP channel, -1 for one of another channel or for an RTSP response.
+     */
+    private int readInterleaved(byte[] buffer) throws IOException {
+        int first = controlIn.read();
+        if (first == -1) {
+            throw new IOException("connection closed by " + url);
+        }
+        if (first != '$') {
+            // a response to a keepalive, its status line begins with the byte read
+            readResponse(Character.toString((char) first));
+            return -1;
+        }
+        int channel = controlIn.read();
+        int length = controlIn.read() << 8 | controlIn.read();
+        if (channel < 0 || length < 0) {
+            throw new IOException("connection closed by " + url);
+        }
+        readFully(controlIn, buffer, length);
+        return channel == rtpChannel ? length : -1;
+    }
+
+    /*
+     * OPTIONS in the session, the camera tears it down otherwise: over UDP nothing else tells it the
+     * client is still there. Over TCP the response is read by the receiver among the packets.
+     */
+    private void keepalive() throws IOException {
+        if (interleaved) {
+            send("OPTIONS", url, "");
+        } else {
+            request("OPTIONS", url, "");
+        }
+    }
+
+    /*
+     * Send a request and read its response, authenticating once if the camera asks for it.
+     */
+    private Response request(String method, String requestUrl, String headers) throws IOException {
+        send(method, requestUrl, headers);
+        Response response = readResponse("");
+        if (response.status == 401 && username != null && authorizationScheme == null) {
+            authenticate(response.headers.get("www-authenticate"));
+            send(method, requestUrl, headers);
+            response = readResponse("");
+        }
+        if (response.status != 200) {
+            throw new IOException("RTSP " + response.status + " to " + method + " " + requestUrl);
+        }
+        return response;
+    }
+
+    private void send(String method, String requestUrl, String headers) throws IOException {
+        synchronized (controlOut) {
+            StringBuilder request = new StringBuilder()
+                    .append(method).append(' ').append(requestUrl).append(" RTSP/1.0\r\n")
+                    .append("CSeq: ").append(++cseq).append("\r\n")
+                    .append("User-Agent: ipcam-view\r\n");
+            if (session != null) {
+                request.append("Session: ").append(session).append("\r\n");
+            }
+            String authorization = authorization(method, requestUrl);
+            if (authorization != null) {
+                request.append("Authorization: ").append(authorization).append("\r\n");
+            }
+            request.append(headers).append("\r\n");
+            controlOut.write(request.toString().getBytes(StandardCharsets.US_ASCII));
+            controlOut.flush();
+        }
+    }
+
+    /*
+     * Status, headers with lowercase names, and body of the next response.
+     */
+    private Response readResponse(String prefix) throws IOException {
+        String statusLine = prefix + readLine(controlIn);
+        String[] status = statusLine.split(" ");
+        if (status.length < 2 || !status[0].startsWith("RTSP/")) {
+            throw new IOException("unexpected response from " + url + ": " + statusLine);
+        }
+        Response response = new Response(parseInt(status[1], "status"));
+        String line;
+        while (!(line = readLine(controlIn)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                response.headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        String contentLength = response.headers.get("content-length");
+        int length = contentLength != null ? parseInt(contentLength, "content length") : 0;
+        if (length < 0 || length > MAX_BODY_LENGTH) {
+            throw new IOException("response body of " + length + " bytes from " + url);
+        }
+        byte[] body = new byte[length];
+        readFully(controlIn, body, length);
+        response.body = new String(body, StandardCharsets.UTF_8);
+        return response;
+    }
+
+    private void authenticate(String challenge) throws IOException {
+        if (challenge == null) {
+            throw new IOException("RTSP 401 without a challenge from " + url);
+        }
+        if (challenge.regionMatches(true, 0, "Digest", 0, 6)) {
+            authorizationScheme = "Digest";
+            realm = parameter(challenge, "realm");
+            nonce = parameter(challenge, "nonce");
+        } else {
+            authorizationScheme = "Basic";
+        }
+    }
+
+    private String authorization(String method, String requestUrl) throws IOException {
+        if (authorizationScheme == null) {
+            return null;
+        }
+        if ("Basic".equals(authorizationScheme)) {
+            return "Basic " + Base64.getEncoder().encodeToString(
+                    (username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        }
+        String ha1 = md5(username + ":" + realm + ":" + password);
+        String ha2 = md5(method + ":" + requestUrl);
+        return "Digest username=\"" + username + "\", realm=\"" + realm + "\", nonce=\"" + nonce
+                + "\", uri=\"" + requestUrl + "\", response=\"" + md5(ha1 + ":" + nonce + ":" + ha2) + "\"";
+    }
+
+    private static String parameter(String challenge, String name) {
+        int index = challenge.indexOf(name + "=\"");
+        if (index < 0) {
+            return "";
+        }
+        int start = index + name.length() + 2;
+        int end = challenge.indexOf('"', start);
+        return end > start ? challenge.substring(start, end) : "";
+    }
+
+    private static String md5(String value) throws IOException {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(32);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /*
+     * A number of a response, malformed ones fail like the rest of a broken response.
+     */
+    private static int parseInt(String value, String name) throws IOException {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("invalid " + name + " " + value, e);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) {
+                throw new IOException("connection closed in a response");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return new String(line.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private static void readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        for (int count = 0; count < length; ) {
+            int read = in.read(buffer, count, length - count);
+            if (read == -1) {
+                throw new IOException("connection closed in a packet");
+            }
+            count += read;
+        }
+    }
+
+    /**
+     * Tear down the session and close the sockets.
+     */
+    @Override
+    void onClose() {
+        if (controlOut != null && session != null) {
+            try {
+                send("TEARDOWN", url, "");
+            } catch (IOException e) {
+                // the camera times the session out
+            }
+        }
+        try {
+            control.close();
+        } catch (IOException e) {
+            // closed anyway
+        }
+        if (rtp != null) {
+            rtp.close();
+        }
+        if (rtcp != null) {
+            rtcp.close();
+        }
+    }
+
+    private static final class Response {
+        final int status;
+        final Map<String, String> headers = new HashMap<>();
+        String body = "";
+
+        Response(int status) {
+            this.status = status;
+        }
+    }
+
+    /*
+     * The JPEG video track of a session description.
+     */
+    private static final class Track {
+        final String url;
+        final int payloadType;
+
+        private Track(String url, int payloadType) {
+            this.url = url;
+            this.payloadType = payloadType;
+        }
+
+        static Track parse(String sdp, String base) throws IOException {
+            int payloadType = -1;
+            String control = null;
+            boolean video = false;
+            for (String line : sdp.split("\r?\n")) {
+                if (line.startsWith("m=")) {
+                    if (payloadType >= 0) {
+                        break;
+                    }
+                    video = false;
+                    control = null;
+                    String[] media = line.substring(2).split(" ");
+                    if ("video".equals(media[0])) {
+                        for (int i = 3; i < media.length; i++) {
+                            if (String.valueOf(MjpegRtpDepacketizer.PAYLOAD_TYPE).equals(media[i])) {
+                                payloadType = MjpegRtpDepacketizer.PAYLOAD_TYPE;
+                            }
+                        }
+                        video = true;
+                    }
+                } else if (video && line.startsWith("a=rtpmap:") && line.toUpperCase(Locale.ROOT).contains(" JPEG/")) {
+                    // a dynamic payload type mapped to JPEG
+                    payloadType = parseInt(line.substring("a=rtpmap:".length(), line.indexOf(' ')), "payload type");
+                } else if (video && line.startsWith("a=control:")) {
+                    control = line.substring("a=control:".length()).trim();
+                }
+            }
+            if (payloadType < 0) {
+                throw new IOException("no JPEG video track in the session description");
+            }
+            String url;
+            if (control == null || "*".equals(control)) {
+                url = base;
+            } else if (control.regionMatches(true, 0, "rtsp://", 0, 7)) {
+                url = control;
+            } else {
+                url = base + (base.endsWith("/") ? "" : "/") + control;
+            }
+            return new Track(url, payloadType);
+        }
+    }
+}
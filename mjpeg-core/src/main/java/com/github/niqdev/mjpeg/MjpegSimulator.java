@@ -0,0 +1,575 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Embeddable HTTP server of <code>multipart/x-mixed-replace</code> streams, standing in for
+ * as many cameras as there are connections, in tests, benchmarks or a demo app.
+ * <p>
+ * Every connection gets its own stream, paced at the configured frame rate, with optional
+ * jitter, stalls, disconnects and header quirks. Requests for a <code>.jpg</code> path get a
+ * single frame instead, on a keep-alive connection, as from the snapshot url of a camera. Each frame embeds its capture time in a comment
+ * segment right after the start of the jpeg, see {@link #readTimestamp(byte[], int)},
+ * to measure latency. RTSP requests get an RTP/JPEG session of the same frames, without the comment.
+ * Frames are encoded once on {@link #start()} and only the headers change at every send.
+ * <pre>
+ * MjpegSimulator simulator = new MjpegSimulator().size(640, 360).fps(15).jitter(20).start();
+ * new MjpegClient().open(simulator.getUrl())...
+ * simulator.close();
+ * </pre>
+ */
+public class MjpegSimulator implements Closeable {
+
+    /**
+     * Prefix of the comment segment with the capture time, in milliseconds since the epoch.
+     */
+    public static final String TIMESTAMP_COMMENT = MjpegHeaders.TIMESTAMP_COMMENT;
+
+    private static final String BOUNDARY = "MjpegSimulator";
+    private static final int MAX_SEGMENT_LENGTH = 0xFFFF - 2;
+    private static final int SOCKET_BUFFER_SIZE = 64 * 1024;
+
+    private int width = 640;
+    private int height = 480;
+    private int fps = 15;
+    private int quality = 75;
+    private int distinctFrames = 15;
+    private int meanFrameSize = 0;
+    private int frameSizeDeviation = 0;
+    private boolean contentLength = true;
+    private boolean timestampHeader = false;
+    private int headerPadding = 0;
+    private int jitterMillis = 0;
+    private int latencyMillis = 0;
+    private double stallProbability = 0;
+    private int stallMillis = 0;
+    private double disconnectProbability = 0;
+    private double packetLossProbability = 0;
+    private double reorderProbability = 0;
+    private long seed = 0;
+
+    private final AtomicInteger connections = new AtomicInteger();
+    private final Set<Socket> clients = new HashSet<>();
+    private volatile boolean running;
+    private ServerSocket serverSocket;
+    private byte[][] frames;
+
+    public MjpegSimulator() {
+    }
+
+    /**
+     * @param width  of the frames
+     * @param height of the frames
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator size(int width, int height) {
+        this.width = width;
+        this.height = height;
+        return this;
+    }
+
+    /**
+     * @param fps frames per second of each stream
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator fps(int fps) {
+        this.fps = Math.max(1, fps);
+        return this;
+    }
+
+    /**
+     * @param quality jpeg quality, 1..100
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator quality(int quality) {
+        this.quality = quality;
+        return this;
+    }
+
+    /**
+     * @param distinctFrames frames encoded on start and sent in a loop, the animation period
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator distinctFrames(int distinctFrames) {
+        this.distinctFrames = Math.max(1, distinctFrames);
+        return this;
+    }
+
+    /**
+     * Pad the frames with comment segments to normally distributed sizes,
+     * frames never get smaller than encoded.
+     *
+     * @param mean      size in bytes, 0 not to pad
+     * @param deviation standard deviation in bytes
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator frameSize(int mean, int deviation) {
+        this.meanFrameSize = mean;
+        this.frameSizeDeviation = deviation;
+        return this;
+    }
+
+    /**
+     * Leave out the Content-Length header, as some cameras do,
+     * the client has to find the end of the jpeg itself.
+     *
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator noContentLength() {
+        this.contentLength = false;
+        return this;
+    }
+
+    /**
+     * Send the capture time as an <code>X-Timestamp</code> header too, in seconds
+     * with a fraction as mjpg-streamer does.
+     *
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator timestampHeader() {
+        this.timestampHeader = true;
+        return this;
+    }
+
+    /**
+     * Add a header of the given length to every part.
+     *
+     * @param length characters of the value of an <code>X-Padding</code> header
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator headerPadding(int length) {
+        this.headerPadding = length;
+        return this;
+    }
+
+    /**
+     * @param maxMillis each frame is sent late by a uniformly random delay up to this after its capture
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator jitter(int maxMillis) {
+        this.jitterMillis = maxMillis;
+        return this;
+    }
+
+    /**
+     * @param millis each snapshot is answered after this delay, plus the jitter
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator latency(int millis) {
+        this.latencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param probability of a stall before each frame
+     * @param millis      duration of a stall
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator stalls(double probability, int millis) {
+        this.stallProbability = probability;
+        this.stallMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param probability of closing the connection halfway through each frame
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator disconnects(double probability) {
+        this.disconnectProbability = probability;
+        return this;
+    }
+
+    /**
+     * @param probability of dropping each RTP packet
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator packetLoss(double probability) {
+        this.packetLossProbability = probability;
+        return this;
+    }
+
+    /**
+     * @param probability of sending each RTP packet after the next one
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator reordering(double probability) {
+        this.reorderProbability = probability;
+        return this;
+    }
+
+    /**
+     * @param seed of the frames and of the random delays, sizes and disconnects
+     * @return MjpegSimulator instance
+     */
+    public MjpegSimulator seed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    /**
+     * Encode the frames and listen on a free port of the loopback interface.
+     *
+     * @return MjpegSimulator instance
+     * @throws IOException if the server socket cannot be opened
+     */
+    public MjpegSimulator start() throws IOException {
+        return start(0);
+    }
+
+    /**
+     * Encode the frames and listen on all the interfaces,
+     * e.g. to serve other devices too.
+     *
+     * @param port to listen on, 0 for a free one on the loopback interface
+     * @return MjpegSimulator instance
+     * @throws IOException if the server socket cannot be opened
+     */
+    public synchronized MjpegSimulator start(int port) throws IOException {
+        if (running) {
+            throw new IllegalStateException("already started");
+        }
+        frames = encodeFrames();
+        serverSocket = port == 0
+                ? new ServerSocket(0, 50, InetAddress.getLoopbackAddress())
+                : new ServerSocket(port);
+        running = true;
+        Thread acceptor = new Thread(this::accept, "MjpegSimulator-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return this;
+    }
+
+    /**
+     * @return port listened on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return url of the stream, any path but a <code>.jpg</code> one serves the same stream
+     */
+    public String getUrl() {
+        return getBaseUrl() + "/video.mjpg";
+    }
+
+    /**
+     * @return url of a single frame, the next one at every request
+     */
+    public String getSnapshotUrl() {
+        return getBaseUrl() + "/snapshot.jpg";
+    }
+
+    /**
+     * @return url of an RTSP session of RTP/JPEG packets, on the same port
+     */
+    public String getRtspUrl() {
+        return getBaseUrl("rtsp") + "/video";
+    }
+
+    private String getBaseUrl() {
+        return getBaseUrl("http");
+    }
+
+    private String getBaseUrl(String scheme) {
+        InetAddress address = serverSocket.getInetAddress();
+        if (address.isAnyLocalAddress()) {
+            address = InetAddress.getLoopbackAddress();
+        }
+        return scheme + "://" + address.getHostAddress() + ":" + getPort();
+    }
+
+    /**
+     * @return connections accepted so far
+     */
+    public int getConnectionCount() {
+        return connections.get();
+    }
+
+    /**
+     * @return connections still open, a client closing its stream is noticed at the next frame sent
+     */
+    public int getOpenConnectionCount() {
+        synchronized (clients) {
+            return clients.size();
+        }
+    }
+
+    /**
+     * Stop listening and close all the connections.
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        synchronized (clients) {
+            for (Socket client : clients) {
+                closeQuietly(client);
+            }
+            clients.clear();
+        }
+    }
+
+    /**
+     * Capture time of a frame of this simulator.
+     *
+     * @param jpeg   frame
+     * @param length of the frame
+     * @return milliseconds since the epoch, -1 if not a frame of this simulator
+     */
+    public static long readTimestamp(byte[] jpeg, int length) {
+        return MjpegHeaders.commentTimestamp(jpeg, length);
+    }
+
+    private byte[][] encodeFrames() {
+        JpegEncoder encoder = new JpegEncoder(quality);
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        byte[][] encoded = new byte[distinctFrames][];
+        for (int i = 0; i < distinctFrames; i++) {
+            drawFrame(pixels, i, random);
+            encoded[i] = encoder.encode(pixels, width, height);
+        }
+        return encoded;
+    }
+
+    /*
+     * A static gradient background, a bar sweeping across it once per loop and some noise,
+     * so that consecutive frames differ a little as in a real scene.
+     */
+    private void drawFrame(int[] pixels, int index, Random random) {
+        int barLeft = (int) ((long) index * width / distinctFrames);
+        int barWidth = Math.max(8, width / 16);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / Math.max(1, width - 1);
+                int g = y * 255 / Math.max(1, height - 1);
+                int b = 128;
+                if (x >= barLeft && x < barLeft + barWidth) {
+                    r = g = b = 240;
+                }
+                int noise = random.nextInt(16) - 8;
+                pixels[y * width + x] = 0xFF000000
+                        | clamp(r + noise) << 16 | clamp(g + noise) << 8 | clamp(b + noise);
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private void accept() {
+        while (running) {
+            try {
+                Socket client = serverSocket.accept();
+                int connection = connections.getAndIncrement();
+                synchronized (clients) {
+                    clients.add(client);
+                }
+                Thread streamer = new Thread(() -> serve(client, connection), "MjpegSimulator-client-" + connection);
+                streamer.setDaemon(true);
+                streamer.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void serve(Socket client, int connection) {
+        try {
+            client.setTcpNoDelay(true);
+            InputStream in = client.getInputStream();
+            String request = MjpegRequestReader.read(in);
+            OutputStream out = new BufferedOutputStream(client.getOutputStream(), SOCKET_BUFFER_SIZE);
+            // METHOD /path?query PROTOCOL
+            String[] requestLine = request.substring(0, request.indexOf('\r')).split(" ");
+            String path = requestLine.length > 1 ? requestLine[1].split("\\?")[0] : "";
+            if (requestLine.length > 2 && requestLine[2].startsWith("RTSP/")) {
+                new MjpegRtpSender(client, in, out, frames, fps, quality, packetLossProbability, reorderProbability,
+                        seed + connection, () -> running, connection).serve(request);
+                return;
+            }
+            if (path.endsWith(".jpg")) {
+                snapshots(in, out, connection);
+                return;
+            }
+            out.write(("HTTP/1.0 200 OK\r\n"
+                    + "Server: MjpegSimulator\r\n"
+                    + "Connection: close\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Content-Type: multipart/x-mixed-replace; boundary=" + BOUNDARY + "\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            // a camera stalled before the first frame has still answered
+            out.flush();
+            stream(out, connection);
+        } catch (IOException e) {
+            // disconnected by either side
+        } finally {
+            synchronized (clients) {
+                clients.remove(client);
+            }
+            closeQuietly(client);
+        }
+    }
+
+    private void stream(OutputStream out, int connection) throws IOException {
+        Random random = new Random(seed + connection);
+        long period = TimeUnit.SECONDS.toNanos(1) / fps;
+        long next = System.nanoTime();
+        // connections start at different points of the loop, like different cameras
+        int index = connection * 7;
+        String padding = headerPadding > 0 ? repeat('x', headerPadding) : null;
+        while (running) {
+            long delay = next - System.nanoTime();
+            if (stallProbability > 0 && random.nextDouble() < stallProbability) {
+                delay += TimeUnit.MILLISECONDS.toNanos(stallMillis);
+            }
+            // the frame is captured on time, the jitter delays only its sending
+            long captureNanos = System.nanoTime() + Math.max(0, delay);
+            if (jitterMillis > 0) {
+                delay += TimeUnit.MILLISECONDS.toNanos(random.nextInt(jitterMillis + 1));
+            }
+            sleepNanos(delay);
+            next += period;
+            if (next < System.nanoTime()) {
+                // a stalled camera doesn't catch up with a burst
+                next = System.nanoTime();
+            }
+
+            byte[] jpeg = frames[index++ % frames.length];
+            long timestamp = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - captureNanos);
+            byte[] comment = (TIMESTAMP_COMMENT + timestamp).getBytes(StandardCharsets.US_ASCII);
+            int size = jpeg.length + 4 + comment.length;
+            int paddingLength = 0;
+            if (meanFrameSize > 0) {
+                int target = (int) (meanFrameSize + random.nextGaussian() * frameSizeDeviation);
+                paddingLength = Math.max(0, target - size);
+            }
+            int paddingSegments = (paddingLength + MAX_SEGMENT_LENGTH - 1) / MAX_SEGMENT_LENGTH;
+            size += paddingLength + paddingSegments * 4;
+
+            StringBuilder header = new StringBuilder(128 + headerPadding)
+                    .append("--").append(BOUNDARY).append("\r\n")
+                    .append("Content-Type: image/jpeg\r\n");
+            if (contentLength) {
+                header.append("Content-Length: ").append(size).append("\r\n");
+            }
+            if (timestampHeader) {
+                header.append("X-Timestamp: ").append(timestamp / 1000).append('.')
+                        .append(String.format(Locale.ROOT, "%03d", timestamp % 1000)).append("000\r\n");
+            }
+            if (padding != null) {
+                header.append("X-Padding: ").append(padding).append("\r\n");
+            }
+            header.append("\r\n");
+            out.write(header.toString().getBytes(StandardCharsets.US_ASCII));
+
+            boolean disconnect = disconnectProbability > 0 && random.nextDouble() < disconnectProbability;
+            // SOI, timestamp, padding, then the rest of the encoded frame
+            out.write(jpeg, 0, 2);
+            writeComment(out, comment, 0, comment.length);
+            for (int remaining = paddingLength; remaining > 0; remaining -= MAX_SEGMENT_LENGTH) {
+                writeComment(out, null, 0, Math.min(remaining, MAX_SEGMENT_LENGTH));
+            }
+            if (disconnect) {
+                out.write(jpeg, 2, (jpeg.length - 2) / 2);
+                out.flush();
+                return;
+            }
+            out.write(jpeg, 2, jpeg.length - 2);
+            out.write('\r');
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    /*
+     * Answer this request and the next ones on the connection with a frame each.
+     */
+    private void snapshots(InputStream in, OutputStream out, int connection) throws IOException {
+        Random random = new Random(seed + connection);
+        int index = connection * 7;
+        while (running) {
+            long captureTimestamp = System.currentTimeMillis();
+            long delay = TimeUnit.MILLISECONDS.toNanos(latencyMillis);
+            if (jitterMillis > 0) {
+                delay += TimeUnit.MILLISECONDS.toNanos(random.nextInt(jitterMillis + 1));
+            }
+            sleepNanos(delay);
+            byte[] jpeg = frames[index++ % frames.length];
+            byte[] comment = (TIMESTAMP_COMMENT + captureTimestamp).getBytes(StandardCharsets.US_ASCII);
+            out.write(("HTTP/1.1 200 OK\r\n"
+                    + "Server: MjpegSimulator\r\n"
+                    + "Cache-Control: no-cache\r\n"
+                    + "Content-Type: image/jpeg\r\n"
+                    + "Content-Length: " + (jpeg.length + 4 + comment.length) + "\r\n"
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(jpeg, 0, 2);
+            writeComment(out, comment, 0, comment.length);
+            out.write(jpeg, 2, jpeg.length - 2);
+            out.flush();
+            MjpegRequestReader.read(in);
+        }
+    }
+
+    private static void writeComment(OutputStream out, byte[] payload, int offset, int length) throws IOException {
+        out.write(0xFF);
+        out.write(0xFE);
+        out.write((length + 2) >> 8);
+        out.write((length + 2) & 0xFF);
+        if (payload != null) {
+            out.write(payload, offset, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                out.write(0);
+            }
+        }
+    }
+
+    private static void sleepNanos(long nanos) throws IOException {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SocketException("interrupted");
+        }
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multipart stream made of the snapshots of a camera without Mjpeg, polled from a still image url,
+ * so that {@link MjpegInputStream} and everything downstream play it as any other stream.
+ * <p>
+ * Up to <code>depth</code> requests overlap, each one on a keep-alive connection, so that the
+ * frame rate isn't bound to one round trip per frame. Requests start at the target rate, slowed
+ * down to what the camera sustains: at most <code>depth</code> per smoothed response time.
+ * Snapshots answered out of order are dropped rather than shown after newer ones.
+ */
+final class MjpegSnapshotStream extends MjpegPartStream {
+    static final int DEFAULT_DEPTH = 2;
+    private static final int GAIN = 8;
+    // polls failing in a row before the stream fails
+    private static final int MAX_ERRORS = 3;
+    // a snapshot taking longer counts as a failed poll
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private final MjpegClient client;
+    private final String url;
+    private final long targetPeriodNanos;
+    private final int depth;
+    private final Semaphore inFlight;
+    private final ExecutorService workers;
+    private final Thread scheduler;
+    // guarded by itself, as are the sequence and the errors
+    private final Set<HttpURLConnection> connections = new HashSet<>();
+    private long lastQueued = -1;
+    private int errors = 0;
+    private volatile long responseNanos = 0;
+
+    /**
+     * @param client to open the connections with, credentials and cookies included
+     * @param url    of the still image
+     * @param fps    target frame rate
+     * @param depth  requests in flight at most
+     */
+    MjpegSnapshotStream(MjpegClient client, String url, int fps, int depth) {
+        super("MjpegSnapshot");
+        this.client = client;
+        this.url = url;
+        this.targetPeriodNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, fps);
+        this.depth = Math.max(1, depth);
+        this.inFlight = new Semaphore(this.depth);
+        this.workers = Executors.newFixedThreadPool(this.depth, runnable -> {
+            Thread thread = new Thread(runnable, "MjpegSnapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler = new Thread(this::schedule, "MjpegSnapshotScheduler");
+        this.scheduler.setDaemon(true);
+        this.scheduler.start();
+    }
+
+    /**
+     * @return time between requests: the target period, or longer if the camera answers slowly
+     */
+    long getPeriodNanos() {
+        return Math.max(targetPeriodNanos, responseNanos / depth);
+    }
+
+    /**
+     * @return smoothed time from a request to the end of its snapshot
+     */
+    long getResponseNanos() {
+        return responseNanos;
+    }
+
+    private void schedule() {
+        long next = System.nanoTime();
+        long sequence = 0;
+        try {
+            while (!isClosed()) {
+                inFlight.acquire();
+                long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                // a slow response doesn't make up for lost time with a burst
+                next = Math.max(next + getPeriodNanos(), System.nanoTime());
+                long request = sequence++;
+                workers.execute(() -> poll(request));
+            }
+        } catch (InterruptedException e) {
+            // closed
+        } catch (RuntimeException e) {
+            // rejected once closed
+        }
+    }
+
+    private void poll(long sequence) {
+        HttpURLConnection connection = null;
+        try {
+            if (isClosed()) {
+                return;
+            }
+            long start = System.nanoTime();
+            connection = client.openConnection(url);
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+            synchronized (connections) {
+                connections.add(connection);
+            }
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP " + code + " from " + url);
+            }
+            // closing the body returns the connection to the keep-alive pool
+            try (InputStream in = connection.getInputStream()) {
+                queue(sequence, readBody(in, connection.getContentLength()));
+            }
+            long elapsed = System.nanoTime() - start;
+            long smoothed = responseNanos;
+            responseNanos = smoothed == 0 ? elapsed : smoothed + (elapsed - smoothed) / GAIN;
+            synchronized (connections) {
+                errors = 0;
+            }
+        } catch (IOException e) {
+            boolean failed;
+            synchronized (connections) {
+                failed = ++errors >= MAX_ERRORS;
+            }
+            if (failed && !isClosed()) {
+                fail(e);
+            }
+        } finally {
+            if (connection != null) {
+                synchronized (connections) {
+                    connections.remove(connection);
+                }
+            }
+            inFlight.release();
+        }
+    }
+
+    /*
+     * The snapshot, up to the largest frame the stream parses: the length comes from the camera.
+     */
+    private static byte[] readBody(InputStream in, int contentLength) throws IOException {
+        int maxLength = MjpegInputStream.FRAME_MAX_LENGTH;
+        if (contentLength > maxLength) {
+            throw new IOException("snapshot of " + contentLength + " bytes, more than " + maxLength);
+        }
+        byte[] body = new byte[contentLength >= 0 ? contentLength : Math.min(64 * 1024, maxLength)];
+        int length = 0;
+        int read;
+        while ((read = in.read(body, length, body.length - length)) != -1) {
+            length += read;
+            if (length == body.length) {
+                if (contentLength >= 0) {
+                    break;
+                }
+                if (length == maxLength) {
+                    if (in.read() != -1) {
+                        throw new IOException("snapshot longer than " + maxLength + " bytes");
+                    }
+                    break;
+                }
+                body = Arrays.copyOf(body, Math.min(body.length * 2, maxLength));
+            }
+        }
+        if (contentLength >= 0 && length < contentLength) {
+            throw new IOException("snapshot truncated at " + length + " of " + contentLength + " bytes");
+        }
+        return length == body.length ? body : Arrays.copyOf(body, length);
+    }
+
+    /*
+     * Queue a snapshot for the reader, unless a newer one already was.
+     */
+    private void queue(long sequence, byte[] jpeg) {
+        synchronized (connections) {
+            if (sequence < lastQueued) {
+                return;
+            }
+            lastQueued = sequence;
+            queue(jpeg, jpeg.length);
+        }
+    }
+
+    /**
+     * Stop polling and abort the requests in flight.
+     */
+    @Override
+    void onClose() {
+        scheduler.interrupt();
+        workers.shutdownNow();
+        synchronized (connections) {
+            for (HttpURLConnection connection : connections) {
+                connection.disconnect();
+            }
+            connections.clear();
+        }
+    }
+}
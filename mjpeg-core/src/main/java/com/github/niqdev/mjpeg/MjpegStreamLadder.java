@@ -0,0 +1,212 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The streams of a camera at different sizes, e.g. a low resolution sub-stream and the main stream,
+ * to play the smallest one fitting the display within the bandwidth.
+ * <p>
+ * The bandwidth is measured on the streams played: one received at less than half the frame rate
+ * seen on the ladder is held back by the network, the bytes per second it got are the bandwidth
+ * for a minute and the streams needing more are skipped. The bytes per second of a stream not
+ * played yet are estimated from those played, in proportion to the pixels.
+ * <pre>
+ * MjpegStreamLadder ladder = new MjpegStreamLadder(new MjpegClient().credential("USERNAME", "PASSWORD"))
+ *     .add("http://192.168.1.10/sub.mjpg", 640, 360)
+ *     .add("http://192.168.1.10/main.mjpg", 1920, 1080);
+ * mjpegView.setSource(ladder);
+ * </pre>
+ */
+public class MjpegStreamLadder {
+    private static final double CONGESTED_FPS_RATIO = 0.5;
+    private static final long BANDWIDTH_TTL_NANOS = TimeUnit.MINUTES.toNanos(1);
+    // a stream failing to connect isn't tried again before
+    private static final long FAILURE_TTL_NANOS = TimeUnit.SECONDS.toNanos(30);
+    // a stream not connected, or stalled, this long has failed, as for snapshots and RTSP
+    private static final int TIMEOUT_MILLIS = 10000;
+
+    private final MjpegClient client;
+    // guarded by this, by increasing pixels
+    private final List<Rung> rungs = new ArrayList<>();
+    private double maxFramesPerSecond = 0;
+    private double bandwidth = Double.POSITIVE_INFINITY;
+    private long bandwidthNanos;
+
+    /**
+     * @param client connecting to the streams, with the credentials of the camera
+     */
+    public MjpegStreamLadder(MjpegClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Add all the streams before playing the ladder, they are indexed by size.
+     *
+     * @param url    of the stream, <code>rtsp://</code> for the JPEG track of an RTSP camera
+     * @param width  of its frames
+     * @param height of its frames
+     * @return MjpegStreamLadder instance
+     */
+    public synchronized MjpegStreamLadder add(String url, int width, int height) {
+        Rung rung = new Rung(url, width, height);
+        int index = 0;
+        while (index < rungs.size() && rungs.get(index).pixels() <= rung.pixels()) {
+            index++;
+        }
+        rungs.add(index, rung);
+        return this;
+    }
+
+    public synchronized int size() {
+        return rungs.size();
+    }
+
+    public synchronized String getUrl(int rung) {
+        return rungs.get(rung).url;
+    }
+
+    public synchronized int getWidth(int rung) {
+        return rungs.get(rung).width;
+    }
+
+    public synchronized int getHeight(int rung) {
+        return rungs.get(rung).height;
+    }
+
+    /**
+     * The smallest stream as large as the display on one side at least, i.e. not upscaled to fit,
+     * or else the largest one, and a smaller one while it needs more than the bandwidth.
+     *
+     * @param displayWidth  of the view
+     * @param displayHeight of the view
+     * @return index of the stream to play
+     */
+    public synchronized int select(int displayWidth, int displayHeight) {
+        if (rungs.isEmpty()) {
+            throw new IllegalStateException("no streams in the ladder");
+        }
+        int target = rungs.size() - 1;
+        for (int i = 0; i < rungs.size(); i++) {
+            if (rungs.get(i).width >= displayWidth || rungs.get(i).height >= displayHeight) {
+                target = i;
+                break;
+            }
+        }
+        long now = System.nanoTime();
+        double available = getBandwidth();
+        while (target > 0 && (estimate(target) > available || rungs.get(target).failed(now))) {
+            target--;
+        }
+        return target;
+    }
+
+    /**
+     * Record what a stream was received at, while played.
+     *
+     * @param rung            index of the stream
+     * @param bytesPerSecond  received over the last interval
+     * @param framesPerSecond received over the last interval
+     */
+    public synchronized void onMeasured(int rung, double bytesPerSecond, double framesPerSecond) {
+        if (framesPerSecond <= 0) {
+            // reconnecting or the camera is down, nothing to learn about the network
+            return;
+        }
+        Rung measured = rungs.get(rung);
+        maxFramesPerSecond = Math.max(maxFramesPerSecond, framesPerSecond);
+        boolean congested = framesPerSecond < CONGESTED_FPS_RATIO * maxFramesPerSecond;
+        // what it would take at the full frame rate
+        double needed = congested ? bytesPerSecond * maxFramesPerSecond / framesPerSecond : bytesPerSecond;
+        measured.bytesPerSecond = measured.bytesPerSecond > 0
+                ? measured.bytesPerSecond + (needed - measured.bytesPerSecond) / 4
+                : needed;
+        if (congested) {
+            bandwidth = Math.min(getBandwidth(), bytesPerSecond);
+            bandwidthNanos = System.nanoTime();
+        } else if (bytesPerSecond > bandwidth) {
+            // the network carries more than it did, unknown again
+            bandwidth = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * @param rung index of the stream failing to connect, skipped for a while
+     */
+    public synchronized void onFailed(int rung) {
+        rungs.get(rung).failedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return bytes per second available, infinite if the streams played were never held back
+     */
+    public synchronized double getBandwidth() {
+        if (bandwidth != Double.POSITIVE_INFINITY && System.nanoTime() - bandwidthNanos > BANDWIDTH_TTL_NANOS) {
+            bandwidth = Double.POSITIVE_INFINITY;
+        }
+        return bandwidth;
+    }
+
+    /**
+     * @param rung index of the stream
+     * @return bytes per second it needs, measured or estimated, 0 if unknown
+     */
+    public synchronized double getBytesPerSecond(int rung) {
+        return estimate(rung);
+    }
+
+    /**
+     * Connect to a stream of the ladder.
+     *
+     * @param rung index of the stream
+     * @return the stream, connected, failing if it stalls for 10 seconds
+     * @throws IOException if the connection fails or times out
+     */
+    public MjpegInputStream connect(int rung) throws IOException {
+        String url = getUrl(rung);
+        return url.startsWith("rtsp://") ? client.connectRtsp(url, false) : client.connect(url, TIMEOUT_MILLIS);
+    }
+
+    /*
+     * Measured, or scaled from the nearest stream measured. Holding this.
+     */
+    private double estimate(int rung) {
+        Rung target = rungs.get(rung);
+        if (target.bytesPerSecond > 0) {
+            return target.bytesPerSecond;
+        }
+        for (int distance = 1; distance < rungs.size(); distance++) {
+            for (int i : new int[]{rung - distance, rung + distance}) {
+                if (i >= 0 && i < rungs.size() && rungs.get(i).bytesPerSecond > 0) {
+                    Rung measured = rungs.get(i);
+                    return measured.bytesPerSecond * target.pixels() / Math.max(1, measured.pixels());
+                }
+            }
+        }
+        return 0;
+    }
+
+    private static final class Rung {
+        final String url;
+        final int width;
+        final int height;
+        double bytesPerSecond = 0;
+        long failedNanos;
+
+        Rung(String url, int width, int height) {
+            this.url = url;
+            this.width = width;
+            this.height = height;
+        }
+
+        long pixels() {
+            return (long) width * height;
+        }
+
+        boolean failed(long now) {
+            return failedNanos != 0 && now - failedNanos < FAILURE_TTL_NANOS;
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last frame of every camera, by url, to show something the moment a wall of cameras opens
+ * instead of black tiles until each connection gets its first frame.
+ * <p>
+ * Two levels: in memory, least recently used first out beyond a size in bytes and dropped under
+ * memory pressure, and optionally on disk, the raw jpegs, to survive the process. Frames are taken
+ * once per second per camera at most, and written to disk on a background thread once per write
+ * interval at most, only the newest one when the disk is slower than that.
+ * <pre>
+ * MjpegThumbnailCache cache = new MjpegThumbnailCache(4 * 1024 * 1024, new File(getCacheDir(), "thumbnails"));
+ * mjpegView.setThumbnailCache(cache); // the same cache for all the views
+ * </pre>
+ */
+public class MjpegThumbnailCache {
+    private static final long MEMORY_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long DEFAULT_WRITE_INTERVAL_MILLIS = 10000;
+    private static final long DEFAULT_MAX_DISK_BYTES = 16 * 1024 * 1024;
+    private static final String SUFFIX = ".jpg";
+    // larger files in the cache directory aren't thumbnails
+    private static final long MAX_FILE_LENGTH = 16 * 1024 * 1024;
+
+    private final long maxBytes;
+    private final File directory;
+    private final MjpegMemoryBudget.Account account;
+    // guarded by itself, in access order
+    private final LinkedHashMap<String, Entry> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+    // guarded by itself, the newest frame of each url waiting to be written
+    private final LinkedHashMap<String, byte[]> pendingWrites = new LinkedHashMap<>();
+    private Thread writer;
+    private volatile long writeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WRITE_INTERVAL_MILLIS);
+    private volatile long maxDiskBytes = DEFAULT_MAX_DISK_BYTES;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * A cache in memory only.
+     *
+     * @param maxBytes of the frames kept in memory
+     */
+    public MjpegThumbnailCache(long maxBytes) {
+        this(maxBytes, null);
+    }
+
+    /**
+     * @param maxBytes  of the frames kept in memory
+     * @param directory of the frames kept on disk, created if needed, e.g. in the cache directory of the app
+     */
+    public MjpegThumbnailCache(long maxBytes, File directory) {
+        this.maxBytes = maxBytes;
+        this.directory = directory;
+        this.account = MjpegMemoryBudget.getInstance().openAccount(getClass().getSimpleName());
+        this.account.addListener(pressure -> clearMemory());
+    }
+
+    /**
+     * @param interval between two writes of the frame of a camera to disk, 10 seconds by default
+     * @param unit     of the interval
+     * @return MjpegThumbnailCache instance
+     */
+    public MjpegThumbnailCache writeInterval(long interval, TimeUnit unit) {
+        this.writeIntervalNanos = unit.toNanos(interval);
+        return this;
+    }
+
+    /**
+     * @param bytes of the frames kept on disk, the least recently written are deleted beyond, 16 MB by default
+     * @return MjpegThumbnailCache instance
+     */
+    public MjpegThumbnailCache maxDiskBytes(long bytes) {
+        this.maxDiskBytes = bytes;
+        return this;
+    }
+
+    /**
+     * The last frame of a camera, from memory or else from disk: call it off the main thread.
+     *
+     * @param url of the camera
+     * @return the jpeg, must not be modified, or null
+     */
+    public byte[] get(String url) {
+        synchronized (memory) {
+            Entry entry = memory.get(url);
+            if (entry != null) {
+                memoryHits.incrementAndGet();
+                return entry.jpeg;
+            }
+        }
+        byte[] jpeg = directory != null ? read(fileOf(url)) : null;
+        if (jpeg == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        long allocated = 0;
+        synchronized (memory) {
+            if (!memory.containsKey(url)) {
+                // replaced by the first live frame, but not written again before the interval
+                long now = System.nanoTime();
+                long before = memoryBytes;
+                store(url, jpeg, now - MEMORY_INTERVAL_NANOS).writtenNanos = now;
+                allocated = memoryBytes - before;
+            }
+        }
+        account.allocate(allocated);
+        return jpeg;
+    }
+
+    /**
+     * Offer the frame just shown for a camera. Cheap when it isn't taken, i.e. less than a second
+     * after the previous one: call it for every frame.
+     *
+     * @param url    of the camera
+     * @param jpeg   frame, copied if taken
+     * @param length of the frame in the array
+     */
+    public void put(String url, byte[] jpeg, int length) {
+        if (url == null) {
+            return;
+        }
+        long now = System.nanoTime();
+        byte[] write = null;
+        long allocated;
+        synchronized (memory) {
+            Entry entry = memory.get(url);
+            if (entry != null && now - entry.putNanos < MEMORY_INTERVAL_NANOS) {
+                return;
+            }
+            long writtenNanos = entry != null ? entry.writtenNanos : now - writeIntervalNanos;
+            long before = memoryBytes;
+            Entry stored = store(url, Arrays.copyOf(jpeg, length), now);
+            allocated = memoryBytes - before;
+            stored.writtenNanos = writtenNanos;
+            if (directory != null && now - writtenNanos >= writeIntervalNanos) {
+                stored.writtenNanos = now;
+                write = stored.jpeg;
+            }
+        }
+        // out of memory: crossing the budget calls clearMemory on this thread
+        account.allocate(allocated);
+        if (write != null) {
+            scheduleWrite(url, write);
+        }
+    }
+
+    /**
+     * Forget the frame of a camera, in memory and on disk.
+     *
+     * @param url of the camera
+     */
+    public void remove(String url) {
+        synchronized (memory) {
+            Entry entry = memory.remove(url);
+            if (entry != null) {
+                memoryBytes -= entry.jpeg.length;
+                account.free(entry.jpeg.length);
+            }
+        }
+        synchronized (pendingWrites) {
+            pendingWrites.remove(url);
+        }
+        if (directory != null) {
+            fileOf(url).delete();
+        }
+    }
+
+    /**
+     * @return bytes of the frames in memory
+     */
+    public long getMemoryBytes() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    public long getMemoryHitCount() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHitCount() {
+        return diskHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return frames written to disk so far
+     */
+    public long getWriteCount() {
+        return writes.get();
+    }
+
+    /**
+     * @return fraction of the lookups finding a frame, in memory or on disk, 0 before any
+     */
+    public double getHitRatio() {
+        long hits = memoryHits.get() + diskHits.get();
+        long lookups = hits + misses.get();
+        return lookups > 0 ? (double) hits / lookups : 0;
+    }
+
+    /*
+     * Keep a frame in memory, least recently used ones out beyond the limit. Holding memory, the
+     * change of memoryBytes is left to the caller to account once it no longer holds it.
+     */
+    private Entry store(String url, byte[] jpeg, long now) {
+        Entry entry = new Entry(jpeg, now);
+        Entry previous = memory.put(url, entry);
+        long delta = jpeg.length - (previous != null ? previous.jpeg.length : 0);
+        memoryBytes += delta;
+        Iterator<Entry> eldest = memory.values().iterator();
+        while (memoryBytes > maxBytes && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            if (evicted == entry) {
+                break;
+            }
+            eldest.remove();
+            memoryBytes -= evicted.jpeg.length;
+        }
+        return entry;
+    }
+
+    /*
+     * Under memory pressure, the frames are still on disk.
+     */
+    private void clearMemory() {
+        synchronized (memory) {
+            memory.clear();
+            account.free(memoryBytes);
+            memoryBytes = 0;
+        }
+    }
+
+    private void scheduleWrite(String url, byte[] jpeg) {
+        synchronized (pendingWrites) {
+            pendingWrites.put(url, jpeg);
+            if (writer == null) {
+                writer = new Thread(this::write, "MjpegThumbnailWriter");
+                writer.setDaemon(true);
+                writer.setPriority(Thread.MIN_PRIORITY);
+                writer.start();
+            }
+        }
+    }
+
+    /*
+     * Write the pending frames, one at a time, and exit once none is left.
+     */
+    private void write() {
+        while (true) {
+            String url;
+            byte[] jpeg;
+            synchronized (pendingWrites) {
+                Iterator<Map.Entry<String, byte[]>> next = pendingWrites.entrySet().iterator();
+                if (!next.hasNext()) {
+                    writer = null;
+                    return;
+                }
+                Map.Entry<String, byte[]> pending = next.next();
+                next.remove();
+                url = pending.getKey();
+                jpeg = pending.getValue();
+            }
+            try {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("cannot create " + directory);
+                }
+                File file = fileOf(url);
+                // renamed once complete, a reader never sees half a frame
+                File temporary = new File(directory, file.getName() + ".tmp");
+                try (FileOutputStream out = new FileOutputStream(temporary)) {
+                    out.write(jpeg);
+                }
+                if (!temporary.renameTo(file)) {
+                    file.delete();
+                    if (!temporary.renameTo(file)) {
+                        throw new IOException("cannot rename " + temporary);
+                    }
+                }
+                writes.incrementAndGet();
+                trimDisk();
+            } catch (IOException e) {
+                // the frame stays in memory, the next one is written at the next interval
+            }
+        }
+    }
+
+    /*
+     * Delete the least recently written frames beyond the disk limit.
+     */
+    private void trimDisk() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        if (total <= maxDiskBytes) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (int i = 0; i < files.length && total > maxDiskBytes; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    private static byte[] read(File file) {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long length = in.length();
+            if (length < 4 || length > MAX_FILE_LENGTH) {
+                return null;
+            }
+            byte[] jpeg = new byte[(int) length];
+            in.readFully(jpeg);
+            return jpeg;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private File fileOf(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(40 + SUFFIX.length());
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(directory, name.append(SUFFIX).toString());
+        } catch (NoSuchAlgorithmException e) {
+            return new File(directory, Integer.toHexString(url.hashCode()) + SUFFIX);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d KB in memory, %d memory hits, %d disk hits, %d misses (%.0f%%), %d writes",
+                getMemoryBytes() / 1024, getMemoryHitCount(), getDiskHitCount(), getMissCount(),
+                getHitRatio() * 100, getWriteCount());
+    }
+
+    private static final class Entry {
+        final byte[] jpeg;
+        final long putNanos;
+        long writtenNanos;
+
+        Entry(byte[] jpeg, long putNanos) {
+            this.jpeg = jpeg;
+            this.putNanos = putNanos;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.github.niqdev.mjpeg;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timeline of the stages of every frame, kept in a preallocated ring holding the most recent
+ * events, to find where the time of a lagging stream goes. Recording is lock-free and allocates
+ * nothing; streams and views record only once given a trace, without one tracing costs a null check.
+ * <p>
+ * The ring is exported in the Chrome trace event format, to open in chrome://tracing or
+ * <a href="https://ui.perfetto.dev">Perfetto</a>, one row per track, e.g. per camera.
+ * <pre>
+ * MjpegTrace trace = new MjpegTrace(4096);
+ * mjpegView.setTrace(trace, "camera 1");
+ * ...
+ * trace.writeChromeTrace(new File(getExternalFilesDir(null), "mjpeg-trace.json"));
+ * </pre>
+ */
+public class MjpegTrace {
+
+    public enum Stage {
+        /**
+         * Waiting for the next part from the camera.
+         */
+        NETWORK("network"),
+        /**
+         * Reading the part, from its first byte to the end of the jpeg.
+         */
+        PARSE("readMjpegFrame"),
+        DECODE("decode"),
+        LOCK_CANVAS("lockCanvas"),
+        DRAW("draw"),
+        POST("unlockCanvasAndPost");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final long originNanos = System.nanoTime();
+    private final int mask;
+    private final AtomicLong cursor = new AtomicLong();
+    // first event after the last clear
+    private volatile long floor = 0;
+    // index of the event in each slot, written last, -1 while the slot is being written
+    private final AtomicLongArray sequences;
+    private final long[] starts;
+    private final long[] durations;
+    private final long[] frames;
+    private final int[] tracks;
+    private final int[] stages;
+    private final List<String> trackNames = new ArrayList<>();
+
+    /**
+     * @param capacity events kept, rounded up to a power of 2
+     */
+    public MjpegTrace(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, -1);
+        }
+        starts = new long[size];
+        durations = new long[size];
+        frames = new long[size];
+        tracks = new int[size];
+        stages = new int[size];
+    }
+
+    /**
+     * @param name of a row of the timeline, e.g. a camera
+     * @return id of the track, to record events
+     */
+    public synchronized int track(String name) {
+        trackNames.add(name);
+        return trackNames.size() - 1;
+    }
+
+    /**
+     * Record a stage of a frame, any thread.
+     *
+     * @param track      from {@link #track(String)}
+     * @param stage      of the frame
+     * @param frame      number of the frame in its stream
+     * @param startNanos {@link System#nanoTime()} at the start of the stage
+     * @param endNanos   {@link System#nanoTime()} at the end of the stage
+     */
+    public void record(int track, Stage stage, long frame, long startNanos, long endNanos) {
+        long sequence = cursor.getAndIncrement();
+        int i = (int) (sequence & mask);
+        sequences.set(i, -1);
+        starts[i] = startNanos;
+        durations[i] = endNanos - startNanos;
+        frames[i] = frame;
+        tracks[i] = track;
+        stages[i] = stage.ordinal();
+        // publishes the fields above
+        sequences.set(i, sequence);
+    }
+
+    /**
+     * @return events recorded since the creation or the last {@link #clear()}, including those overwritten
+     */
+    public long getRecordedCount() {
+        return cursor.get() - floor;
+    }
+
+    /**
+     * @return events in the ring
+     */
+    public int size() {
+        return (int) Math.min(getRecordedCount(), mask + 1);
+    }
+
+    /**
+     * Forget the events recorded so far.
+     */
+    public void clear() {
+        floor = cursor.get();
+    }
+
+    /**
+     * Write the events in the ring as a Chrome trace JSON file.
+     *
+     * @param file destination
+     * @throws IOException if the file cannot be written
+     */
+    public void writeChromeTrace(File file) throws IOException {
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writeChromeTrace(out);
+        }
+    }
+
+    /**
+     * Write the events in the ring in the Chrome trace event format, oldest first:
+     * complete events in microseconds since the creation of the trace. Events recorded
+     * while writing are skipped if they overwrite the one being read.
+     *
+     * @param out destination, not closed
+     * @throws IOException if writing fails
+     */
+    public void writeChromeTrace(Writer out) throws IOException {
+        List<String> names;
+        synchronized (this) {
+            names = new ArrayList<>(trackNames);
+        }
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (int track = 0; track < names.size(); track++) {
+            first = separate(out, first);
+            out.write(String.format(Locale.US,
+                    "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":%d,\"args\":{\"name\":\"%s\"}}",
+                    track, escape(names.get(track))));
+        }
+        long end = cursor.get();
+        for (long sequence = Math.max(floor, end - mask - 1); sequence < end; sequence++) {
+            int i = (int) (sequence & mask);
+            if (sequences.get(i) != sequence) {
+                continue;
+            }
+            long start = starts[i];
+            long duration = durations[i];
+            long frame = frames[i];
+            int track = tracks[i];
+            int stage = stages[i];
+            if (sequences.get(i) != sequence) {
+                // overwritten while reading it
+                continue;
+            }
+            first = separate(out, first);
+            out.write(String.format(Locale.US,
+                    "{\"name\":\"%s\",\"cat\":\"mjpeg\",\"ph\":\"X\",\"pid\":1,\"tid\":%d,\"ts\":%.3f,\"dur\":%.3f,\"args\":{\"frame\":%d}}",
+                    STAGES[stage].getLabel(), track, (start - originNanos) / 1e3, duration / 1e3, frame));
+        }
+        out.write("]}");
+        out.flush();
+    }
+
+    private static boolean separate(Writer out, boolean first) throws IOException {
+        if (!first) {
+            out.write(",\n");
+        }
+        return false;
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format(Locale.US, "\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
@@ -1,22 +1,9 @@
 package com.github.niqdev.mjpeg;
 
-import android.text.TextUtils;
 import android.util.Log;
 
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.Authenticator;
-import java.net.CookieManager;
-import java.net.HttpCookie;
-import java.net.HttpURLConnection;
-import java.net.PasswordAuthentication;
-import java.net.URL;
-import java.util.concurrent.TimeUnit;
-
-import androidx.annotation.NonNull;
 import rx.Observable;
 import rx.android.schedulers.AndroidSchedulers;
-import rx.schedulers.Schedulers;
 
 /**
  * A library wrapper for handle mjpeg streams.
@@ -24,12 +11,13 @@ import rx.schedulers.Schedulers;
  * <li><a href="https://bitbucket.org/neuralassembly/simplemjpegview">simplemjpegview</a></li>
  * <li><a href="https://code.google.com/archive/p/android-camera-axis">android-camera-axis</a></li>
  * </ul>
+ *
+ * @see MjpegClient the same client without Android dependencies
  */
 public class Mjpeg {
     private static final String TAG = Mjpeg.class.getSimpleName();
 
-    private static final CookieManager msCookieManager = new CookieManager();
-    private boolean sendConnectionCloseHeader = false;
+    private final MjpegClient client = new MjpegClient();
 
     public Mjpeg() {
     }
@@ -41,13 +29,7 @@ public class Mjpeg {
      * @return Mjpeg instance
      */
     public Mjpeg credential(String username, String password) {
-        if (!TextUtils.isEmpty(username) && !TextUtils.isEmpty(password)) {
-            Authenticator.setDefault(new Authenticator() {
-                protected PasswordAuthentication getPasswordAuthentication() {
-                    return new PasswordAuthentication(username, password.toCharArray());
-                }
-            });
-        }
+        client.credential(username, password);
         return this;
     }
 
@@ -58,9 +40,7 @@ public class Mjpeg {
      * @return Mjpeg instance
      */
     public Mjpeg addCookie(String cookie) {
-        if (!TextUtils.isEmpty(cookie)) {
-            msCookieManager.getCookieStore().add(null, HttpCookie.parse(cookie).get(0));
-        }
+        client.addCookie(cookie);
         return this;
     }
 
@@ -71,23 +51,20 @@ public class Mjpeg {
      * @return Observable Mjpeg stream
      */
     public Mjpeg sendConnectionCloseHeader() {
-        sendConnectionCloseHeader = true;
+        client.sendConnectionCloseHeader();
         return this;
     }
 
-    @NonNull
-    private Observable<MjpegInputStream> connect(String url) {
-        return Observable.defer(() -> {
-            try {
-                HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
-                loadConnectionProperties(urlConnection);
-                InputStream inputStream = urlConnection.getInputStream();
-                return Observable.just(new MjpegInputStream(inputStream));
-            } catch (IOException e) {
-                Log.e(TAG, "error during connection", e);
-                return Observable.error(e);
-            }
-        });
+    /**
+     * Record all the connections in the same metrics, e.g. those of a camera.
+     *
+     * @param metrics of the streams opened from now on
+     * @return Mjpeg instance
+     * @see MjpegClient#metrics(MjpegMetrics)
+     */
+    public Mjpeg metrics(MjpegMetrics metrics) {
+        client.metrics(metrics);
+        return this;
     }
 
     /**
@@ -97,8 +74,8 @@ public class Mjpeg {
      * @return Observable Mjpeg stream
      */
     public Observable<MjpegInputStream> open(String url) {
-        return connect(url)
-                .subscribeOn(Schedulers.io())
+        return client.open(url)
+                .doOnError(e -> Log.e(TAG, "error during connection", e))
                 .observeOn(AndroidSchedulers.mainThread());
     }
 
@@ -110,26 +87,60 @@ public class Mjpeg {
      * @return Observable Mjpeg stream
      */
     public Observable<MjpegInputStream> open(String url, int timeout) {
-        return connect(url)
-                .timeout(timeout, TimeUnit.SECONDS)
-                .subscribeOn(Schedulers.io())
+        return client.open(url, timeout)
+                .doOnError(e -> Log.e(TAG, "error during connection", e))
+                .observeOn(AndroidSchedulers.mainThread());
+    }
+
+    /**
+     * Poll the still image of a camera without Mjpeg, e.g. <code>snapshot.jpg</code>, and play it
+     * as a Mjpeg stream.
+     *
+     * @param url of the still image
+     * @param fps target frame rate, lower if the camera answers slowly
+     * @return Observable Mjpeg stream
+     * @see MjpegClient#connectSnapshots(String, int, int)
+     */
+    public Observable<MjpegInputStream> openSnapshots(String url, int fps) {
+        return client.openSnapshots(url, fps)
+                .doOnError(e -> Log.e(TAG, "error during connection", e))
                 .observeOn(AndroidSchedulers.mainThread());
     }
 
     /**
-     * Configure request properties
+     * Play the JPEG video track of an RTSP camera, over UDP, as a Mjpeg stream.
      *
-     * @param urlConnection the url connection to add properties and cookies to
+     * @param url <code>rtsp://[user:password@]host[:port]/path</code>
+     * @return Observable Mjpeg stream
+     * @see MjpegClient#connectRtsp(String, boolean)
      */
-    private void loadConnectionProperties(HttpURLConnection urlConnection) {
-        urlConnection.setRequestProperty("Cache-Control", "no-cache");
-        if (sendConnectionCloseHeader) {
-            urlConnection.setRequestProperty("Connection", "close");
-        }
+    public Observable<MjpegInputStream> openRtsp(String url) {
+        return client.openRtsp(url)
+                .doOnError(e -> Log.e(TAG, "error during connection", e))
+                .observeOn(AndroidSchedulers.mainThread());
+    }
 
-        if (!msCookieManager.getCookieStore().getCookies().isEmpty()) {
-            urlConnection.setRequestProperty("Cookie",
-                    TextUtils.join(";", msCookieManager.getCookieStore().getCookies()));
-        }
+    /**
+     * Connect to a Mjpeg stream and emit its frames, read on an io thread and observed on it too.
+     * The connection is closed on unsubscribe.
+     *
+     * @param url          source
+     * @param backpressure what to do with frames read ahead of the requests
+     * @param bufferSize   frames queued with {@link MjpegFrame.Backpressure#BUFFER}
+     * @return Observable of frames, each one must be released
+     * @see MjpegInputStream#frames(MjpegFrame.Backpressure, int)
+     */
+    public Observable<MjpegFrame> openFrames(String url, MjpegFrame.Backpressure backpressure, int bufferSize) {
+        return client.openFrames(url, backpressure, bufferSize);
+    }
+
+    /**
+     * Connect to a Mjpeg stream and emit always its latest frame.
+     *
+     * @param url source
+     * @return Observable of frames, each one must be released
+     */
+    public Observable<MjpegFrame> openFrames(String url) {
+        return client.openFrames(url);
     }
 }
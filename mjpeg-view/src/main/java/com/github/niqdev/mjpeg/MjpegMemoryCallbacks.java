@@ -0,0 +1,35 @@
+package com.github.niqdev.mjpeg;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+/**
+ * Forwards <code>onTrimMemory</code> and <code>onLowMemory</code> of the application to the
+ * {@link MjpegMemoryBudget}, registered once per process by the first view.
+ */
+class MjpegMemoryCallbacks implements ComponentCallbacks2 {
+    private static boolean registered = false;
+
+    static synchronized void register(Context context) {
+        if (!registered) {
+            registered = true;
+            context.getApplicationContext().registerComponentCallbacks(new MjpegMemoryCallbacks());
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        boolean critical = level == TRIM_MEMORY_RUNNING_CRITICAL || level >= TRIM_MEMORY_COMPLETE;
+        MjpegMemoryBudget.getInstance().trim(critical ? MjpegMemoryBudget.Pressure.CRITICAL : MjpegMemoryBudget.Pressure.MODERATE);
+    }
+
+    @Override
+    public void onLowMemory() {
+        MjpegMemoryBudget.getInstance().trim(MjpegMemoryBudget.Pressure.CRITICAL);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+}
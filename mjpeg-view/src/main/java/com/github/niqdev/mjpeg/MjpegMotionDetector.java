@@ -0,0 +1,127 @@
+package com.github.niqdev.mjpeg;
+
+/**
+ * Motion detector working in the compressed domain: the DC coefficient of every 8x8 luma
+ * block, i.e. its average brightness, is compared with a running background model. The frame
+ * is still entropy decoded, the Huffman codes of the AC coefficients and of the chroma included,
+ * but only the luma DC terms are reconstructed: no IDCT, upsampling or color conversion.
+ * <p>
+ * Attach it to a stream with {@link MjpegInputStream#setFrameProcessor(MjpegFrameProcessor)},
+ * detection then runs while frames are parsed and doesn't depend on a view rendering them.
+ */
+public class MjpegMotionDetector implements MjpegFrameProcessor {
+    private static final int DEFAULT_THRESHOLD = 64;
+    private static final int DEFAULT_LEARNING_RATE = 16;
+
+    /**
+     * Notified from the thread reading the stream.
+     */
+    public interface OnMotionListener {
+        void onMotion(MjpegMotionEvent event);
+    }
+
+    private final OnMotionListener listener;
+    private long handle;
+    private int threshold = DEFAULT_THRESHOLD;
+    private int learningRate = DEFAULT_LEARNING_RATE;
+    private int minBlocks = 1;
+    private int frameInterval = 1;
+    private int frameCounter = 0;
+    private byte[] mask;
+
+    public MjpegMotionDetector(OnMotionListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Configure sensitivity.
+     *
+     * @param threshold minimum change of the average brightness of a block, 0-255
+     * @return MjpegMotionDetector instance
+     */
+    public MjpegMotionDetector threshold(int threshold) {
+        // dequantized DC terms are 8 times the block average
+        this.threshold = threshold * 8;
+        return this;
+    }
+
+    /**
+     * Configure how fast the background adapts to the scene.
+     *
+     * @param learningRate weight of every new frame in the background model, between 0 and 1
+     * @return MjpegMotionDetector instance
+     */
+    public MjpegMotionDetector learningRate(float learningRate) {
+        this.learningRate = Math.max(0, Math.min(256, Math.round(learningRate * 256)));
+        return this;
+    }
+
+    /**
+     * @param minBlocks minimum number of changed blocks to report an event
+     * @return MjpegMotionDetector instance
+     */
+    public MjpegMotionDetector minBlocks(int minBlocks) {
+        this.minBlocks = Math.max(1, minBlocks);
+        return this;
+    }
+
+    /**
+     * @param frameInterval analyze one frame every frameInterval
+     * @return MjpegMotionDetector instance
+     */
+    public MjpegMotionDetector frameInterval(int frameInterval) {
+        this.frameInterval = Math.max(1, frameInterval);
+        return this;
+    }
+
+    @Override
+    public synchronized void process(byte[] jpeg, int length) {
+        if (frameCounter++ % frameInterval != 0) {
+            return;
+        }
+        int changed = detect(jpeg, length);
+        if (changed >= minBlocks && listener != null) {
+            int blocksWide = MjpegNative.motionBlocksWide(handle);
+            int blocksHigh = MjpegNative.motionBlocksHigh(handle);
+            byte[] mask = new byte[blocksWide * blocksHigh];
+            MjpegNative.motionMask(handle, mask);
+            listener.onMotion(new MjpegMotionEvent(System.currentTimeMillis(), blocksWide, blocksHigh, changed, mask));
+        }
+    }
+
+    /**
+     * @return number of blocks in motion, or -1 if the frame is not a valid jpeg
+     */
+    synchronized int detect(byte[] jpeg, int length) {
+        if (handle == 0) {
+            handle = MjpegNative.motionCreate();
+        }
+        return MjpegNative.motionDetect(handle, jpeg, length, threshold, learningRate);
+    }
+
+    /**
+     * Bounding box of the blocks in motion after the last {@link #detect(byte[], int)}.
+     *
+     * @param bounds {left, top, right, bottom} in pixels
+     * @return false if no block changed
+     */
+    synchronized boolean changedBounds(int[] bounds) {
+        int blocksWide = MjpegNative.motionBlocksWide(handle);
+        int blocksHigh = MjpegNative.motionBlocksHigh(handle);
+        if (mask == null || mask.length < blocksWide * blocksHigh) {
+            mask = new byte[blocksWide * blocksHigh];
+        }
+        MjpegNative.motionMask(handle, mask);
+        return MjpegMotionEvent.getBounds(mask, blocksWide, blocksHigh, bounds);
+    }
+
+    /**
+     * Free the native background model, the detector can still be reused afterwards.
+     */
+    public synchronized void release() {
+        if (handle != 0) {
+            MjpegNative.motionRelease(handle);
+            handle = 0;
+        }
+    }
+}
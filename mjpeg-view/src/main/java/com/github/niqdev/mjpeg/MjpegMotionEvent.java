@@ -0,0 +1,89 @@
+package com.github.niqdev.mjpeg;
+
+/**
+ * Motion detected on a single frame, reported at 8x8 block granularity.
+ */
+public class MjpegMotionEvent {
+    public static final int BLOCK_SIZE = 8;
+
+    private final long timestamp;
+    private final int blocksWide;
+    private final int blocksHigh;
+    private final int changedBlocks;
+    private final byte[] mask;
+
+    MjpegMotionEvent(long timestamp, int blocksWide, int blocksHigh, int changedBlocks, byte[] mask) {
+        this.timestamp = timestamp;
+        this.blocksWide = blocksWide;
+        this.blocksHigh = blocksHigh;
+        this.changedBlocks = changedBlocks;
+        this.mask = mask;
+    }
+
+    /**
+     * @return time of detection in milliseconds
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getBlocksWide() {
+        return blocksWide;
+    }
+
+    public int getBlocksHigh() {
+        return blocksHigh;
+    }
+
+    public int getChangedBlocks() {
+        return changedBlocks;
+    }
+
+    /**
+     * @return fraction of the image in motion, between 0 and 1
+     */
+    public float getChangedRatio() {
+        return (float) changedBlocks / (blocksWide * blocksHigh);
+    }
+
+    public boolean isBlockChanged(int blockX, int blockY) {
+        return mask[blockY * blocksWide + blockX] != 0;
+    }
+
+    /**
+     * Bounding box of the blocks in motion.
+     *
+     * @return {left, top, right, bottom} in pixels of the decoded frame
+     */
+    public int[] getBounds() {
+        int[] bounds = new int[4];
+        getBounds(mask, blocksWide, blocksHigh, bounds);
+        return bounds;
+    }
+
+    static boolean getBounds(byte[] mask, int blocksWide, int blocksHigh, int[] bounds) {
+        int left = blocksWide;
+        int top = blocksHigh;
+        int right = -1;
+        int bottom = -1;
+        for (int y = 0; y < blocksHigh; y++) {
+            for (int x = 0; x < blocksWide; x++) {
+                if (mask[y * blocksWide + x] != 0) {
+                    left = Math.min(left, x);
+                    top = Math.min(top, y);
+                    right = Math.max(right, x);
+                    bottom = Math.max(bottom, y);
+                }
+            }
+        }
+        if (right < 0) {
+            bounds[0] = bounds[1] = bounds[2] = bounds[3] = 0;
+            return false;
+        }
+        bounds[0] = left * BLOCK_SIZE;
+        bounds[1] = top * BLOCK_SIZE;
+        bounds[2] = (right + 1) * BLOCK_SIZE;
+        bounds[3] = (bottom + 1) * BLOCK_SIZE;
+        return true;
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.niqdev.mjpeg;
+
+import android.graphics.Bitmap;
+
+/**
+ * Entry points of the bundled ImageProc/jpeg8d native library.
+ */
+final class MjpegNative {
+
+    static {
+        System.loadLibrary("ImageProc");
+    }
+
+    private MjpegNative() {
+    }
+
+    /**
+     * Decode a frame with jpeg8d into an ARGB_8888 bitmap of the same size.
+     * Frames with restart markers are split in slices decoded concurrently, into the same pixels
+     * as a serial decode.
+     *
+     * @return 0 on success
+     */
+    static native int decode(byte[] jpeg, int length, Bitmap bitmap, int threads);
+
+    /**
+     * Decode with jpeg8d the area at left, top of a frame scaled down by scale into an ARGB_8888
+     * bitmap of the size of the area. Coordinates are in pixels of the scaled frame, the IDCT and the
+     * color conversion are skipped out of the area and decoding stops after its last row.
+     *
+     * @param scale 1, 2, 4 or 8
+     * @return 0 on success
+     */
+    static native int decodeRegion(byte[] jpeg, int length, Bitmap bitmap, int left, int top, int scale);
+
+    /**
+     * Decode with jpeg8d, at full size, the width x height area at left, top of a frame into the
+     * same area of an ARGB_8888 bitmap of the size of the frame, the rest of the bitmap untouched.
+     *
+     * @return 0 on success
+     */
+    static native int decodeArea(byte[] jpeg, int length, Bitmap bitmap, int left, int top, int width, int height);
+
+    static native long motionCreate();
+
+    static native int motionDetect(long handle, byte[] jpeg, int length, int threshold, int learningRate);
+
+    static native int motionBlocksWide(long handle);
+
+    static native int motionBlocksHigh(long handle);
+
+    static native void motionMask(long handle, byte[] mask);
+
+    static native void motionRelease(long handle);
+}
@@ -0,0 +1,190 @@
+package com.github.niqdev.mjpeg;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decodes consecutive frames concurrently on a small pool of workers.
+ * <p>
+ * Frames are handed back strictly in submission order: the queue of pending decodes acts as
+ * reorder buffer and never holds more than the current pool width plus one frame, which bounds
+ * the added latency. The width follows the measured decode time versus the frame interval.
+ */
+class MjpegParallelDecoder {
+    private static final String TAG = MjpegParallelDecoder.class.getSimpleName();
+    // weight of the last sample in the moving averages
+    private static final float SMOOTHING = 0.1f;
+    // keep some headroom, a pool exactly as wide as needed falls behind on every slower frame
+    private static final float WIDTH_MARGIN = 1.25f;
+
+    private final int maxWidth;
+    private final ThreadPoolExecutor executor;
+    private final ArrayDeque<Future<Bitmap>> pending = new ArrayDeque<>();
+    private final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Bitmap> bitmaps = new ConcurrentLinkedQueue<>();
+    private int width = 1;
+    private long lastSubmit = 0;
+    private volatile float decodeMillis = 0;
+    private volatile MjpegTrace trace;
+    private volatile int traceTrack;
+    private float intervalMillis = 0;
+
+    MjpegParallelDecoder(int maxWidth) {
+        this.maxWidth = Math.max(1, maxWidth);
+        this.executor = new ThreadPoolExecutor(this.maxWidth, this.maxWidth, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * Record the decodes of the next frames on the workers, null to stop.
+     */
+    void setTrace(MjpegTrace trace, int track) {
+        this.traceTrack = track;
+        this.trace = trace;
+    }
+
+    /**
+     * Queue a frame for decoding, the bytes are copied.
+     * Blocks while the reorder buffer is full, until the oldest frame is decoded.
+     *
+     * @param frameNumber of the frame in its stream, for the trace
+     * @param metrics     recording the decode on the worker
+     */
+    void submit(byte[] frame, int length, long frameNumber, MjpegMetrics metrics) {
+        long now = System.nanoTime();
+        if (lastSubmit != 0) {
+            intervalMillis += SMOOTHING * ((now - lastSubmit) / 1e6f - intervalMillis);
+            adaptWidth();
+        }
+        lastSubmit = now;
+
+        if (pending.size() >= width) {
+            await(pending.peekFirst());
+        }
+
+        byte[] buffer = buffers.poll();
+        if (buffer == null || buffer.length < length) {
+            buffer = new byte[Math.max(length, frame.length)];
+        }
+        System.arraycopy(frame, 0, buffer, 0, length);
+        final byte[] data = buffer;
+        final MjpegTrace frameTrace = trace;
+        final int track = traceTrack;
+        pending.addLast(executor.submit(() -> decode(data, length, metrics, frameTrace, track, frameNumber)));
+    }
+
+    /**
+     * @return the next frame in order if its decode is complete, null otherwise
+     */
+    Bitmap poll() {
+        while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            Bitmap bitmap = await(pending.pollFirst());
+            if (bitmap != null) {
+                return bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Give back a bitmap returned by {@link #poll()} once drawn, to be reused by the next decodes.
+     */
+    void release(Bitmap bitmap) {
+        if (bitmaps.size() <= maxWidth
+                && MjpegMemoryBudget.getInstance().getPressure() == MjpegMemoryBudget.Pressure.NONE) {
+            bitmaps.offer(bitmap);
+        }
+    }
+
+    /**
+     * Drop the spare buffers and bitmaps.
+     */
+    void trim() {
+        buffers.clear();
+        bitmaps.clear();
+    }
+
+    /**
+     * @return bytes of the spare bitmaps
+     */
+    long getBitmapBytes() {
+        long bytes = 0;
+        for (Bitmap bitmap : bitmaps) {
+            bytes += (long) bitmap.getRowBytes() * bitmap.getHeight();
+        }
+        return bytes;
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+        pending.clear();
+        buffers.clear();
+        bitmaps.clear();
+    }
+
+    private Bitmap decode(byte[] data, int length, MjpegMetrics metrics, MjpegTrace frameTrace, int track, long frameNumber) {
+        if (frameTrace != null) {
+            MjpegTraceSection.begin(MjpegTrace.Stage.DECODE.getLabel());
+        }
+        long start = System.nanoTime();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inMutable = true;
+        options.inBitmap = bitmaps.poll();
+        Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        } catch (IllegalArgumentException e) {
+            // the reused bitmap doesn't fit, e.g. the resolution changed
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(data, 0, length, options);
+        }
+        buffers.offer(data);
+        long end = System.nanoTime();
+        long elapsed = end - start;
+        if (frameTrace != null) {
+            MjpegTraceSection.end();
+            frameTrace.record(track, MjpegTrace.Stage.DECODE, frameNumber, start, end);
+        }
+        decodeMillis += SMOOTHING * (elapsed / 1e6f - decodeMillis);
+        if (bitmap != null) {
+            metrics.onFrameDecoded(elapsed);
+        } else {
+            metrics.onFrameDropped();
+        }
+        return bitmap;
+    }
+
+    private Bitmap await(Future<Bitmap> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "error decoding frame", e.getCause());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private void adaptWidth() {
+        if (intervalMillis <= 0) {
+            return;
+        }
+        int target = (int) Math.ceil(decodeMillis * WIDTH_MARGIN / intervalMillis);
+        width = Math.max(1, Math.min(maxWidth, target));
+    }
+}
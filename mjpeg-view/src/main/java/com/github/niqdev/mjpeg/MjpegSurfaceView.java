@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -11,11 +12,18 @@ import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import androidx.annotation.NonNull;
 import androidx.annotation.StyleableRes;
 
@@ -24,11 +32,47 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
         STANDARD, BEST_FIT, SCALE_FIT, FULLSCREEN
     }
     private static final String TAG = MjpegSurfaceView.class.getSimpleName();
+    // stream:type="stream_native"
+    private static final int TYPE_NATIVE = 1;
+    // dirty regions are aligned to the largest MCU, i.e. 16x16 with 4:2:0 subsampling
+    private static final int MCU_SIZE = 16;
+    // DC coefficients miss texture-only changes, decode the whole frame periodically
+    private static final int DIRTY_REGION_REFRESH_INTERVAL = 30;
+    // above this ratio a full decode is cheaper than a region decode
+    private static final float DIRTY_REGION_MAX_RATIO = 0.6f;
+    private static final int NATIVE_DECODE_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final float MAX_ZOOM = 8f;
+    // largest downscale of jpeg8d and BitmapFactory in a single decode
+    private static final int MAX_SAMPLE_SIZE = 8;
+    private static final long MAX_JITTER_BUFFER_MILLIS = 1000;
+    // frames held by the jitter buffer per second of target latency, enough for 60 fps
+    private static final int JITTER_BUFFER_FPS = 60;
+    // the render loop checks it is still running at least this often
+    private static final long JITTER_POLL_MILLIS = 100;
+    private static final long DEFAULT_STANDBY_TIMEOUT_MILLIS = 30000;
+    // bounds the wait of a new rendering thread for the last frame of the one it replaces
+    private static final long SURFACE_RELEASE_MILLIS = 500;
+    // between two measures of the stream of a ladder, and choices of the stream to play
+    private static final long LADDER_INTERVAL_MILLIS = 2000;
+    // closes the streams and joins the rendering threads of all the views, off the main thread
+    private static final ExecutorService TEARDOWN = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "MjpegTeardown");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // closes the streams of the views left in standby, a read stuck on a stalled camera included
+    private static final ScheduledExecutorService STANDBY_TIMEOUT = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "MjpegStandby");
+        thread.setDaemon(true);
+        return thread;
+    });
     private MjpegViewThread thread;
     private MjpegInputStream mIn = null;
     public boolean showFps = true;
     private volatile boolean isRunning = false;
     private volatile boolean surfaceDone = false;
+    // held from the check of surfaceDone to the post of the canvas, by every draw of the surface
+    private final Object surfaceLock = new Object();
     private Paint fpsPaint;
     private final int overlayTextColor = Color.WHITE;
     private final int overlayBackgroundColor = Color.DKGRAY;
@@ -38,6 +82,36 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     private DisplayMode displayMode;
     private boolean resume = false;
     private MjpegRecordingHandler onFrameCapturedListener;
+    private volatile boolean skipDuplicateFrames = true;
+    private volatile long skippedFrameCount = 0;
+    private volatile boolean dirtyRegionRendering = false;
+    private int maxDecodeThreads = 1;
+    private volatile boolean nativeDecoding = false;
+    private volatile float updatedPixelRatio = 1f;
+    private volatile float averageUpdatedPixelRatio = 1f;
+    private volatile float zoom = 1f;
+    private volatile float panX = 0.5f;
+    private volatile float panY = 0.5f;
+    private volatile boolean viewportChanged = false;
+    private volatile long frameLatencyMillis = -1;
+    private volatile OnFramePresentedListener onFramePresentedListener;
+    private volatile long jitterBufferMillis = 0;
+    private volatile MjpegJitterBuffer jitterBuffer;
+    private volatile boolean standby = false;
+    // guarded by this, a timeout of an earlier standby closes nothing
+    private ScheduledFuture<?> standbyTimeout;
+    private int standbyGeneration = 0;
+    private volatile long standbyTimeoutMillis = DEFAULT_STANDBY_TIMEOUT_MILLIS;
+    private volatile long lastStopMillis = -1;
+    private volatile MjpegTrace trace;
+    private volatile int traceTrack;
+    private volatile MjpegThumbnailCache thumbnailCache;
+    private volatile MjpegStreamLadder ladder;
+    private volatile int ladderRung = -1;
+    private volatile boolean ladderResized = false;
+    // guarded by this, a switch connected for an older ladder or before a stop is dropped
+    private int ladderGeneration = 0;
+    private boolean ladderSwitching = false;
 
 
     public MjpegSurfaceView(Context context, AttributeSet attrs) {
@@ -49,12 +123,14 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
         displayMode = DisplayMode.STANDARD;
         dispWidth = getWidth();
         dispHeight = getHeight();
+        nativeDecoding = getPropertyInt(attrs, R.styleable.MjpegSurfaceView, R.styleable.MjpegSurfaceView_type) == TYPE_NATIVE;
+        MjpegMemoryCallbacks.register(context);
+        // once, init() runs again at every source
+        getHolder().addCallback(this);
         init();
     }
     private void init() {
-        SurfaceHolder holder = this.getHolder();
-        holder.addCallback(this);
-        thread = new MjpegViewThread(holder);
+        thread = new MjpegViewThread(this.getHolder());
         this.setFocusable(true);
         resume = true;
     }
@@ -68,6 +144,16 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
             typedArray.recycle();
         }
     }
+
+    public int getPropertyInt(AttributeSet attributeSet, @StyleableRes int[] attrs, int attrIndex) {
+        TypedArray typedArray = getContext().getTheme()
+                .obtainStyledAttributes(attributeSet, attrs, 0, 0);
+        try {
+            return typedArray.getInt(attrIndex, 0);
+        } finally {
+            typedArray.recycle();
+        }
+    }
     @Override
     public void surfaceCreated(SurfaceHolder holder) {
         surfaceDone = true;
@@ -78,10 +164,19 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
             dispWidth = width;
             dispHeight = height;
         }
+        ladderResized = true;
     }
     @Override
     public void surfaceDestroyed(SurfaceHolder holder) {
-        surfaceDone = false;
+        // the surface must not be drawn on once this returns: waits for a draw in progress only,
+        // the rendering thread itself is joined off the main thread
+        synchronized (surfaceLock) {
+            surfaceDone = false;
+        }
+        if (standby) {
+            // the connection outlives the surface until wake() or the standby timeout
+            return;
+        }
         stopPlayback();
         if (thread != null) {
             thread = null;
@@ -89,7 +184,21 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
     }
 
     public void setSource(@NonNull MjpegInputStream stream) {
+        synchronized (this) {
+            ladder = null;
+            ladderRung = -1;
+            ladderGeneration++;
+        }
+        if (stream == mIn && isRunning) {
+            // already playing it, a second thread would read it too
+            return;
+        }
+        if (mIn != null) {
+            // replaced without stopPlayback(), its connection would stay open
+            stopPlayback();
+        }
         mIn = stream;
+        stream.setTrace(trace, traceTrack);
         // make sure resume is calling resumePlayback()
         if (!resume) {
             startPlayback();
@@ -98,9 +207,321 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
         }
     }
 
+    /**
+     * Play the smallest stream of the ladder fitting the size of the view within the bandwidth
+     * measured, e.g. the sub-stream of a camera in a tile and its main stream full-screen, and
+     * switch as the view is resized or the bandwidth changes. The stream on screen keeps playing
+     * until the next one has its first frame, drawn over it without a black frame in between.
+     *
+     * @param ladder of the streams of a camera
+     */
+    public void setSource(@NonNull MjpegStreamLadder ladder) {
+        int generation;
+        synchronized (this) {
+            this.ladder = ladder;
+            ladderRung = -1;
+            generation = ++ladderGeneration;
+            ladderSwitching = true;
+        }
+        switchRung(ladder, generation, ladder.select(dispWidth, dispHeight));
+    }
+
+    /**
+     * @return index in the ladder of the stream playing, -1 without a ladder or before its first stream
+     */
+    public int getLadderRung() {
+        return ladderRung;
+    }
+
+    /*
+     * From the rendering thread: switch to another stream of the ladder unless already switching.
+     */
+    private void requestRung(MjpegStreamLadder current, int rung) {
+        int generation;
+        synchronized (this) {
+            if (current != ladder || ladderSwitching || !isRunning) {
+                return;
+            }
+            generation = ladderGeneration;
+            ladderSwitching = true;
+        }
+        switchRung(current, generation, rung);
+    }
+
+    /*
+     * Connect to a stream of the ladder and parse its first frame off the main thread, the current
+     * stream playing meanwhile, then hand the view over to it.
+     */
+    private void switchRung(MjpegStreamLadder current, int generation, int rung) {
+        Thread connector = new Thread(() -> {
+            MjpegInputStream stream = null;
+            try {
+                stream = current.connect(rung);
+                int length = stream.readMjpegFrame();
+                MjpegInputStream connected = stream;
+                post(() -> handOver(generation, rung, connected, length));
+            } catch (IOException | RuntimeException e) {
+                // a runtime failure too, or the ladder would be switching forever
+                Log.e(TAG, "error switching to " + current.getUrl(rung), e);
+                current.onFailed(rung);
+                if (stream != null) {
+                    closeQuietly(stream);
+                }
+                synchronized (this) {
+                    if (generation == ladderGeneration) {
+                        ladderSwitching = false;
+                    }
+                }
+            }
+        }, "MjpegLadder");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    /*
+     * Play the stream of the ladder just connected, with its first frame already parsed, from a new
+     * rendering thread drawing once the previous one is done.
+     */
+    private void handOver(int generation, int rung, MjpegInputStream stream, int firstFrameLength) {
+        MjpegInputStream previous;
+        synchronized (this) {
+            if (generation != ladderGeneration) {
+                // stopped or replaced meanwhile, closing may block on the socket
+                TEARDOWN.execute(() -> closeQuietly(stream));
+                return;
+            }
+            ladderSwitching = false;
+            previous = mIn;
+            MjpegViewThread stopping = thread;
+            mIn = stream;
+            ladderRung = rung;
+            stream.setTrace(trace, traceTrack);
+            init();
+            thread.handOver(stopping != null && stopping.isAlive() ? stopping : null, firstFrameLength);
+            isRunning = true;
+            thread.start();
+        }
+        if (previous != null) {
+            // aborts a read of the previous thread, which then stops as the source changed
+            TEARDOWN.execute(() -> closeQuietly(previous));
+        }
+    }
+
+    private static void closeQuietly(MjpegInputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            Log.e(TAG, "error closing input stream", e);
+        }
+    }
+
     public void setDisplayMode(@NonNull DisplayMode mode) {
         displayMode = mode;
     }
+    /**
+     * Skip decode and redraw of frames with the same image data as the previous one, enabled by default.
+     *
+     * @param skipDuplicateFrames true to skip them
+     */
+    public void setSkipDuplicateFrames(boolean skipDuplicateFrames) {
+        this.skipDuplicateFrames = skipDuplicateFrames;
+    }
+
+    /**
+     * @return number of duplicate frames neither decoded nor drawn
+     */
+    public long getSkippedFrameCount() {
+        return skippedFrameCount;
+    }
+
+    /**
+     * Counters and timings of the stream being played, from parsing to drawing,
+     * the fps overlay is drawn from them.
+     *
+     * @return metrics of the current source, null if none
+     */
+    public MjpegMetrics getMetrics() {
+        MjpegInputStream in = mIn;
+        return in != null ? in.getMetrics() : null;
+    }
+
+    /**
+     * Draw the last frame cached for the camera as soon as playback starts, until the first live
+     * one, and keep the cache up to date with the frames shown. Off by default.
+     *
+     * @param cache of the frames, usually shared by all the views of a wall, null to stop caching
+     * @see MjpegMetrics.Snapshot#getTimeToFirstPixelNanos()
+     */
+    public void setThumbnailCache(MjpegThumbnailCache cache) {
+        this.thumbnailCache = cache;
+    }
+
+    public MjpegThumbnailCache getThumbnailCache() {
+        return thumbnailCache;
+    }
+
+    /**
+     * @return memory held for the current stream, by its buffers and the bitmaps of this view, null without a stream
+     * @see MjpegMemoryBudget
+     */
+    public MjpegMemoryBudget.Account getMemoryAccount() {
+        MjpegInputStream in = mIn;
+        return in != null ? in.getMemoryAccount() : null;
+    }
+
+    /**
+     * Record the stages of every frame, from the wait for the camera to the post of the surface,
+     * into trace and as {@link android.os.Trace} sections. Off by default.
+     *
+     * @param trace timeline to record into, null to stop tracing
+     * @param name  of the row of this view in the timeline
+     */
+    public void setTrace(MjpegTrace trace, String name) {
+        traceTrack = trace != null ? trace.track(name) : 0;
+        this.trace = trace;
+        MjpegInputStream in = mIn;
+        if (in != null) {
+            in.setTrace(trace, traceTrack);
+        }
+    }
+
+    /**
+     * Times of every frame shown, called on the rendering thread right after the frame is posted.
+     */
+    public interface OnFramePresentedListener {
+        /**
+         * All times are wall-clock, in milliseconds since the epoch.
+         *
+         * @param frameNumber        position of the frame in the stream
+         * @param captureTimestamp   given by the camera, -1 if unknown, see {@link MjpegInputStream#getCaptureTimestamp()}
+         * @param receivedTimestamp  end of the frame received
+         * @param decodedTimestamp   end of the decoding
+         * @param presentedTimestamp frame posted to the surface
+         */
+        void onFramePresented(long frameNumber, long captureTimestamp, long receivedTimestamp,
+                              long decodedTimestamp, long presentedTimestamp);
+    }
+
+    /**
+     * Glass-to-glass latency of the last frame shown, from its capture timestamp to its post to the
+     * surface, see {@link MjpegInputStream#getCaptureTimestamp()}. The camera and the device must
+     * have synchronized clocks, e.g. a {@link MjpegSimulator} running in the app. Not measured
+     * with parallel decoding.
+     *
+     * @return milliseconds, -1 if no frame had a capture timestamp
+     */
+    public long getFrameLatencyMillis() {
+        return frameLatencyMillis;
+    }
+
+    /**
+     * Follow the receive, decode and present times of every frame shown, with parallel decoding
+     * only those of the frames decoded in place are reported.
+     *
+     * @param onFramePresentedListener listener, or null to remove it
+     */
+    public void setOnFramePresentedListener(OnFramePresentedListener onFramePresentedListener) {
+        this.onFramePresentedListener = onFramePresentedListener;
+    }
+
+    /**
+     * Compare consecutive frames block by block and decode and redraw only the area
+     * which changed, disabled by default. Best suited to fixed cameras. Frames are then
+     * decoded with the bundled jpeg8d, as with {@link #setNativeDecoding(boolean)}: the
+     * comparison entropy decodes each frame once more, on top of the area decoded.
+     *
+     * @param dirtyRegionRendering true to enable it
+     */
+    public void setDirtyRegionRendering(boolean dirtyRegionRendering) {
+        this.dirtyRegionRendering = dirtyRegionRendering;
+    }
+
+    /**
+     * @return fraction of the pixels decoded and redrawn for the last frame
+     */
+    public float getUpdatedPixelRatio() {
+        return updatedPixelRatio;
+    }
+
+    /**
+     * @return fraction of the pixels decoded and redrawn since playback started
+     */
+    public float getAverageUpdatedPixelRatio() {
+        return averageUpdatedPixelRatio;
+    }
+
+    /**
+     * Decode consecutive frames concurrently, for streams whose frame rate is higher than a single
+     * core can decode. Frames are still presented strictly in order, and the number of threads
+     * used adapts to the decode time versus the frame interval. Applies from the next playback.
+     *
+     * @param maxDecodeThreads upper bound of decoding threads, 1 decodes on the render thread
+     */
+    public void setParallelDecoding(int maxDecodeThreads) {
+        this.maxDecodeThreads = Math.max(1, maxDecodeThreads);
+    }
+
+    /**
+     * Hold frames up to a target latency and present them at the cadence of the camera, following its
+     * capture timestamps or the smoothed arrival times, instead of as soon as they are decoded. Smooths
+     * the motion of streams arriving in bursts, e.g. over Wi-Fi, at the cost of that much latency;
+     * {@link MjpegMetrics.Snapshot#getJitterNanos()} tells how much is needed. Frames are read on a
+     * thread of their own. Applies from the next playback.
+     *
+     * @param targetLatencyMillis 0 presents frames as soon as they are decoded, the default, up to 1000
+     */
+    public void setJitterBuffer(long targetLatencyMillis) {
+        this.jitterBufferMillis = Math.max(0, Math.min(MAX_JITTER_BUFFER_MILLIS, targetLatencyMillis));
+    }
+
+    /**
+     * @return the jitter buffer of the current playback, with its jitter and late frames, null if disabled
+     */
+    public MjpegJitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    /**
+     * Decode with the bundled jpeg8d library instead of BitmapFactory, same as stream:type="stream_native".
+     * Large frames with restart markers are decoded in horizontal slices on all cores.
+     *
+     * @param nativeDecoding true to enable it
+     */
+    public void setNativeDecoding(boolean nativeDecoding) {
+        this.nativeDecoding = nativeDecoding;
+    }
+
+    /**
+     * Digital zoom: show only the area of the frame around the pan position, enlarged to where the
+     * whole frame is drawn. Only that area is decoded, downscaled while it still has more pixels than
+     * the surface, so zooming in makes decoding cheaper. While zoomed, frames are decoded one at a
+     * time on the render thread and dirty-region rendering is suspended.
+     *
+     * @param zoom 1 shows the whole frame, up to 8
+     */
+    public void setZoom(float zoom) {
+        this.zoom = Math.max(1f, Math.min(MAX_ZOOM, zoom));
+        viewportChanged = true;
+        // zoomed in, a larger stream of the ladder may be worth it
+        ladderResized = true;
+    }
+
+    public float getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Center of the zoomed area, as a fraction of the frame size, clamped to keep the area inside the frame.
+     *
+     * @param x from 0 left edge to 1 right edge, 0.5 by default
+     * @param y from 0 top edge to 1 bottom edge, 0.5 by default
+     */
+    public void setPan(float x, float y) {
+        panX = Math.max(0f, Math.min(1f, x));
+        panY = Math.max(0f, Math.min(1f, y));
+        viewportChanged = true;
+    }
+
     public void setOnFrameCapturedListener(@NonNull MjpegRecordingHandler onFrameCapturedListener) {
         this.onFrameCapturedListener = onFrameCapturedListener;
     }
@@ -141,41 +562,191 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
      * @see https://github.com/niqdev/ipcam-view/issues/14
      */
 
-    public synchronized void stopPlayback() {
-        isRunning = false;
-        boolean retry = true;
-        while (retry) {
+    /**
+     * Keep the connection open and parsed but stop decoding, e.g. from <code>onPause()</code> or when
+     * scrolled off-screen, instead of {@link #stopPlayback()}. Only the newest frame is kept, raw, so
+     * that {@link #wake()} shows an image within one decode rather than after a reconnect. The surface
+     * may be destroyed meanwhile. After the standby timeout the connection is closed.
+     */
+    public synchronized void standby() {
+        if (isRunning && mIn != null && !standby) {
+            standby = true;
+            int generation = ++standbyGeneration;
+            standbyTimeout = STANDBY_TIMEOUT.schedule(() -> closeStandbyStream(generation),
+                    standbyTimeoutMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Leave standby, drawing the newest frame as soon as the surface is available.
+     *
+     * @return true if playing on the open connection, false if it was closed, e.g. after the
+     * standby timeout, and a new source must be set
+     */
+    public synchronized boolean wake() {
+        cancelStandbyTimeout();
+        return isRunning && mIn != null;
+    }
+
+    public boolean isStandby() {
+        return standby;
+    }
+
+    /**
+     * @param timeoutMillis time in standby after which the connection is closed, 30 seconds by default
+     */
+    public void setStandbyTimeout(long timeoutMillis) {
+        this.standbyTimeoutMillis = Math.max(0, timeoutMillis);
+    }
+
+    /*
+     * Leave standby, holding this.
+     */
+    private void cancelStandbyTimeout() {
+        standby = false;
+        standbyGeneration++;
+        if (standbyTimeout != null) {
+            standbyTimeout.cancel(false);
+            standbyTimeout = null;
+        }
+    }
+
+    /*
+     * Close the stream once the standby timed out, whatever the rendering thread is blocked on:
+     * it stops as it is no longer running.
+     */
+    private void closeStandbyStream(int generation) {
+        MjpegInputStream in;
+        synchronized (this) {
+            if (!standby || generation != standbyGeneration) {
+                return;
+            }
+            isRunning = false;
+            standby = false;
+            standbyTimeout = null;
+            in = mIn;
+            mIn = null;
+        }
+        if (in != null) {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stop playing without blocking: the connection is closed first, aborting a read stuck on the
+     * network, then the rendering thread is joined, off the calling thread. Views stopped together,
+     * e.g. a grid in <code>onDestroy()</code>, tear down concurrently.
+     */
+    public void stopPlayback() {
+        long start = System.nanoTime();
+        MjpegInputStream in;
+        MjpegViewThread stopping;
+        synchronized (this) {
+            isRunning = false;
+            cancelStandbyTimeout();
+            in = mIn;
+            stopping = thread;
+            mIn = null;
+            ladder = null;
+            ladderRung = -1;
+            ladderGeneration++;
+            ladderSwitching = false;
+        }
+        if (in == null && stopping == null) {
+            return;
+        }
+        TEARDOWN.execute(() -> {
+            // close the connection
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "error closing input stream", e);
+                }
+            }
             try {
                 // make sure the thread is not null
-                if (thread != null) {
-                    thread.join(500);
+                if (stopping != null && stopping.isAlive()) {
+                    stopping.join();
                 }
-                retry = false;
             } catch (InterruptedException e) {
                 Log.e(TAG, "error stopping playback thread", e);
             }
-        }
-
-        // close the connection
-        if (mIn != null) {
-            try {
-                mIn.close();
-            } catch (IOException e) {
-                Log.e(TAG, "error closing input stream", e);
+            long stopNanos = System.nanoTime() - start;
+            lastStopMillis = TimeUnit.NANOSECONDS.toMillis(stopNanos);
+            if (in != null) {
+                in.getMetrics().onStopped(stopNanos);
             }
-            mIn = null;
-        }
+        });
+    }
+
+    /**
+     * @return time taken by the last {@link #stopPlayback()} to close the connection and stop
+     * rendering, in milliseconds, -1 until stopped once
+     */
+    public long getLastStopMillis() {
+        return lastStopMillis;
     }
     class MjpegViewThread extends Thread {
         private final SurfaceHolder mSurfaceHolder;
-        private int frameCounter = 0;
+        private final PorterDuffXfermode fpsXfermode = new PorterDuffXfermode(PorterDuff.Mode.DST_OVER);
+        private long fpsStart;
+        private long fpsRendered = 0;
+        private MjpegMetrics metrics;
+        // the stream played, mIn is cleared as soon as playback stops
+        private MjpegInputStream in;
+        // tracing of the frame in progress, fixed for the whole frame to keep the sections balanced
+        private MjpegTrace frameTrace;
+        private int frameTraceTrack;
+        private long frameNumber;
+        // start and end of the decoding of the current frame
+        private long decodeStartNanos;
+        private long decodedNanos;
+        // smoothed time from the start of the decoding to the post of a frame
+        private long presentLeadNanos = 0;
+        // newest frame parsed while parked, still to draw: its length in the stream buffer, or held from the jitter buffer
+        private int parkedLength = 0;
+        private MjpegFrame parkedFrame;
+        // the bitmaps of this thread are charged to the account of the current stream
+        private MjpegMemoryBudget.Account memoryAccount;
+        private long chargedBitmapBytes = 0;
+        private volatile boolean trimRequested = false;
+        private final MjpegMemoryBudget.Listener trimListener = pressure -> trimRequested = true;
         private Bitmap ovl;
+        private MjpegMotionDetector blockDiff;
+        private Bitmap dirtyFrame;
+        private int framesSinceRefresh = 0;
+        private long updatedPixels = 0;
+        private long totalPixels = 0;
+        private final int[] changedBounds = new int[4];
+        private final Rect updatedRegion = new Rect();
+        private final Rect dirtyRect = new Rect();
+        private final BitmapFactory.Options boundsOptions = new BitmapFactory.Options();
+        private final BitmapFactory.Options zoomOptions = new BitmapFactory.Options();
+        private final Rect cropRect = new Rect();
+        private Rect zoomDestRect;
+        private Bitmap zoomFrame;
+        // the thread of the previous stream of a ladder, drawing until it stops
+        private MjpegViewThread previousThread;
+        // start of the current measure of the stream of a ladder, 0 before its first frame
+        private long ladderMeasuredNanos = 0;
+        private long ladderBytes;
+        private long ladderFrames;
 
         // no more accessible
         MjpegViewThread(SurfaceHolder surfaceHolder) {
             mSurfaceHolder = surfaceHolder;
         }
 
+        /*
+         * Before starting: play a stream of a ladder whose first frame is parsed already, once the
+         * thread of the previous stream, if any, is done.
+         */
+        void handOver(MjpegViewThread previous, int firstFrameLength) {
+            previousThread = previous;
+            parkedLength = firstFrameLength;
+        }
+
         private Rect destRect(int bmw, int bmh) {
             int tempx;
             int tempy;
@@ -197,6 +768,155 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
                     ((float) bheight / 2) - ((p.ascent() + p.descent()) / 2) + 1, p);
             return bm;
         }
+        /*
+         * Decode with jpeg8d into a persistent bitmap only the MCU aligned area whose DC
+         * coefficients changed since the previous frame, and store it in updatedRegion.
+         */
+        private Bitmap decodeChangedRegion(byte[] frame, int length) {
+            if (blockDiff == null) {
+                blockDiff = new MjpegMotionDetector(null).threshold(0).learningRate(1f);
+            }
+            int changedBlocks = blockDiff.detect(frame, length);
+            boolean refresh = dirtyFrame == null || changedBlocks < 0
+                    || ++framesSinceRefresh >= DIRTY_REGION_REFRESH_INTERVAL;
+
+            if (!refresh) {
+                if (!blockDiff.changedBounds(changedBounds)) {
+                    updatedRegion.setEmpty();
+                    return dirtyFrame;
+                }
+                int width = dirtyFrame.getWidth();
+                int height = dirtyFrame.getHeight();
+                updatedRegion.set(
+                        changedBounds[0] / MCU_SIZE * MCU_SIZE,
+                        changedBounds[1] / MCU_SIZE * MCU_SIZE,
+                        Math.min(width, (changedBounds[2] + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE),
+                        Math.min(height, (changedBounds[3] + MCU_SIZE - 1) / MCU_SIZE * MCU_SIZE));
+
+                if (updatedRegion.width() * updatedRegion.height() < DIRTY_REGION_MAX_RATIO * width * height) {
+                    // in place, the rest of the bitmap keeps the previous frames
+                    if (MjpegNative.decodeArea(frame, length, dirtyFrame, updatedRegion.left, updatedRegion.top,
+                            updatedRegion.width(), updatedRegion.height()) == 0) {
+                        return dirtyFrame;
+                    }
+                    Log.w(TAG, "native region decode failed, decoding full frame");
+                }
+            }
+
+            Bitmap bm = decodeNative(frame, length, dirtyFrame);
+            if (bm == null) {
+                // not decodable, the persistent bitmap may be half written: refresh it with the next frame
+                framesSinceRefresh = DIRTY_REGION_REFRESH_INTERVAL;
+                updatedRegion.setEmpty();
+                return null;
+            }
+            dirtyFrame = bm;
+            framesSinceRefresh = 0;
+            updatedRegion.set(0, 0, bm.getWidth(), bm.getHeight());
+            return bm;
+        }
+
+        /*
+         * Decode with jpeg8d into bitmap, reallocated if the resolution changed.
+         */
+        private Bitmap decodeNative(byte[] frame, int length, Bitmap bitmap) {
+            boundsOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(frame, 0, length, boundsOptions);
+            if (boundsOptions.outWidth <= 0 || boundsOptions.outHeight <= 0) {
+                return null;
+            }
+            if (bitmap == null || bitmap.getWidth() != boundsOptions.outWidth || bitmap.getHeight() != boundsOptions.outHeight
+                    || bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+                bitmap = Bitmap.createBitmap(boundsOptions.outWidth, boundsOptions.outHeight, Bitmap.Config.ARGB_8888);
+            }
+            if (MjpegNative.decode(frame, length, bitmap, NATIVE_DECODE_THREADS) != 0) {
+                Log.w(TAG, "native decode failed, skipping frame");
+                return null;
+            }
+            return bitmap;
+        }
+
+        /*
+         * Decode the zoomed area of the frame, downscaled by the largest power of two which still
+         * leaves a pixel per pixel of zoomDestRect, where the whole frame would be drawn fitted in the surface.
+         */
+        private Bitmap decodeZoomed(byte[] frame, int length) {
+            boundsOptions.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(frame, 0, length, boundsOptions);
+            int width = boundsOptions.outWidth;
+            int height = boundsOptions.outHeight;
+            if (width <= 0 || height <= 0) {
+                return null;
+            }
+
+            float currentZoom = zoom;
+            int cropWidth = Math.max(1, Math.round(width / currentZoom));
+            int cropHeight = Math.max(1, Math.round(height / currentZoom));
+            int left = Math.max(0, Math.min(width - cropWidth, Math.round(panX * width - cropWidth / 2f)));
+            int top = Math.max(0, Math.min(height - cropHeight, Math.round(panY * height - cropHeight / 2f)));
+            cropRect.set(left, top, left + cropWidth, top + cropHeight);
+
+            float fit = Math.min(1f, Math.min((float) dispWidth / width, (float) dispHeight / height));
+            zoomDestRect = destRect(Math.round(width * fit), Math.round(height * fit));
+            int sampleSize = 1;
+            while (sampleSize < MAX_SAMPLE_SIZE
+                    && cropWidth / (sampleSize * 2) >= zoomDestRect.width()
+                    && cropHeight / (sampleSize * 2) >= zoomDestRect.height()) {
+                sampleSize *= 2;
+            }
+
+            if (nativeDecoding) {
+                // jpeg8d rounds the scaled size up, the area is in pixels of the scaled frame
+                int scaledLeft = left / sampleSize;
+                int scaledTop = top / sampleSize;
+                int scaledWidth = Math.min((width + sampleSize - 1) / sampleSize - scaledLeft,
+                        (cropWidth + sampleSize - 1) / sampleSize);
+                int scaledHeight = Math.min((height + sampleSize - 1) / sampleSize - scaledTop,
+                        (cropHeight + sampleSize - 1) / sampleSize);
+                if (zoomFrame == null || zoomFrame.getWidth() != scaledWidth || zoomFrame.getHeight() != scaledHeight
+                        || zoomFrame.getConfig() != Bitmap.Config.ARGB_8888) {
+                    zoomFrame = Bitmap.createBitmap(scaledWidth, scaledHeight, Bitmap.Config.ARGB_8888);
+                }
+                if (MjpegNative.decodeRegion(frame, length, zoomFrame, scaledLeft, scaledTop, sampleSize) != 0) {
+                    Log.w(TAG, "native region decode failed, skipping frame");
+                    return null;
+                }
+                return zoomFrame;
+            }
+
+            try {
+                BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(frame, 0, length, false);
+                zoomOptions.inMutable = true;
+                zoomOptions.inSampleSize = sampleSize;
+                zoomOptions.inBitmap = zoomFrame;
+                Bitmap bm;
+                try {
+                    bm = decoder.decodeRegion(cropRect, zoomOptions);
+                } catch (IllegalArgumentException e) {
+                    // the reused bitmap doesn't fit, e.g. zoom or resolution changed
+                    zoomOptions.inBitmap = null;
+                    bm = decoder.decodeRegion(cropRect, zoomOptions);
+                }
+                decoder.recycle();
+                if (bm != null) {
+                    zoomFrame = bm;
+                }
+                return bm;
+            } catch (IOException e) {
+                Log.w(TAG, "region decode failed, skipping frame", e);
+                return null;
+            }
+        }
+
+        private void updatePixelRatio(Bitmap bm) {
+            long pixels = (long) bm.getWidth() * bm.getHeight();
+            long updated = (long) updatedRegion.width() * updatedRegion.height();
+            updatedPixels += updated;
+            totalPixels += pixels;
+            updatedPixelRatio = (float) updated / pixels;
+            averageUpdatedPixelRatio = (float) updatedPixels / totalPixels;
+        }
+
         void frameCapturedWithByteData(byte[] imageByte, byte[] header) {
             if (onFrameCapturedListener != null) {
                 onFrameCapturedListener.onFrameCapturedWithHeader(imageByte, header);
@@ -209,75 +929,571 @@ public class MjpegSurfaceView extends SurfaceView implements SurfaceHolder.Callb
             }
         }
 
+        /*
+         * The current frame, decoded at decodedNanos, has just been posted.
+         */
+        private void presented(long captureTimestamp, long receivedTimestamp) {
+            long presentedNanos = System.nanoTime();
+            long presentedTimestamp = System.currentTimeMillis();
+            presentLeadNanos += (presentedNanos - decodeStartNanos - presentLeadNanos) / 8;
+            metrics.onFirstPixel();
+            if (captureTimestamp >= 0) {
+                frameLatencyMillis = presentedTimestamp - captureTimestamp;
+                metrics.onCaptureToPresent(presentedTimestamp - captureTimestamp);
+            }
+            OnFramePresentedListener listener = onFramePresentedListener;
+            if (listener != null) {
+                listener.onFramePresented(frameNumber, captureTimestamp, receivedTimestamp,
+                        presentedTimestamp - TimeUnit.NANOSECONDS.toMillis(presentedNanos - decodedNanos),
+                        presentedTimestamp);
+            }
+        }
+
+        /*
+         * Offer the frame just shown to the thumbnail cache, taken once per second at most.
+         */
+        private void cacheThumbnail(byte[] frame, int length) {
+            MjpegThumbnailCache cache = thumbnailCache;
+            if (cache != null) {
+                cache.put(in.getUrl(), frame, length);
+            }
+        }
+
+        /*
+         * Draw the last frame cached for the camera of the stream, not counted as rendered,
+         * while the first live one is on its way.
+         */
+        private void renderThumbnail(MjpegThumbnailCache cache, Paint p) {
+            String url = in.getUrl();
+            byte[] jpeg = url != null && surfaceDone ? cache.get(url) : null;
+            Bitmap thumbnail = jpeg != null ? BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length) : null;
+            if (thumbnail == null) {
+                return;
+            }
+            synchronized (surfaceLock) {
+                Canvas c = surfaceDone ? mSurfaceHolder.lockCanvas() : null;
+                if (c != null) {
+                    try {
+                        synchronized (mSurfaceHolder) {
+                            c.drawColor(backgroundColor);
+                            c.drawBitmap(thumbnail, null, destRect(thumbnail.getWidth(), thumbnail.getHeight()), p);
+                        }
+                    } finally {
+                        mSurfaceHolder.unlockCanvasAndPost(c);
+                    }
+                    in.getMetrics().onFirstPixel();
+                }
+            }
+            thumbnail.recycle();
+        }
+
+        /*
+         * Measure the stream of the ladder playing, from its first frame, and switch to another one
+         * fitting better, once per interval or as soon as the view is resized.
+         */
+        private void evaluateLadder() {
+            MjpegStreamLadder current = ladder;
+            int rung = ladderRung;
+            if (current == null || rung < 0 || in != mIn) {
+                return;
+            }
+            long now = System.nanoTime();
+            boolean due = ladderResized;
+            if (ladderMeasuredNanos == 0 || now - ladderMeasuredNanos >= TimeUnit.MILLISECONDS.toNanos(LADDER_INTERVAL_MILLIS)) {
+                MjpegMetrics.Snapshot snapshot = metrics.snapshot();
+                if (ladderMeasuredNanos != 0) {
+                    double seconds = (now - ladderMeasuredNanos) / 1e9;
+                    current.onMeasured(rung, (snapshot.getBytesReceived() - ladderBytes) / seconds,
+                            (snapshot.getFramesReceived() - ladderFrames) / seconds);
+                    due = true;
+                }
+                ladderMeasuredNanos = now;
+                ladderBytes = snapshot.getBytesReceived();
+                ladderFrames = snapshot.getFramesReceived();
+            }
+            if (due) {
+                ladderResized = false;
+                // zoomed in, the frame is enlarged as if the view was
+                int target = current.select(Math.round(dispWidth * zoom), Math.round(dispHeight * zoom));
+                if (target != rung) {
+                    requestRung(current, target);
+                }
+            }
+        }
+
+        /*
+         * Start of a stage of the current frame, opening a section while tracing.
+         */
+        private long beginStage(MjpegTrace.Stage stage) {
+            if (frameTrace != null) {
+                MjpegTraceSection.begin(stage.getLabel());
+            }
+            long start = System.nanoTime();
+            if (stage == MjpegTrace.Stage.DECODE) {
+                decodeStartNanos = start;
+            }
+            return start;
+        }
+
+        /*
+         * The stream playing ended: reconnect through the ladder, to another of its streams while
+         * this one is skipped for a while, or else leave its last frame on screen.
+         */
+        private void streamEnded() {
+            MjpegStreamLadder current = ladder;
+            int rung = ladderRung;
+            if (current == null || rung < 0) {
+                return;
+            }
+            current.onFailed(rung);
+            requestRung(current, current.select(dispWidth, dispHeight));
+        }
+
+        /*
+         * Read the next frame into the buffer of the stream.
+         */
+        private int readFrame() throws IOException {
+            if (frameTrace == null) {
+                return in.readMjpegFrame();
+            }
+            // the stream records the wait and the parsing in the trace
+            MjpegTraceSection.begin(MjpegTrace.Stage.PARSE.getLabel());
+            try {
+                return in.readMjpegFrame();
+            } finally {
+                MjpegTraceSection.end();
+            }
+        }
+
+        /*
+         * Charge the bitmaps held to the account of the stream, and listen to its trim requests.
+         */
+        private void chargeBitmaps(MjpegMemoryBudget.Account account, long bytes) {
+            if (account != memoryAccount) {
+                if (memoryAccount != null) {
+                    memoryAccount.removeListener(trimListener);
+                    memoryAccount.free(chargedBitmapBytes);
+                }
+                chargedBitmapBytes = 0;
+                memoryAccount = account;
+                if (account != null) {
+                    account.addListener(trimListener);
+                }
+            }
+            if (account != null) {
+                account.allocate(bytes - chargedBitmapBytes);
+                chargedBitmapBytes = bytes;
+            }
+        }
+
+        private long sizeOf(Bitmap bitmap) {
+            return bitmap != null ? (long) bitmap.getRowBytes() * bitmap.getHeight() : 0;
+        }
+
+        /*
+         * Release what the next frames can do without, the memory budget is under pressure.
+         */
+        private void trim(MjpegParallelDecoder parallelDecoder) {
+            if (zoom <= 1f) {
+                zoomFrame = null;
+            }
+            if (parallelDecoder != null) {
+                parallelDecoder.trim();
+            }
+        }
+
+        /*
+         * Scale to decode the frame of which previous is the last decoded bitmap: 1 unless the memory
+         * budget is under pressure, then no larger than the surface, halved again under critical pressure.
+         */
+        private int decodeSampleSize(Bitmap previous, int previousSampleSize) {
+            MjpegMemoryBudget.Pressure pressure = MjpegMemoryBudget.getInstance().getPressure();
+            if (pressure == MjpegMemoryBudget.Pressure.NONE || previous == null) {
+                return 1;
+            }
+            int width = previous.getWidth() * previousSampleSize;
+            int height = previous.getHeight() * previousSampleSize;
+            Rect dest = destRect(width, height);
+            int sampleSize = 1;
+            while (sampleSize < MAX_SAMPLE_SIZE
+                    && width / (sampleSize * 2) >= dest.width()
+                    && height / (sampleSize * 2) >= dest.height()) {
+                sampleSize *= 2;
+            }
+            if (pressure == MjpegMemoryBudget.Pressure.CRITICAL && sampleSize < MAX_SAMPLE_SIZE) {
+                sampleSize *= 2;
+            }
+            return sampleSize;
+        }
+
+        /*
+         * In standby or without a surface: parse the next frame without decoding it, keeping only the newest.
+         */
+        private void park(MjpegJitterBuffer jitter) throws IOException, InterruptedException {
+            if (jitter == null) {
+                parkedLength = readFrame();
+                return;
+            }
+            MjpegFrame newest = jitter.pollLatest(JITTER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (newest != null) {
+                if (parkedFrame != null) {
+                    parkedFrame.release();
+                }
+                parkedFrame = newest;
+            }
+        }
+
+        /*
+         * Read the frames of in into buffer until playback stops or the stream ends, after the
+         * frame already parsed, if firstFrameLength > 0.
+         */
+        private Thread startJitterReader(MjpegInputStream in, MjpegJitterBuffer buffer, int capacity, int firstFrameLength) {
+            // frames held, plus the one being read and the one being presented
+            MjpegFramePool pool = in.newFramePool(capacity + 2);
+            Thread reader = new Thread(() -> {
+                try {
+                    if (firstFrameLength > 0 && !buffer.offer(in.takeFrame(pool, firstFrameLength))) {
+                        in.getMetrics().onFrameDropped();
+                    }
+                    while (isRunning) {
+                        if (!buffer.offer(in.readFrame(pool))) {
+                            in.getMetrics().onFrameDropped();
+                        }
+                    }
+                } catch (IOException e) {
+                    // closed by a switch to another stream of a ladder
+                    if (isRunning && in == mIn) {
+                        Log.e(TAG, "encountered exception during read", e);
+                    }
+                } finally {
+                    pool.close();
+                }
+            }, "MjpegJitterReader");
+            reader.setDaemon(true);
+            reader.start();
+            return reader;
+        }
+
+        /*
+         * End of a stage of the current frame, recorded while tracing.
+         *
+         * @return duration of the stage in nanoseconds
+         */
+        private long endStage(MjpegTrace.Stage stage, long start) {
+            long end = System.nanoTime();
+            if (stage == MjpegTrace.Stage.DECODE) {
+                decodedNanos = end;
+            }
+            if (frameTrace != null) {
+                MjpegTraceSection.end();
+                frameTrace.record(frameTraceTrack, stage, frameNumber, start, end);
+            }
+            return end - start;
+        }
+
+        /*
+         * Draw a decoded frame, posting only the area of the surface covering region if not null.
+         */
+        private void render(Bitmap bm, Rect region, Paint p) {
+            render(bm, destRect(bm.getWidth(), bm.getHeight()), region, p);
+        }
+
+        private void render(Bitmap bm, Rect destRect, Rect region, Paint p) {
+            synchronized (surfaceLock) {
+                if (!surfaceDone) {
+                    // destroyed since the frame was read, surfaceDestroyed may have returned
+                    metrics.onFrameDropped();
+                    return;
+                }
+                drawFrame(bm, destRect, region, p);
+            }
+        }
+
+        /*
+         * Lock, draw and post the canvas, holding surfaceLock with the surface still there.
+         */
+        private void drawFrame(Bitmap bm, Rect destRect, Rect region, Paint p) {
+            long renderStart = System.nanoTime();
+            long lockStart = beginStage(MjpegTrace.Stage.LOCK_CANVAS);
+            Canvas c;
+            if (region != null) {
+                float scaleX = (float) destRect.width() / bm.getWidth();
+                float scaleY = (float) destRect.height() / bm.getHeight();
+                dirtyRect.set(
+                        destRect.left + (int) (region.left * scaleX),
+                        destRect.top + (int) (region.top * scaleY),
+                        destRect.left + (int) Math.ceil(region.right * scaleX),
+                        destRect.top + (int) Math.ceil(region.bottom * scaleY));
+                if (showFps && ovl != null) {
+                    dirtyRect.union(destRect.right - ovl.getWidth(), destRect.bottom - ovl.getHeight(),
+                            destRect.right, destRect.bottom);
+                }
+                // the surface may enlarge dirtyRect, the whole frame is drawn clipped to it
+                c = mSurfaceHolder.lockCanvas(dirtyRect);
+            } else {
+                c = mSurfaceHolder.lockCanvas();
+            }
+            endStage(MjpegTrace.Stage.LOCK_CANVAS, lockStart);
+            if (c == null) {
+                Log.w(TAG, "null canvas, skipping render");
+                metrics.onFrameDropped();
+                return;
+            }
+            long drawStart = beginStage(MjpegTrace.Stage.DRAW);
+            try {
+                synchronized (mSurfaceHolder) {
+                    // frameCapturedWithByteData(imageData, header);
+                    frameCapturedWithBitmap(bm);
+
+                    c.drawColor(backgroundColor);
+
+                    c.drawBitmap(bm, null, destRect, p);
+
+                    if (showFps) {
+                        p.setXfermode(fpsXfermode);
+                        if (ovl != null) {
+                            int height = destRect.bottom - ovl.getHeight();
+                            int width = destRect.right - ovl.getWidth();
+                            c.drawBitmap(ovl, width, height, null);
+                        }
+                        p.setXfermode(null);
+                        // rendered frames of the metrics, this one included
+                        long now = System.currentTimeMillis();
+                        if ((now - fpsStart) >= 1000) {
+                            long rendered = metrics.getFramesRendered() + 1;
+                            String fps = (rendered - fpsRendered) * 1000 / (now - fpsStart) + "fps";
+                            fpsRendered = rendered;
+                            fpsStart = now;
+                            ovl = makeFpsOverlay(fpsPaint, fps);
+                        }
+                    }
+                }
+            } finally {
+                endStage(MjpegTrace.Stage.DRAW, drawStart);
+                long postStart = beginStage(MjpegTrace.Stage.POST);
+                mSurfaceHolder.unlockCanvasAndPost(c);
+                endStage(MjpegTrace.Stage.POST, postStart);
+            }
+            metrics.onFrameRendered(System.nanoTime() - renderStart);
+        }
+
         public void run() {
-            long start = System.currentTimeMillis();
-            PorterDuffXfermode mode = new PorterDuffXfermode(PorterDuff.Mode.DST_OVER);
+            in = mIn;
+            if (in == null) {
+                return;
+            }
+            if (previousThread != null) {
+                // one frame at most is decoded by both, its stream is being closed
+                try {
+                    previousThread.join(SURFACE_RELEASE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                previousThread = null;
+            }
+            fpsStart = System.currentTimeMillis();
             Bitmap bm = null;
             BitmapFactory.Options options = new BitmapFactory.Options();
 
             // Set inBitmap to an existing bitmap to reuse its memory
             options.inMutable = true;
 
-            int width;
-            int height;
-            Rect destRect;
-            Canvas c = null;
             Paint p = new Paint();
-            String fps;
-            while (isRunning) {
-                if (surfaceDone) {
-                    try {
-                        c = mSurfaceHolder.lockCanvas();
-
-                        if (c == null) {
-                            Log.w(TAG, "null canvas, skipping render");
-                            continue;
+            boolean framePresented = false;
+            MjpegParallelDecoder parallelDecoder = maxDecodeThreads > 1 ? new MjpegParallelDecoder(maxDecodeThreads) : null;
+            MjpegJitterBuffer jitter = null;
+            Thread jitterReader = null;
+            if (jitterBufferMillis > 0) {
+                int capacity = (int) (jitterBufferMillis * JITTER_BUFFER_FPS / 1000) + 1;
+                jitter = new MjpegJitterBuffer(jitterBufferMillis, TimeUnit.MILLISECONDS, capacity);
+                jitterReader = startJitterReader(in, jitter, capacity, parkedLength);
+            }
+            jitterBuffer = jitter;
+            MjpegThumbnailCache cache = thumbnailCache;
+            // a first frame parsed on a switch is drawn right away, over the previous stream
+            if (cache != null && parkedLength == 0) {
+                renderThumbnail(cache, p);
+            }
+            if (jitter != null) {
+                // handed to the reader, which buffers it first
+                parkedLength = 0;
+            }
+            // a new source may be playing before this thread is done with the stopped one
+            while (isRunning && in == mIn) {
+                MjpegFrame buffered = null;
+                try {
+                    frameTrace = trace;
+                    frameTraceTrack = traceTrack;
+                    if (standby || !surfaceDone) {
+                        park(jitter);
+                        continue;
+                    }
+                    // the newest frame parked is drawn first, whatever was on screen before
+                    boolean resumed = parkedLength > 0 || parkedFrame != null;
+                    int bytesRead;
+                    byte[] frameData;
+                    boolean duplicate;
+                    long captureTimestamp;
+                    long receivedTimestamp;
+                    if (jitter != null) {
+                        if (parkedFrame != null) {
+                            buffered = parkedFrame;
+                            parkedFrame = null;
+                        } else {
+                            buffered = jitter.poll(presentLeadNanos, JITTER_POLL_MILLIS, TimeUnit.MILLISECONDS);
                         }
-                        synchronized (mSurfaceHolder) {
-                            try {
-                                int bytesRead = mIn.readMjpegFrame();
-                                if(bm != null) {
-                                    options.inBitmap = bm;
-                                }
-                                bm = BitmapFactory.decodeByteArray(mIn.frameBuffer, 0, bytesRead, options);
-
-                                // frameCapturedWithByteData(imageData, header);
-                                frameCapturedWithBitmap(bm);
-                                destRect = destRect(bm.getWidth(), bm.getHeight());
-
-                                c.drawColor(backgroundColor);
-
-                                c.drawBitmap(bm, null, destRect, p);
-
-                                if (showFps) {
-                                    p.setXfermode(mode);
-                                    if (ovl != null) {
-                                        height = destRect.bottom - ovl.getHeight();
-                                        width = destRect.right - ovl.getWidth();
-                                        c.drawBitmap(ovl, width, height, null);
-                                    }
-                                    p.setXfermode(null);
-                                    frameCounter++;
-                                    if ((System.currentTimeMillis() - start) >= 1000) {
-                                        fps = frameCounter + "fps";
-                                        frameCounter = 0;
-                                        start = System.currentTimeMillis();
-                                        ovl = makeFpsOverlay(fpsPaint, fps);
-                                    }
-                                }
-                            } catch (IOException e) {
-                                Log.e(TAG, "encountered exception during render", e);
+                        if (buffered == null) {
+                            if (!jitterReader.isAlive() && jitter.size() == 0) {
+                                // the reader stopped on the end of the stream, nothing left to present
+                                throw new EOFException();
                             }
+                            continue;
                         }
-                    } finally {
-                        if (c != null) {
-                            mSurfaceHolder.unlockCanvasAndPost(c);
-                        } else {
-                            Log.w(TAG, "couldn't unlock surface canvas");
+                        bytesRead = buffered.getLength();
+                        frameData = buffered.getBytes();
+                        frameNumber = buffered.getSequenceNumber();
+                        duplicate = buffered.isDuplicate();
+                        captureTimestamp = buffered.getCaptureTimestamp();
+                        receivedTimestamp = buffered.getTimestamp();
+                    } else {
+                        bytesRead = parkedLength > 0 ? parkedLength : readFrame();
+                        parkedLength = 0;
+                        frameData = in.frameBuffer;
+                        frameNumber = in.getFrameCount();
+                        duplicate = in.isDuplicateFrame();
+                        captureTimestamp = in.getCaptureTimestamp();
+                        receivedTimestamp = in.getReceivedTimestamp();
+                    }
+                    if (metrics != in.getMetrics()) {
+                        metrics = in.getMetrics();
+                        fpsRendered = metrics.getFramesRendered();
+                        fpsStart = System.currentTimeMillis();
+                    }
+                    evaluateLadder();
+                    if (trimRequested) {
+                        trimRequested = false;
+                        trim(parallelDecoder);
+                    }
+                    boolean redraw = viewportChanged || resumed;
+                    viewportChanged = false;
+                    // an identical frame would decode to the same bitmap already on screen
+                    if (skipDuplicateFrames && framePresented && !redraw && duplicate) {
+                        skippedFrameCount++;
+                        continue;
+                    }
+                    if (zoom > 1f) {
+                        long decodeStart = beginStage(MjpegTrace.Stage.DECODE);
+                        Bitmap decoded = decodeZoomed(frameData, bytesRead);
+                        long decodeNanos = endStage(MjpegTrace.Stage.DECODE, decodeStart);
+                        if (decoded == null) {
+                            metrics.onFrameDropped();
+                            continue;
+                        }
+                        metrics.onFrameDecoded(decodeNanos);
+                        render(decoded, zoomDestRect, null, p);
+                    } else if (dirtyRegionRendering) {
+                        if (redraw) {
+                            // the surface and dirtyFrame are out of date after zooming
+                            framesSinceRefresh = DIRTY_REGION_REFRESH_INTERVAL;
+                        }
+                        long decodeStart = beginStage(MjpegTrace.Stage.DECODE);
+                        Bitmap decoded = decodeChangedRegion(frameData, bytesRead);
+                        long decodeNanos = endStage(MjpegTrace.Stage.DECODE, decodeStart);
+                        if (decoded == null) {
+                            metrics.onFrameDropped();
+                            continue;
+                        }
+                        bm = decoded;
+                        if (updatedRegion.isEmpty()) {
+                            continue;
+                        }
+                        metrics.onFrameDecoded(decodeNanos);
+                        updatePixelRatio(bm);
+                        render(bm, updatedPixelRatio < 1f ? updatedRegion : null, p);
+                    } else if (nativeDecoding) {
+                        long decodeStart = beginStage(MjpegTrace.Stage.DECODE);
+                        Bitmap decoded = decodeNative(frameData, bytesRead, bm);
+                        long decodeNanos = endStage(MjpegTrace.Stage.DECODE, decodeStart);
+                        if (decoded == null) {
+                            metrics.onFrameDropped();
+                            continue;
+                        }
+                        metrics.onFrameDecoded(decodeNanos);
+                        bm = decoded;
+                        render(bm, null, p);
+                    } else if (parallelDecoder != null) {
+                        // decoded and recorded on the workers, the frames drawn here are older ones
+                        parallelDecoder.setTrace(frameTrace, frameTraceTrack);
+                        parallelDecoder.submit(frameData, bytesRead, frameNumber, metrics);
+                        Bitmap decoded;
+                        boolean rendered = false;
+                        while ((decoded = parallelDecoder.poll()) != null) {
+                            render(decoded, null, p);
+                            parallelDecoder.release(decoded);
+                            rendered = true;
+                        }
+                        if (rendered) {
+                            metrics.onFirstPixel();
+                            cacheThumbnail(frameData, bytesRead);
                         }
+                        framePresented = true;
+                        chargeBitmaps(in.getMemoryAccount(), parallelDecoder.getBitmapBytes() + sizeOf(ovl));
+                        continue;
+                    } else {
+                        int sampleSize = decodeSampleSize(bm, options.inSampleSize);
+                        if (sampleSize != options.inSampleSize) {
+                            // a bitmap of the previous scale doesn't fit before KitKat
+                            options.inSampleSize = sampleSize;
+                            bm = null;
+                        }
+                        options.inBitmap = sampleSize == 1 || Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT ? bm : null;
+                        long decodeStart = beginStage(MjpegTrace.Stage.DECODE);
+                        bm = BitmapFactory.decodeByteArray(frameData, 0, bytesRead, options);
+                        long decodeNanos = endStage(MjpegTrace.Stage.DECODE, decodeStart);
+                        if (bm == null) {
+                            metrics.onFrameDropped();
+                            continue;
+                        }
+                        metrics.onFrameDecoded(decodeNanos);
+                        render(bm, null, p);
+                    }
+                    framePresented = true;
+                    presented(captureTimestamp, receivedTimestamp);
+                    cacheThumbnail(frameData, bytesRead);
+                    chargeBitmaps(in.getMemoryAccount(), sizeOf(bm) + sizeOf(dirtyFrame) + sizeOf(zoomFrame) + sizeOf(ovl));
+                } catch (IOException e) {
+                    // the stream ended or was closed, every read would fail the same way
+                    if (isRunning && in == mIn) {
+                        Log.e(TAG, "encountered exception during render", e);
+                        streamEnded();
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    if (buffered != null) {
+                        buffered.release();
                     }
                 }
             }
+            if (parkedFrame != null) {
+                parkedFrame.release();
+                parkedFrame = null;
+            }
+            chargeBitmaps(null, 0);
+            if (jitter != null) {
+                // the reader stops once the stream is closed
+                jitterBuffer = null;
+                jitter.clear();
+            }
+            if (parallelDecoder != null) {
+                parallelDecoder.shutdown();
+            }
+            if (blockDiff != null) {
+                blockDiff.release();
+            }
         }
     }
 }
@@ -0,0 +1,25 @@
+package com.github.niqdev.mjpeg;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * {@link Trace} sections, for systrace and Perfetto, on the API levels that have them.
+ */
+final class MjpegTraceSection {
+
+    private MjpegTraceSection() {
+    }
+
+    static void begin(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    static void end() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
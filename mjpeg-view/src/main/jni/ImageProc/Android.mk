@@ -19,9 +19,14 @@ include $(call all-subdir-makefiles)
 
 include $(CLEAR_VARS)
 LOCAL_MODULE    := ImageProc
-LOCAL_SRC_FILES := ImageProc.c
+LOCAL_SRC_FILES := ImageProc.c MotionDetect.c simd.c
 LOCAL_LDLIBS    := -llog -ljnigraphics
 
+# simd.c: NEON kernels, SSE2 is always available on x86
+ifeq ($(TARGET_ARCH_ABI),armeabi-v7a)
+LOCAL_ARM_NEON  := true
+endif
+
 LOCAL_STATIC_LIBRARIES += cocos_jpeg_static
 
 include $(BUILD_SHARED_LIBRARY)
@@ -1,6 +1,18 @@
+/* the crop decode wraps the IDCT methods of jpeg8d */
+#define JPEG_INTERNALS
 #include "ImageProc.h"
 
-METHODDEF(void)
+int IMG_WIDTH=-1;
+int IMG_HEIGHT=-1;
+
+int *rgb=NULL;
+
+METHODDEF(void) memory_init_source (j_decompress_ptr cinfo);
+METHODDEF(boolean) memory_fill_input_buffer (j_decompress_ptr cinfo);
+METHODDEF(void) memory_skip_input_data (j_decompress_ptr cinfo, long num_bytes);
+METHODDEF(void) memory_term_source (j_decompress_ptr cinfo);
+
+GLOBAL(void)
 my_error_exit (j_common_ptr cinfo)
 {
 	my_error_ptr myerr = (my_error_ptr) cinfo->err;
@@ -180,74 +192,555 @@ int my_jpeg_load_dht (struct jpeg_decompress_struct *info, unsigned char *dht,
     return 0;
 }
 
+/* load the default MJPEG huffman tables only when the frame doesn't carry its own */
+int my_jpeg_load_default_dht (j_decompress_ptr cinfo)
+{
+	if (cinfo->dc_huff_tbl_ptrs[0] != NULL && cinfo->ac_huff_tbl_ptrs[0] != NULL)
+		return 0;
+	return my_jpeg_load_dht(cinfo,
+		my_jpeg_odml_dht,
+		cinfo->ac_huff_tbl_ptrs,
+		cinfo->dc_huff_tbl_ptrs);
+}
+
 void processimage (const void *p, int l)
 {
+	if (rgb == NULL) {
+		if (jpeg_dimensions(p, l, &IMG_WIDTH, &IMG_HEIGHT) != 0) return;
+		rgb = (int *)malloc(sizeof(int) * (IMG_WIDTH*IMG_HEIGHT));
+	}
+	decode_jpeg(p, l, rgb, IMG_WIDTH, IMG_HEIGHT, IMG_WIDTH, 1);
+}
+
+/* area of the scaled output image decoded by decode_rows() */
+typedef struct {
+	int left;
+	int top;
+	int scale;
+} jpeg_crop;
+
+/*
+ * Blocks out of the crop skip the IDCT. The range keeps one iMCU of margin
+ * on every side, the context of the fancy upsampling at the crop edges.
+ */
+typedef struct {
+	/* first: simd.c reads cinfo->client_data as a simd_output */
+	simd_output output;
+	inverse_DCT_method_ptr idct[MAX_COMPONENTS];
+	JDIMENSION first_col;
+	JDIMENSION last_col;
+	JDIMENSION first_row;
+	JDIMENSION last_row;
+} crop_state;
+
+METHODDEF(void)
+idct_crop (j_decompress_ptr cinfo, jpeg_component_info *compptr,
+	JCOEFPTR coef_block, JSAMPARRAY output_buf, JDIMENSION output_col)
+{
+	crop_state *state = (crop_state *) cinfo->client_data;
+	JDIMENSION col = output_col / compptr->DCT_h_scaled_size / compptr->h_samp_factor;
 
+	if (cinfo->output_iMCU_row < state->first_row || cinfo->output_iMCU_row > state->last_row
+		|| col < state->first_col || col > state->last_col) {
+		return;
+	}
+	state->idct[compptr->component_index](cinfo, compptr, coef_block, output_buf, output_col);
+}
+
+static void crop_install (j_decompress_ptr cinfo, crop_state *state)
+{
+	simd_output *crop = &state->output;
+	int imcu_width = cinfo->max_h_samp_factor * cinfo->min_DCT_h_scaled_size;
+	int imcu_height = cinfo->max_v_samp_factor * cinfo->min_DCT_v_scaled_size;
+	int ci;
+
+	state->first_col = crop->left / imcu_width;
+	state->last_col = (crop->left + crop->width - 1) / imcu_width + 1;
+	state->first_row = crop->top / imcu_height;
+	state->last_row = (crop->top + crop->height - 1) / imcu_height + 1;
+	if (state->first_col > 0) state->first_col--;
+	if (state->first_row > 0) state->first_row--;
+
+	for (ci = 0; ci < cinfo->num_components; ci++) {
+		state->idct[ci] = cinfo->idct->inverse_DCT[ci];
+		cinfo->idct->inverse_DCT[ci] = idct_crop;
+	}
+	cinfo->client_data = state;
+}
+
+/*
+ * Decode a jpeg into out, one ARGB int per pixel, stride in pixels.
+ * Without crop the whole image is decoded and must be width x height,
+ * with crop the width x height area at crop->left, crop->top of the image
+ * scaled down by crop->scale, and decoding stops after its last row.
+ * Returns 0 on success, -1 on a corrupt frame or if the size doesn't match.
+ */
+static int decode_rows (const void *p, int l, int *out, int width, int height, int stride,
+	const jpeg_crop *crop, int fancy, int simd)
+{
 	struct jpeg_decompress_struct mycinfo;
 	struct my_error_mgr myjerr;
-	JSAMPARRAY jpegbuffer=NULL;
+	JSAMPARRAY jpegbuffer;
+	crop_state state;
 	int row_stride;
+	/* assigned after setjmp(), volatile to keep their value across a longjmp() */
+	volatile int direct = 0;
+	volatile int left = 0;
+	volatile int top = 0;
 
 	mycinfo.err = jpeg_std_error(&myjerr.pub);
 	myjerr.pub.error_exit = my_error_exit;
 	if (setjmp(myjerr.setjmp_buffer)) {
 		jpeg_destroy_decompress(&mycinfo);
-		return ;/*exit(0);*/
+		return -1;
 	}
 	jpeg_create_decompress(&mycinfo);
 
-	jpeg_memory_src(&mycinfo, p, l) ;
-
-	((memory_source_mgr *)mycinfo.src)->pub.next_input_byte = (JOCTET*)p;
+	jpeg_memory_src(&mycinfo, (void *)p, l);
 	((memory_source_mgr *)mycinfo.src)->pub.bytes_in_buffer = l;
 
 	jpeg_read_header(&mycinfo, TRUE);
 
-	mycinfo.out_color_space = JCS_RGB;
+	/* with SIMD the YCbCr rows are converted straight into out, see simd_install() */
+	mycinfo.out_color_space = simd && mycinfo.jpeg_color_space == JCS_YCbCr ? JCS_YCbCr : JCS_RGB;
 	mycinfo.dct_method = JDCT_IFAST;
-	mycinfo.jpeg_color_space = JCS_YCbCr;
-
-	my_jpeg_load_dht( &mycinfo, 
-		my_jpeg_odml_dht, 
-		mycinfo.ac_huff_tbl_ptrs, 
-		mycinfo.dc_huff_tbl_ptrs ); 
+	mycinfo.do_fancy_upsampling = fancy ? TRUE : FALSE;
+	my_jpeg_load_default_dht(&mycinfo);
+
+	if (crop != NULL) {
+		left = crop->left;
+		top = crop->top;
+		mycinfo.scale_num = 1;
+		mycinfo.scale_denom = crop->scale;
+		jpeg_calc_output_dimensions(&mycinfo);
+		if (left < 0 || top < 0 || width <= 0 || height <= 0
+			|| left + width > (int)mycinfo.output_width || top + height > (int)mycinfo.output_height) {
+			jpeg_destroy_decompress(&mycinfo);
+			return -1;
+		}
+	} else if ((int)mycinfo.image_width != width || (int)mycinfo.image_height != height) {
+		jpeg_destroy_decompress(&mycinfo);
+		return -1;
+	}
 
 	jpeg_start_decompress(&mycinfo);
+	state.output.out = out;
+	state.output.stride = stride;
+	state.output.left = left;
+	state.output.top = top;
+	state.output.width = width;
+	state.output.height = height;
+	if (simd) {
+		direct = simd_install(&mycinfo, &state.output);
+	}
+	if (crop != NULL) {
+		crop_install(&mycinfo, &state);
+	}
 
-	row_stride = mycinfo.image_width * mycinfo.num_components;
+	row_stride = mycinfo.output_width * mycinfo.output_components;
+	jpegbuffer = (*mycinfo.mem->alloc_sarray)
+		((j_common_ptr) &mycinfo, JPOOL_IMAGE, row_stride, 1);
 
-	if(rgb == NULL){
-		IMG_WIDTH=mycinfo.image_width;
-		IMG_HEIGHT=mycinfo.image_height;
-		rgb = (int *)malloc(sizeof(int) * (IMG_WIDTH*IMG_HEIGHT));
+	while (mycinfo.output_scanline < (JDIMENSION)(top + height)) {
+		int y = mycinfo.output_scanline;
+		int *outp = out + (y - top) * stride;
+		JSAMPROW in = jpegbuffer[0] + left * mycinfo.output_components;
+		int xx;
+
+		jpeg_read_scanlines(&mycinfo, jpegbuffer, 1);
+
+		if (direct || y < top) {
+			continue;
+		} else if (mycinfo.output_components == 1) {
+			for (xx = 0; xx < width; xx++) {
+				outp[xx] = 0xff000000 | in[xx] << 16 | in[xx] << 8 | in[xx];
+			}
+		} else {
+			for (xx = 0; xx < width; xx++, in += 3) {
+				outp[xx] = 0xff000000 | in[2] << 16 | in[1] << 8 | in[0];
+			}
+		}
 	}
 
-	if(jpegbuffer==NULL){
-		jpegbuffer = (*mycinfo.mem->alloc_sarray)
-			((j_common_ptr) &mycinfo, JPOOL_IMAGE, row_stride, 1);
+	/* the rows below the crop are not even entropy decoded */
+	if (mycinfo.output_scanline < mycinfo.output_height) {
+		jpeg_abort_decompress(&mycinfo);
+	} else {
+		jpeg_finish_decompress(&mycinfo);
 	}
+	jpeg_destroy_decompress(&mycinfo);
+	return 0;
+}
 
-	int y = 0;
-	int *outp=rgb;
-	while ( mycinfo.output_scanline < mycinfo.image_height) {
+/*
+ * Restart markers (DRI/RSTn) reset the DC predictors, so the entropy-coded data
+ * can be cut at every RSTn boundary falling at the start of an MCU row.
+ * Each slice becomes a standalone jpeg: the original headers with the height
+ * patched in SOF, the data of its restart intervals with the RSTn renumbered
+ * from 0, and EOI. Slices decode concurrently into disjoint rows of the output.
+ */
+
+#define MAX_SLICES 8
+
+typedef struct {
+	unsigned char *data;
+	int length;
+	int *out;
+	int width;
+	int height;
+	int stride;
+	int result;
+} slice_job;
+
+typedef struct {
+	int width;
+	int height;
+	int mcu_width;
+	int mcu_height;
+	int restart_interval;
+	int v_ratio;            /* vertical chroma subsampling, largest over the components */
+	int sof_offset;     /* offset of the SOF marker */
+	int scan_offset;    /* first byte of the entropy-coded data */
+	int end_offset;     /* EOI marker, or end of data */
+} jpeg_layout;
+
+static int read_u16 (const unsigned char *p)
+{
+	return (p[0] << 8) | p[1];
+}
 
-		jpeg_read_scanlines(&mycinfo, jpegbuffer, 1);
+/* returns 0 if the frame is a baseline/extended sequential jpeg with a single scan and restart intervals */
+static int parse_layout (const unsigned char *p, int l, jpeg_layout *layout)
+{
+	int pos = 2;
+	int i, hmax = 1, vmax = 1, vmin = 4;
+
+	memset(layout, 0, sizeof(jpeg_layout));
+	if (l < 4 || p[0] != 0xFF || p[1] != 0xD8) return -1;
+
+	while (pos + 4 <= l) {
+		int marker, length;
+
+		if (p[pos] != 0xFF) return -1;
+		marker = p[pos + 1];
+		if (marker == 0xFF) { pos++; continue; }
+		length = read_u16(p + pos + 2);
+		if (pos + 2 + length > l) return -1;
+
+		switch (marker) {
+		case 0xC0:
+		case 0xC1: {
+			int components = p[pos + 9];
+			layout->sof_offset = pos;
+			layout->height = read_u16(p + pos + 5);
+			layout->width = read_u16(p + pos + 7);
+			for (i = 0; i < components && pos + 12 + i * 3 < l; i++) {
+				int sampling = p[pos + 11 + i * 3];
+				if ((sampling >> 4) > hmax) hmax = sampling >> 4;
+				if ((sampling & 0x0F) > vmax) vmax = sampling & 0x0F;
+				if ((sampling & 0x0F) < vmin && (sampling & 0x0F) > 0) vmin = sampling & 0x0F;
+			}
+			layout->v_ratio = vmax / vmin;
+			layout->mcu_width = hmax * DCTSIZE;
+			layout->mcu_height = vmax * DCTSIZE;
+			break;
+		}
+		case 0xC2: case 0xC3: case 0xC5: case 0xC6: case 0xC7:
+		case 0xC9: case 0xCA: case 0xCB: case 0xCD: case 0xCE: case 0xCF:
+			/* progressive, lossless, hierarchical or arithmetic */
+			return -1;
+		case 0xDD:
+			layout->restart_interval = read_u16(p + pos + 4);
+			break;
+		case 0xDA:
+			layout->scan_offset = pos + 2 + length;
+			layout->end_offset = l;
+			for (i = layout->scan_offset; i + 1 < l; i++) {
+				if (p[i] == 0xFF && p[i + 1] == 0xD9) {
+					layout->end_offset = i;
+					break;
+				}
+			}
+			return (layout->sof_offset && layout->restart_interval && layout->height) ? 0 : -1;
+		}
+		pos += 2 + length;
+	}
+	return -1;
+}
 
-		int xx;
-		int x3;
+static int gcd (int a, int b)
+{
+	while (b != 0) {
+		int t = a % b;
+		a = b;
+		b = t;
+	}
+	return a;
+}
+
+/*
+ * Fancy upsampling, as in the serial decode: jpeg8d upsamples chroma by 2 in
+ * its IDCT, within the block, so nothing is blended across slice borders.
+ */
+static void *decode_slice (void *arg)
+{
+	slice_job *job = (slice_job *)arg;
+	job->result = decode_rows(job->data, job->length, job->out, job->width, job->height, job->stride, NULL, 1, 1);
+	return NULL;
+}
+
+/*
+ * Returns 0 on success, -1 on a corrupt frame, 1 if the frame has no usable
+ * restart markers and must be decoded serially.
+ */
+int decode_jpeg_sliced (const unsigned char *p, int l, int *out, int width, int height, int stride, int threads)
+{
+	jpeg_layout layout;
+	slice_job jobs[MAX_SLICES];
+	pthread_t tids[MAX_SLICES];
+	int *interval_start;
+	int intervals, mcus_per_row, mcu_rows, row_intervals, rows_per_group, slices, s, i, g, result = 0;
+
+	if (threads < 2 || parse_layout(p, l, &layout) != 0) return 1;
+	if (layout.width != width || layout.height != height) return -1;
+	/* beyond 2 the rest of the vertical upsampling blends the rows of neighbouring MCUs */
+	if (layout.v_ratio > 2) return 1;
+
+	mcus_per_row = (layout.width + layout.mcu_width - 1) / layout.mcu_width;
+	mcu_rows = (layout.height + layout.mcu_height - 1) / layout.mcu_height;
+	/* slices must start at an MCU row, i.e. every lcm(restart interval, row) MCUs */
+	g = gcd(layout.restart_interval, mcus_per_row);
+	row_intervals = mcus_per_row / g;
+	rows_per_group = layout.restart_interval / g;
+	intervals = (mcus_per_row * mcu_rows + layout.restart_interval - 1) / layout.restart_interval;
+	if (intervals < 2) return 1;
+
+	/* offsets of the first byte of every restart interval */
+	interval_start = (int *)malloc(sizeof(int) * (intervals + 1));
+	if (interval_start == NULL) return 1;
+	interval_start[0] = layout.scan_offset;
+	for (i = layout.scan_offset, s = 1; i + 1 < layout.end_offset && s < intervals; i++) {
+		if (p[i] == 0xFF && p[i + 1] >= 0xD0 && p[i + 1] <= 0xD7) {
+			interval_start[s++] = i + 2;
+			i++;
+		}
+	}
+	if (s != intervals) {
+		/* missing markers, let the serial decoder resync */
+		free(interval_start);
+		return 1;
+	}
+	interval_start[intervals] = layout.end_offset + 2;
+
+	{
+		/* split in groups of whole rows of restart intervals */
+		int groups = (intervals + row_intervals - 1) / row_intervals;
+		slices = threads < MAX_SLICES ? threads : MAX_SLICES;
+		if (slices > groups) slices = groups;
+
+		for (s = 0; s < slices; s++) {
+			int first = groups * s / slices * row_intervals;
+			int last = groups * (s + 1) / slices * row_intervals;
+			int first_row = (groups * s / slices) * rows_per_group * layout.mcu_height;
+			int last_row = (groups * (s + 1) / slices) * rows_per_group * layout.mcu_height;
+			int header_length = layout.scan_offset;
+			int data_length, j;
+			unsigned char *data;
+
+			if (last > intervals) last = intervals;
+			if (last_row > height || s == slices - 1) last_row = height;
+			/* data up to, and excluding, the marker ending the last interval */
+			data_length = interval_start[last] - 2 - interval_start[first];
+
+			data = (unsigned char *)malloc(header_length + data_length + 2);
+			jobs[s].data = data;
+			if (data == NULL) {
+				result = -1;
+				continue;
+			}
+			memcpy(data, p, header_length);
+			memcpy(data + header_length, p + interval_start[first], data_length);
+			data[header_length + data_length] = 0xFF;
+			data[header_length + data_length + 1] = 0xD9;
+			/* patch the image height in SOF */
+			data[layout.sof_offset + 5] = (unsigned char)((last_row - first_row) >> 8);
+			data[layout.sof_offset + 6] = (unsigned char)((last_row - first_row) & 0xFF);
+			/* renumber the restart markers inside the slice */
+			for (j = first + 1; j < last; j++) {
+				data[header_length + interval_start[j] - 1 - interval_start[first]] =
+					(unsigned char)(0xD0 + ((j - first - 1) & 7));
+			}
+
+			jobs[s].length = header_length + data_length + 2;
+			jobs[s].out = out + first_row * stride;
+			jobs[s].width = width;
+			jobs[s].height = last_row - first_row;
+			jobs[s].stride = stride;
+			jobs[s].result = -1;
+		}
+	}
+	free(interval_start);
 
-		for(xx = 0, x3 = 0; xx < IMG_WIDTH && x3 < row_stride; xx++, x3 += 3)
-		{
-			outp[y+xx] = 0xff000000 | jpegbuffer[0][x3 + 2]<<16
-				| jpegbuffer[0][x3 + 1]<<8 | jpegbuffer[0][x3 + 0];
+	if (result == 0) {
+		for (s = 1; s < slices; s++) {
+			if (pthread_create(&tids[s], NULL, decode_slice, &jobs[s]) != 0) {
+				decode_slice(&jobs[s]);
+				tids[s] = 0;
+			}
+		}
+		decode_slice(&jobs[0]);
+		for (s = 1; s < slices; s++) {
+			if (tids[s] != 0) pthread_join(tids[s], NULL);
+		}
+		for (s = 0; s < slices; s++) {
+			if (jobs[s].result != 0) result = -1;
 		}
+	}
+	for (s = 0; s < slices; s++) {
+		if (jobs[s].data) free(jobs[s].data);
+	}
+	return result;
+}
 
-		y+=IMG_WIDTH;
+/* sliced decode when the frame has restart markers, serial decode otherwise */
+int decode_jpeg (const void *p, int l, int *out, int width, int height, int stride, int threads)
+{
+	int result = decode_jpeg_sliced((const unsigned char *)p, l, out, width, height, stride, threads);
+	if (result > 0) {
+		result = decode_rows(p, l, out, width, height, stride, NULL, 1, 1);
 	}
+	return result;
+}
+
+/* plain C decode, reference for the SIMD kernels */
+int decode_jpeg_reference (const void *p, int l, int *out, int width, int height, int stride)
+{
+	return decode_rows(p, l, out, width, height, stride, NULL, 1, 0);
+}
+
+/* serial decode, with the same upsampling as the slices, reference for decode_jpeg_sliced() */
+int decode_jpeg_unsliced (const void *p, int l, int *out, int width, int height, int stride)
+{
+	return decode_rows(p, l, out, width, height, stride, NULL, 1, 1);
+}
+
+/*
+ * Decode the width x height area at left, top of the jpeg scaled down by
+ * scale (1, 2, 4 or 8), coordinates in pixels of the scaled image.
+ */
+int decode_jpeg_region (const void *p, int l, int *out, int left, int top, int width, int height, int stride, int scale)
+{
+	jpeg_crop crop;
+
+	crop.left = left;
+	crop.top = top;
+	crop.scale = scale;
+	return decode_rows(p, l, out, width, height, stride, &crop, 1, 1);
+}
+
+int jpeg_dimensions (const void *p, int l, int *width, int *height)
+{
+	struct jpeg_decompress_struct mycinfo;
+	struct my_error_mgr myjerr;
+
+	mycinfo.err = jpeg_std_error(&myjerr.pub);
+	myjerr.pub.error_exit = my_error_exit;
+	if (setjmp(myjerr.setjmp_buffer)) {
+		jpeg_destroy_decompress(&mycinfo);
+		return -1;
+	}
+	jpeg_create_decompress(&mycinfo);
+
+	jpeg_memory_src(&mycinfo, (void *)p, l);
+	((memory_source_mgr *)mycinfo.src)->pub.bytes_in_buffer = l;
+
+	jpeg_read_header(&mycinfo, TRUE);
+	*width = mycinfo.image_width;
+	*height = mycinfo.image_height;
 
-	jpeg_finish_decompress(&mycinfo);
 	jpeg_destroy_decompress(&mycinfo);
-	
+	return 0;
+}
+
+static int lock_bitmap (JNIEnv* env, jobject bmp, AndroidBitmapInfo *info, void **pixels)
+{
+	int ret;
+
+	if (bmp == NULL) return -1;
+	if ((ret = AndroidBitmap_getInfo(env, bmp, info)) < 0) {
+		LOGE("AndroidBitmap_getInfo() failed ! error=%d", ret);
+		return -1;
+	}
+	if (info->format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+		LOGE("Bitmap format is not RGBA_8888 !");
+		return -1;
+	}
+	if ((ret = AndroidBitmap_lockPixels(env, bmp, pixels)) < 0) {
+		LOGE("AndroidBitmap_lockPixels() failed ! error=%d", ret);
+		return -1;
+	}
+	return 0;
+}
+
+jint Java_com_github_niqdev_mjpeg_MjpegNative_decode(JNIEnv* env, jclass clazz,
+	jbyteArray jp, jint l, jobject bmp, jint threads)
+{
+	AndroidBitmapInfo info;
+	void *pixels;
+	jbyte *p;
+	int ret;
+
+	if (lock_bitmap(env, bmp, &info, &pixels) != 0) return -1;
+
+	p = (*env)->GetByteArrayElements(env, jp, NULL);
+	ret = decode_jpeg(p, l, (int *)pixels, info.width, info.height, info.stride / 4, threads);
+	(*env)->ReleaseByteArrayElements(env, jp, p, JNI_ABORT);
+
+	AndroidBitmap_unlockPixels(env, bmp);
+	return ret;
+}
+
+jint Java_com_github_niqdev_mjpeg_MjpegNative_decodeRegion(JNIEnv* env, jclass clazz,
+	jbyteArray jp, jint l, jobject bmp, jint left, jint top, jint scale)
+{
+	AndroidBitmapInfo info;
+	void *pixels;
+	jbyte *p;
+	int ret;
+
+	if (lock_bitmap(env, bmp, &info, &pixels) != 0) return -1;
+
+	p = (*env)->GetByteArrayElements(env, jp, NULL);
+	ret = decode_jpeg_region(p, l, (int *)pixels, left, top, info.width, info.height, info.stride / 4, scale);
+	(*env)->ReleaseByteArrayElements(env, jp, p, JNI_ABORT);
+
+	AndroidBitmap_unlockPixels(env, bmp);
+	return ret;
+}
+
+jint Java_com_github_niqdev_mjpeg_MjpegNative_decodeArea(JNIEnv* env, jclass clazz,
+	jbyteArray jp, jint l, jobject bmp, jint left, jint top, jint width, jint height)
+{
+	AndroidBitmapInfo info;
+	void *pixels;
+	jbyte *p;
+	int ret;
+
+	if (lock_bitmap(env, bmp, &info, &pixels) != 0) return -1;
+	if (left < 0 || top < 0 || width <= 0 || height <= 0
+			|| left + width > (int)info.width || top + height > (int)info.height) {
+		AndroidBitmap_unlockPixels(env, bmp);
+		return -1;
+	}
+
+	/* in place: the area of the frame into the same area of the bitmap */
+	p = (*env)->GetByteArrayElements(env, jp, NULL);
+	ret = decode_jpeg_region(p, l, (int *)pixels + top * (info.stride / 4) + left,
+		left, top, width, height, info.stride / 4, 1);
+	(*env)->ReleaseByteArrayElements(env, jp, p, JNI_ABORT);
+
+	AndroidBitmap_unlockPixels(env, bmp);
+	return ret;
 }
 
 int Java_com_github_niqdev_mjpeg_MjpegInputStreamNative_pixeltobmp( JNIEnv* env,jobject thiz,
@@ -3,8 +3,12 @@
 #include <android/bitmap.h>
 #include <stdio.h>
 #include <stdlib.h>
+#include <string.h>
 #include <setjmp.h>
+#include <stdint.h>
+#include <pthread.h>
 #include "../jpeg8d/jpeglib.h"
+#include "simd.h"
 
 #define  LOG_TAG    "MJPEG"
 #define  LOGI(...)  __android_log_print(ANDROID_LOG_INFO,LOG_TAG,__VA_ARGS__)
@@ -12,11 +16,6 @@
 
 #define abs_mcr(x) ((x)>0 ? (x) : -(x))
 
-int IMG_WIDTH=-1;
-int IMG_HEIGHT=-1;
-
-int *rgb=NULL;
-
 /* for libjpeg */
 typedef struct {
   struct jpeg_source_mgr pub;/* public fields */
@@ -31,16 +30,31 @@ struct my_error_mgr {
 
 typedef struct my_error_mgr * my_error_ptr;
 
-METHODDEF(void) my_error_exit (j_common_ptr cinfo);
+GLOBAL(void) my_error_exit (j_common_ptr cinfo);
 GLOBAL(void) jpeg_memory_src (j_decompress_ptr cinfo, void* data, unsigned long len);
-METHODDEF(void) memory_init_source (j_decompress_ptr cinfo);
-METHODDEF(boolean) memory_fill_input_buffer (j_decompress_ptr cinfo);
-METHODDEF(void) memory_skip_input_data (j_decompress_ptr cinfo, long num_bytes);
-METHODDEF(void) memory_term_source (j_decompress_ptr cinfo);
 /* end of libjpeg */
 
 
+int my_jpeg_load_default_dht (j_decompress_ptr cinfo);
 void processimage (const void *p, int l);
+int decode_jpeg (const void *p, int l, int *out, int width, int height, int stride, int threads);
+int decode_jpeg_reference (const void *p, int l, int *out, int width, int height, int stride);
+int decode_jpeg_sliced (const unsigned char *p, int l, int *out, int width, int height, int stride, int threads);
+int decode_jpeg_unsliced (const void *p, int l, int *out, int width, int height, int stride);
+int decode_jpeg_region (const void *p, int l, int *out, int left, int top, int width, int height, int stride, int scale);
+int jpeg_dimensions (const void *p, int l, int *width, int *height);
 
 int Java_com_github_niqdev_mjpeg_MjpegInputStreamNative_pixeltobmp(JNIEnv* env,jobject thiz, jbyteArray jp, jint l, jobject bmp);
 void Java_com_github_niqdev_mjpeg_MjpegInputStreamNative_freeCameraMemory(JNIEnv* env,jobject thiz);
+jint Java_com_github_niqdev_mjpeg_MjpegNative_decode(JNIEnv* env, jclass clazz, jbyteArray jp, jint l, jobject bmp, jint threads);
+jint Java_com_github_niqdev_mjpeg_MjpegNative_decodeRegion(JNIEnv* env, jclass clazz, jbyteArray jp, jint l, jobject bmp,
+	jint left, jint top, jint scale);
+
+/* MotionDetect.c */
+jlong Java_com_github_niqdev_mjpeg_MjpegNative_motionCreate(JNIEnv* env, jclass clazz);
+jint Java_com_github_niqdev_mjpeg_MjpegNative_motionDetect(JNIEnv* env, jclass clazz, jlong handle,
+	jbyteArray jp, jint l, jint threshold, jint learningRate);
+jint Java_com_github_niqdev_mjpeg_MjpegNative_motionBlocksWide(JNIEnv* env, jclass clazz, jlong handle);
+jint Java_com_github_niqdev_mjpeg_MjpegNative_motionBlocksHigh(JNIEnv* env, jclass clazz, jlong handle);
+void Java_com_github_niqdev_mjpeg_MjpegNative_motionMask(JNIEnv* env, jclass clazz, jlong handle, jbyteArray mask);
+void Java_com_github_niqdev_mjpeg_MjpegNative_motionRelease(JNIEnv* env, jclass clazz, jlong handle);
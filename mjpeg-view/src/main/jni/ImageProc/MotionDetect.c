@@ -0,0 +1,157 @@
+#include "ImageProc.h"
+
+/*
+ * Compressed-domain motion detection.
+ *
+ * The frame is decoded to grayscale scaled down by 8: every 8x8 luma block
+ * becomes one pixel, its DC term, i.e. its average brightness. libjpeg then
+ * only extends and dequantizes the DC terms of the luma blocks; the AC
+ * symbols, and the chroma blocks, are still Huffman decoded to find where
+ * the next block starts, but their values are skipped. No full IDCT,
+ * upsampling or color conversion, and no coefficient buffer for the frame.
+ */
+
+#define MOTION_FRAC_BITS 4
+
+typedef struct {
+	int blocks_w;
+	int blocks_h;
+	int initialized;
+	int *background;       /* running average of the DC terms, MOTION_FRAC_BITS fixed point */
+	unsigned char *mask;   /* 1 for every block that differs from the background */
+} motion_state;
+
+static void motion_reset(motion_state *st, int blocks_w, int blocks_h)
+{
+	if (st->background) free(st->background);
+	if (st->mask) free(st->mask);
+	st->blocks_w = blocks_w;
+	st->blocks_h = blocks_h;
+	st->background = (int *)calloc(blocks_w * blocks_h, sizeof(int));
+	st->mask = (unsigned char *)calloc(blocks_w * blocks_h, 1);
+	st->initialized = 0;
+}
+
+/*
+ * Returns the number of blocks in motion, or -1 if the frame can't be decoded.
+ * threshold is compared with the dequantized DC difference (8 * average pixel delta),
+ * learningRate is the weight of the new frame in the background model, out of 256.
+ */
+static int motion_process(motion_state *st, const void *p, int l, int threshold, int learning_rate)
+{
+	struct jpeg_decompress_struct mycinfo;
+	struct my_error_mgr myjerr;
+	JSAMPROW row;
+	int bx, by;
+	/* modified between setjmp() and a longjmp() from jpeg_finish_decompress() */
+	volatile int changed = 0;
+
+	mycinfo.err = jpeg_std_error(&myjerr.pub);
+	myjerr.pub.error_exit = my_error_exit;
+	if (setjmp(myjerr.setjmp_buffer)) {
+		jpeg_destroy_decompress(&mycinfo);
+		return -1;
+	}
+	jpeg_create_decompress(&mycinfo);
+
+	jpeg_memory_src(&mycinfo, (void *)p, l);
+	((memory_source_mgr *)mycinfo.src)->pub.bytes_in_buffer = l;
+
+	jpeg_read_header(&mycinfo, TRUE);
+	my_jpeg_load_default_dht(&mycinfo);
+
+	/* DC only: a 1x1 IDCT of the luma, the chroma isn't needed for grayscale */
+	mycinfo.out_color_space = JCS_GRAYSCALE;
+	mycinfo.scale_num = 1;
+	mycinfo.scale_denom = 8;
+	mycinfo.do_block_smoothing = FALSE;
+	jpeg_start_decompress(&mycinfo);
+
+	if (!st->background || st->blocks_w != (int)mycinfo.output_width
+			|| st->blocks_h != (int)mycinfo.output_height) {
+		motion_reset(st, mycinfo.output_width, mycinfo.output_height);
+	}
+	row = (*mycinfo.mem->alloc_sarray)((j_common_ptr) &mycinfo, JPOOL_IMAGE, mycinfo.output_width, 1)[0];
+
+	for (by = 0; by < st->blocks_h; by++) {
+		int *bg = &st->background[by * st->blocks_w];
+		unsigned char *mask = &st->mask[by * st->blocks_w];
+
+		jpeg_read_scanlines(&mycinfo, &row, 1);
+
+		for (bx = 0; bx < st->blocks_w; bx++) {
+			/* the block average back to the scale of the dequantized DC term */
+			int dc = (GETJSAMPLE(row[bx]) << 3) << MOTION_FRAC_BITS;
+
+			if (!st->initialized) {
+				bg[bx] = dc;
+				mask[bx] = 0;
+				continue;
+			}
+			mask[bx] = abs_mcr(dc - bg[bx]) > (threshold << MOTION_FRAC_BITS);
+			changed += mask[bx];
+			bg[bx] += ((dc - bg[bx]) * learning_rate) >> 8;
+		}
+	}
+	st->initialized = 1;
+
+	jpeg_finish_decompress(&mycinfo);
+	jpeg_destroy_decompress(&mycinfo);
+	return changed;
+}
+
+jlong Java_com_github_niqdev_mjpeg_MjpegNative_motionCreate(JNIEnv* env, jclass clazz)
+{
+	return (jlong)(intptr_t)calloc(1, sizeof(motion_state));
+}
+
+jint Java_com_github_niqdev_mjpeg_MjpegNative_motionDetect(JNIEnv* env, jclass clazz, jlong handle,
+	jbyteArray jp, jint l, jint threshold, jint learningRate)
+{
+	motion_state *st = (motion_state *)(intptr_t)handle;
+	jbyte *p;
+	volatile int changed;
+
+	if (st == NULL) return -1;
+
+	/* not a critical section: the GC may run during the decode */
+	p = (*env)->GetByteArrayElements(env, jp, NULL);
+	if (p == NULL) return -1;
+	changed = motion_process(st, p, l, threshold, learningRate);
+	(*env)->ReleaseByteArrayElements(env, jp, p, JNI_ABORT);
+
+	return changed;
+}
+
+jint Java_com_github_niqdev_mjpeg_MjpegNative_motionBlocksWide(JNIEnv* env, jclass clazz, jlong handle)
+{
+	motion_state *st = (motion_state *)(intptr_t)handle;
+	return st != NULL ? st->blocks_w : 0;
+}
+
+jint Java_com_github_niqdev_mjpeg_MjpegNative_motionBlocksHigh(JNIEnv* env, jclass clazz, jlong handle)
+{
+	motion_state *st = (motion_state *)(intptr_t)handle;
+	return st != NULL ? st->blocks_h : 0;
+}
+
+void Java_com_github_niqdev_mjpeg_MjpegNative_motionMask(JNIEnv* env, jclass clazz, jlong handle, jbyteArray mask)
+{
+	motion_state *st = (motion_state *)(intptr_t)handle;
+	int size;
+
+	if (st == NULL || st->mask == NULL) return;
+	size = st->blocks_w * st->blocks_h;
+	if ((*env)->GetArrayLength(env, mask) < size) return;
+	(*env)->SetByteArrayRegion(env, mask, 0, size, (const jbyte *)st->mask);
+}
+
+void Java_com_github_niqdev_mjpeg_MjpegNative_motionRelease(JNIEnv* env, jclass clazz, jlong handle)
+{
+	motion_state *st = (motion_state *)(intptr_t)handle;
+
+	if (st == NULL) return;
+	if (st->background) free(st->background);
+	if (st->mask) free(st->mask);
+	free(st);
+}
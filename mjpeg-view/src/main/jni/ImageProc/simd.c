@@ -0,0 +1,416 @@
+#define JPEG_INTERNALS
+#include "simd.h"
+#include "../jpeg8d/jinclude.h"
+#include "../jpeg8d/jdct.h"
+
+#if defined(SIMD_NEON)
+#include <arm_neon.h>
+#elif defined(SIMD_SSE2)
+#include <emmintrin.h>
+#endif
+
+/* jdcolor.c constants, SCALEBITS = 16 */
+#define FIX_1_40200 91881
+#define FIX_1_77200 116130
+#define FIX_0_71414 46802
+#define FIX_0_34414 22554
+#define YCC_HALF    32768
+
+/* jidctfst.c constants, CONST_BITS = 8 */
+#define IFAST_1_082392200 277
+#define IFAST_1_414213562 362
+#define IFAST_1_847759065 473
+#define IFAST_2_613125930 669
+#define IFAST_CONST_BITS  8
+#define IFAST_PASS1_BITS  2
+
+static inline int clamp255 (int v)
+{
+	return v < 0 ? 0 : (v > 255 ? 255 : v);
+}
+
+void ycc_argb_row_c (const JSAMPLE *y, const JSAMPLE *cb, const JSAMPLE *cr, int *out, int width)
+{
+	int x;
+
+	for (x = 0; x < width; x++) {
+		int yy = y[x];
+		int b = cb[x] - 128;
+		int r = cr[x] - 128;
+		int red = clamp255(yy + ((FIX_1_40200 * r + YCC_HALF) >> 16));
+		int green = clamp255(yy + ((-FIX_0_34414 * b - FIX_0_71414 * r + YCC_HALF) >> 16));
+		int blue = clamp255(yy + ((FIX_1_77200 * b + YCC_HALF) >> 16));
+		out[x] = 0xff000000 | blue << 16 | green << 8 | red;
+	}
+}
+
+#if defined(SIMD_NEON)
+
+const char *simd_name (void)
+{
+	return "neon";
+}
+
+/* (c * x + 1/2) >> 16 on 4 lanes, x is a signed 16-bit chroma value */
+static inline int32x4_t ycc_term (int16x4_t x, int32_t c)
+{
+	return vshrq_n_s32(vmlaq_n_s32(vdupq_n_s32(YCC_HALF), vmovl_s16(x), c), 16);
+}
+
+void ycc_argb_row (const JSAMPLE *y, const JSAMPLE *cb, const JSAMPLE *cr, int *out, int width)
+{
+	const int16x8_t center = vdupq_n_s16(128);
+	int x = 0;
+
+	for (; x + 8 <= width; x += 8) {
+		int16x8_t yy = vreinterpretq_s16_u16(vmovl_u8(vld1_u8(y + x)));
+		int16x8_t b = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(vld1_u8(cb + x))), center);
+		int16x8_t r = vsubq_s16(vreinterpretq_s16_u16(vmovl_u8(vld1_u8(cr + x))), center);
+		int32x4_t g_lo, g_hi;
+		int16x8_t red, green, blue;
+		uint8x8x4_t argb;
+
+		red = vaddq_s16(yy, vcombine_s16(
+			vmovn_s32(ycc_term(vget_low_s16(r), FIX_1_40200)),
+			vmovn_s32(ycc_term(vget_high_s16(r), FIX_1_40200))));
+		blue = vaddq_s16(yy, vcombine_s16(
+			vmovn_s32(ycc_term(vget_low_s16(b), FIX_1_77200)),
+			vmovn_s32(ycc_term(vget_high_s16(b), FIX_1_77200))));
+		g_lo = vmlaq_n_s32(vmulq_n_s32(vmovl_s16(vget_low_s16(b)), -FIX_0_34414),
+			vmovl_s16(vget_low_s16(r)), -FIX_0_71414);
+		g_hi = vmlaq_n_s32(vmulq_n_s32(vmovl_s16(vget_high_s16(b)), -FIX_0_34414),
+			vmovl_s16(vget_high_s16(r)), -FIX_0_71414);
+		g_lo = vshrq_n_s32(vaddq_s32(g_lo, vdupq_n_s32(YCC_HALF)), 16);
+		g_hi = vshrq_n_s32(vaddq_s32(g_hi, vdupq_n_s32(YCC_HALF)), 16);
+		green = vaddq_s16(yy, vcombine_s16(vmovn_s32(g_lo), vmovn_s32(g_hi)));
+
+		/* byte order in memory is R, G, B, A */
+		argb.val[0] = vqmovun_s16(red);
+		argb.val[1] = vqmovun_s16(green);
+		argb.val[2] = vqmovun_s16(blue);
+		argb.val[3] = vdup_n_u8(0xff);
+		vst4_u8((uint8_t *)(out + x), argb);
+	}
+	ycc_argb_row_c(y + x, cb + x, cr + x, out + x, width - x);
+}
+
+#elif defined(SIMD_SSE2)
+
+const char *simd_name (void)
+{
+	return "sse2";
+}
+
+void ycc_argb_row (const JSAMPLE *y, const JSAMPLE *cb, const JSAMPLE *cr, int *out, int width)
+{
+	const __m128i zero = _mm_setzero_si128();
+	const __m128i center = _mm_set1_epi16(128);
+	const __m128i half = _mm_set1_epi32(YCC_HALF);
+	const __m128i alpha = _mm_set1_epi8((char)0xff);
+	/*
+	 * SSE2 has no 32-bit multiply: pmaddwd multiplies (x, 0) or (b, r) 16-bit pairs,
+	 * constants above 16 bits are split as k * 65536 + c.
+	 * 1.40200 = 1 + 26345 / 65536, 1.77200 = 2 - 14942 / 65536
+	 */
+	const __m128i c_r = _mm_set1_epi32(26345);
+	const __m128i c_b = _mm_set1_epi32(-14942 & 0xFFFF);
+	/* -0.34414 b - 0.71414 r = -22554 b + 18734 r - 65536 r */
+	const __m128i c_g = _mm_set1_epi32((-22554 & 0xFFFF) | (18734 << 16));
+	int x = 0;
+
+	for (; x + 8 <= width; x += 8) {
+		__m128i yy = _mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i *)(y + x)), zero);
+		__m128i b = _mm_sub_epi16(_mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i *)(cb + x)), zero), center);
+		__m128i r = _mm_sub_epi16(_mm_unpacklo_epi8(_mm_loadl_epi64((const __m128i *)(cr + x)), zero), center);
+		/* sign-extended 32-bit lanes */
+		__m128i b_lo = _mm_srai_epi32(_mm_unpacklo_epi16(zero, b), 16);
+		__m128i b_hi = _mm_srai_epi32(_mm_unpackhi_epi16(zero, b), 16);
+		__m128i r_lo = _mm_srai_epi32(_mm_unpacklo_epi16(zero, r), 16);
+		__m128i r_hi = _mm_srai_epi32(_mm_unpackhi_epi16(zero, r), 16);
+		/* (x, 0) pairs for pmaddwd */
+		__m128i b0_lo = _mm_unpacklo_epi16(b, zero);
+		__m128i b0_hi = _mm_unpackhi_epi16(b, zero);
+		__m128i r0_lo = _mm_unpacklo_epi16(r, zero);
+		__m128i r0_hi = _mm_unpackhi_epi16(r, zero);
+		__m128i br_lo = _mm_unpacklo_epi16(b, r);
+		__m128i br_hi = _mm_unpackhi_epi16(b, r);
+		__m128i t_lo, t_hi, red, green, blue, rg, ba;
+
+		t_lo = _mm_add_epi32(_mm_madd_epi16(r0_lo, c_r), _mm_slli_epi32(r_lo, 16));
+		t_hi = _mm_add_epi32(_mm_madd_epi16(r0_hi, c_r), _mm_slli_epi32(r_hi, 16));
+		t_lo = _mm_srai_epi32(_mm_add_epi32(t_lo, half), 16);
+		t_hi = _mm_srai_epi32(_mm_add_epi32(t_hi, half), 16);
+		red = _mm_add_epi16(yy, _mm_packs_epi32(t_lo, t_hi));
+
+		t_lo = _mm_add_epi32(_mm_madd_epi16(b0_lo, c_b), _mm_slli_epi32(b_lo, 17));
+		t_hi = _mm_add_epi32(_mm_madd_epi16(b0_hi, c_b), _mm_slli_epi32(b_hi, 17));
+		t_lo = _mm_srai_epi32(_mm_add_epi32(t_lo, half), 16);
+		t_hi = _mm_srai_epi32(_mm_add_epi32(t_hi, half), 16);
+		blue = _mm_add_epi16(yy, _mm_packs_epi32(t_lo, t_hi));
+
+		t_lo = _mm_sub_epi32(_mm_madd_epi16(br_lo, c_g), _mm_slli_epi32(r_lo, 16));
+		t_hi = _mm_sub_epi32(_mm_madd_epi16(br_hi, c_g), _mm_slli_epi32(r_hi, 16));
+		t_lo = _mm_srai_epi32(_mm_add_epi32(t_lo, half), 16);
+		t_hi = _mm_srai_epi32(_mm_add_epi32(t_hi, half), 16);
+		green = _mm_add_epi16(yy, _mm_packs_epi32(t_lo, t_hi));
+
+		/* byte order in memory is R, G, B, A */
+		red = _mm_packus_epi16(red, zero);
+		green = _mm_packus_epi16(green, zero);
+		blue = _mm_packus_epi16(blue, zero);
+		rg = _mm_unpacklo_epi8(red, green);
+		ba = _mm_unpacklo_epi8(blue, alpha);
+		_mm_storeu_si128((__m128i *)(out + x), _mm_unpacklo_epi16(rg, ba));
+		_mm_storeu_si128((__m128i *)(out + x + 4), _mm_unpackhi_epi16(rg, ba));
+	}
+	ycc_argb_row_c(y + x, cb + x, cr + x, out + x, width - x);
+}
+
+#else
+
+const char *simd_name (void)
+{
+	return "none";
+}
+
+void ycc_argb_row (const JSAMPLE *y, const JSAMPLE *cb, const JSAMPLE *cr, int *out, int width)
+{
+	ycc_argb_row_c(y, cb, cr, out, width);
+}
+
+#endif
+
+#if defined(SIMD_NEON) || defined(SIMD_SSE2)
+
+/*
+ * jidctfst.c on 4 lanes of 32 bits: pass 1 runs on 4 columns at a time,
+ * pass 2 on 4 rows at a time after a transpose. The AC = 0 shortcuts of the
+ * scalar code give the same result as the full butterflies, and the final
+ * range limit reproduces the table of jdmaster.c, so the output is bit-exact.
+ */
+
+#if defined(SIMD_NEON)
+
+typedef int32x4_t vec;
+
+#define v_add(a, b)     vaddq_s32(a, b)
+#define v_sub(a, b)     vsubq_s32(a, b)
+#define v_mul(a, b)     vmulq_s32(a, b)
+#define v_mulc(a, c)    vmulq_n_s32(a, c)
+#define v_sra(a, n)     vshrq_n_s32(a, n)
+#define v_load(p)       vld1q_s32((const int32_t *)(p))
+
+static inline void v_load_coef (const JCOEF *p, vec *lo, vec *hi)
+{
+	int16x8_t c = vld1q_s16(p);
+	*lo = vmovl_s16(vget_low_s16(c));
+	*hi = vmovl_s16(vget_high_s16(c));
+}
+
+static inline void v_transpose (vec *r0, vec *r1, vec *r2, vec *r3)
+{
+	int32x4x2_t t01 = vtrnq_s32(*r0, *r1);
+	int32x4x2_t t23 = vtrnq_s32(*r2, *r3);
+	*r0 = vcombine_s32(vget_low_s32(t01.val[0]), vget_low_s32(t23.val[0]));
+	*r1 = vcombine_s32(vget_low_s32(t01.val[1]), vget_low_s32(t23.val[1]));
+	*r2 = vcombine_s32(vget_high_s32(t01.val[0]), vget_high_s32(t23.val[0]));
+	*r3 = vcombine_s32(vget_high_s32(t01.val[1]), vget_high_s32(t23.val[1]));
+}
+
+static inline void v_store_samples (JSAMPROW out, vec lo, vec hi)
+{
+	vst1_u8(out, vqmovun_s16(vcombine_s16(vqmovn_s32(lo), vqmovn_s32(hi))));
+}
+
+static inline vec v_range_limit (vec x)
+{
+	/* range_limit[(x >> 5) & RANGE_MASK]: sign-extend the 10 bits, center and clamp */
+	vec v = vandq_s32(vshrq_n_s32(x, IFAST_PASS1_BITS + 3), vdupq_n_s32(1023));
+	v = vsubq_s32(veorq_s32(v, vdupq_n_s32(512)), vdupq_n_s32(512));
+	return vaddq_s32(v, vdupq_n_s32(CENTERJSAMPLE));
+}
+
+#else
+
+typedef __m128i vec;
+
+#define v_add(a, b)     _mm_add_epi32(a, b)
+#define v_sub(a, b)     _mm_sub_epi32(a, b)
+#define v_mulc(a, c)    v_mul(a, _mm_set1_epi32(c))
+#define v_sra(a, n)     _mm_srai_epi32(a, n)
+#define v_load(p)       _mm_loadu_si128((const __m128i *)(p))
+
+/* low 32 bits of the products, SSE2 only has the 32x32->64 pmuludq */
+static inline __m128i v_mul (__m128i a, __m128i b)
+{
+	__m128i even = _mm_mul_epu32(a, b);
+	__m128i odd = _mm_mul_epu32(_mm_srli_epi64(a, 32), _mm_srli_epi64(b, 32));
+	return _mm_unpacklo_epi32(_mm_shuffle_epi32(even, _MM_SHUFFLE(0, 0, 2, 0)),
+		_mm_shuffle_epi32(odd, _MM_SHUFFLE(0, 0, 2, 0)));
+}
+
+static inline void v_load_coef (const JCOEF *p, vec *lo, vec *hi)
+{
+	__m128i c = _mm_loadu_si128((const __m128i *)p);
+	*lo = _mm_srai_epi32(_mm_unpacklo_epi16(c, c), 16);
+	*hi = _mm_srai_epi32(_mm_unpackhi_epi16(c, c), 16);
+}
+
+static inline void v_transpose (vec *r0, vec *r1, vec *r2, vec *r3)
+{
+	__m128i t0 = _mm_unpacklo_epi32(*r0, *r1);
+	__m128i t1 = _mm_unpacklo_epi32(*r2, *r3);
+	__m128i t2 = _mm_unpackhi_epi32(*r0, *r1);
+	__m128i t3 = _mm_unpackhi_epi32(*r2, *r3);
+	*r0 = _mm_unpacklo_epi64(t0, t1);
+	*r1 = _mm_unpackhi_epi64(t0, t1);
+	*r2 = _mm_unpacklo_epi64(t2, t3);
+	*r3 = _mm_unpackhi_epi64(t2, t3);
+}
+
+static inline void v_store_samples (JSAMPROW out, vec lo, vec hi)
+{
+	__m128i w = _mm_packs_epi32(lo, hi);
+	_mm_storel_epi64((__m128i *)out, _mm_packus_epi16(w, w));
+}
+
+static inline vec v_range_limit (vec x)
+{
+	/* range_limit[(x >> 5) & RANGE_MASK]: sign-extend the 10 bits, center and clamp */
+	vec v = _mm_and_si128(_mm_srai_epi32(x, IFAST_PASS1_BITS + 3), _mm_set1_epi32(1023));
+	v = _mm_sub_epi32(_mm_xor_si128(v, _mm_set1_epi32(512)), _mm_set1_epi32(512));
+	return _mm_add_epi32(v, _mm_set1_epi32(CENTERJSAMPLE));
+}
+
+#endif
+
+#define v_multiply(a, c) v_sra(v_mulc(a, c), IFAST_CONST_BITS)
+
+/* one 8-point AA&N butterfly, in and out may alias */
+static inline void idct_1d (vec *in, vec *out)
+{
+	vec tmp0, tmp1, tmp2, tmp3, tmp4, tmp5, tmp6, tmp7;
+	vec tmp10, tmp11, tmp12, tmp13, z5, z10, z11, z12, z13;
+
+	/* Even part */
+	tmp10 = v_add(in[0], in[4]);
+	tmp11 = v_sub(in[0], in[4]);
+	tmp13 = v_add(in[2], in[6]);
+	tmp12 = v_sub(v_multiply(v_sub(in[2], in[6]), IFAST_1_414213562), tmp13);
+
+	tmp0 = v_add(tmp10, tmp13);
+	tmp3 = v_sub(tmp10, tmp13);
+	tmp1 = v_add(tmp11, tmp12);
+	tmp2 = v_sub(tmp11, tmp12);
+
+	/* Odd part */
+	z13 = v_add(in[5], in[3]);
+	z10 = v_sub(in[5], in[3]);
+	z11 = v_add(in[1], in[7]);
+	z12 = v_sub(in[1], in[7]);
+
+	tmp7 = v_add(z11, z13);
+	tmp11 = v_multiply(v_sub(z11, z13), IFAST_1_414213562);
+	z5 = v_multiply(v_add(z10, z12), IFAST_1_847759065);
+	tmp10 = v_sub(v_multiply(z12, IFAST_1_082392200), z5);
+	tmp12 = v_add(v_multiply(z10, -IFAST_2_613125930), z5);
+
+	tmp6 = v_sub(tmp12, tmp7);
+	tmp5 = v_sub(tmp11, tmp6);
+	tmp4 = v_add(tmp10, tmp5);
+
+	out[0] = v_add(tmp0, tmp7);
+	out[7] = v_sub(tmp0, tmp7);
+	out[1] = v_add(tmp1, tmp6);
+	out[6] = v_sub(tmp1, tmp6);
+	out[2] = v_add(tmp2, tmp5);
+	out[5] = v_sub(tmp2, tmp5);
+	out[4] = v_add(tmp3, tmp4);
+	out[3] = v_sub(tmp3, tmp4);
+}
+
+void idct_ifast_simd (j_decompress_ptr cinfo, jpeg_component_info *compptr,
+	JCOEFPTR coef_block, JSAMPARRAY output_buf, JDIMENSION output_col)
+{
+	const int *quantptr = (const int *) compptr->dct_table;
+	vec left[8], right[8], rows[8];
+	int k, g;
+
+	(void)cinfo;
+
+	/* Pass 1: columns 0-3 in left, 4-7 in right, lane = column */
+	for (k = 0; k < DCTSIZE; k++) {
+		v_load_coef(coef_block + k * DCTSIZE, &left[k], &right[k]);
+		left[k] = v_mul(left[k], v_load(quantptr + k * DCTSIZE));
+		right[k] = v_mul(right[k], v_load(quantptr + k * DCTSIZE + 4));
+	}
+	idct_1d(left, left);
+	idct_1d(right, right);
+
+	/* Pass 2: rows 0-3 then 4-7, lane = row */
+	for (g = 0; g < 2; g++) {
+		for (k = 0; k < 4; k++) {
+			rows[k] = left[g * 4 + k];
+			rows[k + 4] = right[g * 4 + k];
+		}
+		v_transpose(&rows[0], &rows[1], &rows[2], &rows[3]);
+		v_transpose(&rows[4], &rows[5], &rows[6], &rows[7]);
+		idct_1d(rows, rows);
+		for (k = 0; k < DCTSIZE; k++) {
+			rows[k] = v_range_limit(rows[k]);
+		}
+		/* back to lane = column */
+		v_transpose(&rows[0], &rows[1], &rows[2], &rows[3]);
+		v_transpose(&rows[4], &rows[5], &rows[6], &rows[7]);
+		for (k = 0; k < 4; k++) {
+			v_store_samples(output_buf[g * 4 + k] + output_col, rows[k], rows[k + 4]);
+		}
+	}
+}
+
+#else
+
+void idct_ifast_simd (j_decompress_ptr cinfo, jpeg_component_info *compptr,
+	JCOEFPTR coef_block, JSAMPARRAY output_buf, JDIMENSION output_col)
+{
+	jpeg_idct_ifast(cinfo, compptr, coef_block, output_buf, output_col);
+}
+
+#endif
+
+METHODDEF(void)
+ycc_argb_convert (j_decompress_ptr cinfo, JSAMPIMAGE input_buf, JDIMENSION input_row,
+	JSAMPARRAY output_buf, int num_rows)
+{
+	simd_output *output = (simd_output *) cinfo->client_data;
+	int left = output->left;
+
+	(void)output_buf;
+	while (--num_rows >= 0) {
+		int row = output->row - output->top;
+		if (row >= 0 && row < output->height) {
+			ycc_argb_row(input_buf[0][input_row] + left, input_buf[1][input_row] + left,
+				input_buf[2][input_row] + left, output->out + row * output->stride, output->width);
+		}
+		input_row++;
+		output->row++;
+	}
+}
+
+int simd_install (j_decompress_ptr cinfo, simd_output *output)
+{
+	int ci;
+
+	for (ci = 0; ci < cinfo->num_components; ci++) {
+		if (cinfo->idct->inverse_DCT[ci] == jpeg_idct_ifast) {
+			cinfo->idct->inverse_DCT[ci] = idct_ifast_simd;
+		}
+	}
+	if (cinfo->out_color_space == JCS_YCbCr && cinfo->out_color_components == 3) {
+		output->row = 0;
+		cinfo->client_data = output;
+		cinfo->cconvert->color_convert = ycc_argb_convert;
+		return 1;
+	}
+	return 0;
+}
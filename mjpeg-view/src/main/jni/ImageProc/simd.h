@@ -0,0 +1,48 @@
+#ifndef IMAGEPROC_SIMD_H
+#define IMAGEPROC_SIMD_H
+
+#include <stdio.h>
+#include "../jpeg8d/jpeglib.h"
+
+/*
+ * Vectorized decode kernels: NEON on ARM, SSE2 on x86.
+ * The *_c functions are the scalar reference, bit-exact with jpeg8d.
+ */
+
+#if defined(__ARM_NEON) || defined(__ARM_NEON__)
+#define SIMD_NEON 1
+#elif defined(__SSE2__)
+#define SIMD_SSE2 1
+#endif
+
+/* name of the instruction set in use, "none" for the scalar fallback */
+const char *simd_name (void);
+
+/* YCbCr to ARGB_8888 (as stored in an Android bitmap), same arithmetic as jdcolor.c */
+void ycc_argb_row_c (const JSAMPLE *y, const JSAMPLE *cb, const JSAMPLE *cr, int *out, int width);
+void ycc_argb_row (const JSAMPLE *y, const JSAMPLE *cb, const JSAMPLE *cr, int *out, int width);
+
+/* drop-in replacement of jpeg_idct_ifast (jidctfst.c) */
+void idct_ifast_simd (j_decompress_ptr cinfo, jpeg_component_info *compptr,
+	JCOEFPTR coef_block, JSAMPARRAY output_buf, JDIMENSION output_col);
+
+/*
+ * Call after jpeg_start_decompress(): swaps in the vectorized IDCT and, for
+ * YCbCr frames decoded with out_color_space = JCS_YCbCr, converts every row
+ * straight into out instead of the output buffer of jpeg_read_scanlines().
+ * Returns 1 if the rows are written to out.
+ */
+typedef struct {
+	int *out;
+	int stride;
+	int row;
+	/* area of the output image written to out, rows and columns out of it are skipped */
+	int left;
+	int top;
+	int width;
+	int height;
+} simd_output;
+
+int simd_install (j_decompress_ptr cinfo, simd_output *output);
+
+#endif
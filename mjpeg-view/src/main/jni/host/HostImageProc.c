@@ -0,0 +1,56 @@
+/*
+ * JNI entry points of the host build, for the benchmarks of mjpeg-benchmark
+ * (com.github.niqdev.mjpeg.HostImageProc): same decoders as on Android,
+ * into Java int arrays instead of bitmaps.
+ */
+#include "../ImageProc/ImageProc.h"
+
+jint Java_com_github_niqdev_mjpeg_HostImageProc_dimensions(JNIEnv *env, jclass clazz,
+	jbyteArray jp, jint l, jintArray size)
+{
+	jbyte *p = (*env)->GetPrimitiveArrayCritical(env, jp, NULL);
+	jint dims[2];
+	int ret = jpeg_dimensions(p, l, &dims[0], &dims[1]);
+
+	(*env)->ReleasePrimitiveArrayCritical(env, jp, p, JNI_ABORT);
+	if (ret == 0) {
+		(*env)->SetIntArrayRegion(env, size, 0, 2, dims);
+	}
+	return ret;
+}
+
+jint Java_com_github_niqdev_mjpeg_HostImageProc_decode(JNIEnv *env, jclass clazz,
+	jbyteArray jp, jint l, jintArray pixels, jint width, jint height, jint threads)
+{
+	jbyte *p = (*env)->GetPrimitiveArrayCritical(env, jp, NULL);
+	jint *out = (*env)->GetPrimitiveArrayCritical(env, pixels, NULL);
+	int ret = decode_jpeg(p, l, out, width, height, width, threads);
+
+	(*env)->ReleasePrimitiveArrayCritical(env, pixels, out, 0);
+	(*env)->ReleasePrimitiveArrayCritical(env, jp, p, JNI_ABORT);
+	return ret;
+}
+
+jint Java_com_github_niqdev_mjpeg_HostImageProc_decodeReference(JNIEnv *env, jclass clazz,
+	jbyteArray jp, jint l, jintArray pixels, jint width, jint height)
+{
+	jbyte *p = (*env)->GetPrimitiveArrayCritical(env, jp, NULL);
+	jint *out = (*env)->GetPrimitiveArrayCritical(env, pixels, NULL);
+	int ret = decode_jpeg_reference(p, l, out, width, height, width);
+
+	(*env)->ReleasePrimitiveArrayCritical(env, pixels, out, 0);
+	(*env)->ReleasePrimitiveArrayCritical(env, jp, p, JNI_ABORT);
+	return ret;
+}
+
+jint Java_com_github_niqdev_mjpeg_HostImageProc_decodeRegion(JNIEnv *env, jclass clazz,
+	jbyteArray jp, jint l, jintArray pixels, jint left, jint top, jint width, jint height, jint scale)
+{
+	jbyte *p = (*env)->GetPrimitiveArrayCritical(env, jp, NULL);
+	jint *out = (*env)->GetPrimitiveArrayCritical(env, pixels, NULL);
+	int ret = decode_jpeg_region(p, l, out, left, top, width, height, width, scale);
+
+	(*env)->ReleasePrimitiveArrayCritical(env, pixels, out, 0);
+	(*env)->ReleasePrimitiveArrayCritical(env, jp, p, JNI_ABORT);
+	return ret;
+}
@@ -0,0 +1,29 @@
+/* host build: bitmaps are never available outside of Android */
+#include <jni.h>
+#include <stdint.h>
+
+#define ANDROID_BITMAP_FORMAT_RGBA_8888 1
+#define ANDROID_BITMAP_RESULT_JNI_EXCEPTION -3
+
+typedef struct {
+	uint32_t width;
+	uint32_t height;
+	uint32_t stride;
+	int32_t format;
+	uint32_t flags;
+} AndroidBitmapInfo;
+
+static inline int AndroidBitmap_getInfo(JNIEnv *env, jobject bitmap, AndroidBitmapInfo *info)
+{
+	return ANDROID_BITMAP_RESULT_JNI_EXCEPTION;
+}
+
+static inline int AndroidBitmap_lockPixels(JNIEnv *env, jobject bitmap, void **pixels)
+{
+	return ANDROID_BITMAP_RESULT_JNI_EXCEPTION;
+}
+
+static inline int AndroidBitmap_unlockPixels(JNIEnv *env, jobject bitmap)
+{
+	return ANDROID_BITMAP_RESULT_JNI_EXCEPTION;
+}
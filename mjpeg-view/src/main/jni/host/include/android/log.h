@@ -0,0 +1,8 @@
+/* host build: log to stderr */
+#include <stdio.h>
+
+#define ANDROID_LOG_INFO  4
+#define ANDROID_LOG_ERROR 6
+
+#define __android_log_print(prio, tag, ...) \
+	(fprintf(stderr, "%s: ", tag), fprintf(stderr, __VA_ARGS__), fprintf(stderr, "\n"))
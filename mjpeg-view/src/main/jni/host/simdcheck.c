@@ -0,0 +1,476 @@
+/*
+ * Host check and benchmark of the SIMD kernels in ImageProc/simd.c.
+ *
+ *   simdcheck [--bench] image.jpg...
+ *
+ * Compares the vectorized color conversion and IDCT with the scalar code of
+ * jpeg8d, then every image decoded by decode_jpeg() with the plain C decode.
+ * Frames encoded here with restart markers are decoded in slices on several
+ * threads and compared with the serial decode, and regions of frames decoded
+ * by decode_jpeg_region() with the same area of the whole frame decoded by
+ * jpeg8d at every scale.
+ * Any difference is a failure: the SIMD path must be bit-exact.
+ */
+#define JPEG_INTERNALS
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include "../ImageProc/ImageProc.h"
+#include "../jpeg8d/jdct.h"
+
+#define BENCH_SECONDS 2.0
+#define IDCT_BLOCKS 100000
+/* not multiples of any MCU size, the last row and column of MCUs are partial */
+#define FRAME_WIDTH 333
+#define FRAME_HEIGHT 251
+
+typedef struct {
+	const char *name;
+	int components;
+	int h_samp;
+	int v_samp;
+} sampling_mode;
+
+static const sampling_mode SAMPLING_MODES[] = {
+	{ "4:4:4", 3, 1, 1 },
+	{ "4:2:2", 3, 2, 1 },
+	{ "4:2:0", 3, 2, 2 },
+	{ "gray", 1, 1, 1 },
+};
+#define SAMPLING_MODE_COUNT (int)(sizeof(SAMPLING_MODES) / sizeof(SAMPLING_MODES[0]))
+
+static double now (void)
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static unsigned char *read_file (const char *name, int *length)
+{
+	FILE *f = fopen(name, "rb");
+	unsigned char *data;
+
+	if (f == NULL) return NULL;
+	fseek(f, 0, SEEK_END);
+	*length = (int)ftell(f);
+	fseek(f, 0, SEEK_SET);
+	data = malloc(*length);
+	if (fread(data, 1, *length, f) != (size_t)*length) {
+		free(data);
+		data = NULL;
+	}
+	fclose(f);
+	return data;
+}
+
+/* every Y, Cb, Cr combination */
+static int check_color (void)
+{
+	JSAMPLE y[256], cb[256], cr[256];
+	int expected[256], actual[256];
+	int i, j, k, errors = 0;
+
+	for (i = 0; i < 256; i++) {
+		for (j = 0; j < 256; j++) {
+			for (k = 0; k < 256; k++) {
+				y[k] = i;
+				cb[k] = j;
+				cr[k] = k;
+			}
+			/* odd width to exercise the scalar tail */
+			ycc_argb_row_c(y, cb, cr, expected, 255);
+			ycc_argb_row(y, cb, cr, actual, 255);
+			if (memcmp(expected, actual, 255 * sizeof(int)) != 0) errors++;
+		}
+	}
+	printf("color conversion: %s\n", errors == 0 ? "ok" : "MISMATCH");
+	return errors;
+}
+
+/* random coefficients, bounded to what a baseline 8-bit JPEG can produce */
+static int check_idct (j_decompress_ptr cinfo)
+{
+	jpeg_component_info *compptr = &cinfo->comp_info[0];
+	JQUANT_TBL *qtbl = compptr->quant_table;
+	JCOEF block[DCTSIZE2];
+	JSAMPLE expected[DCTSIZE][DCTSIZE], actual[DCTSIZE][DCTSIZE];
+	JSAMPROW expected_rows[DCTSIZE], actual_rows[DCTSIZE];
+	int i, k, errors = 0;
+
+	for (i = 0; i < DCTSIZE; i++) {
+		expected_rows[i] = expected[i];
+		actual_rows[i] = actual[i];
+	}
+	srand(1);
+	for (i = 0; i < IDCT_BLOCKS; i++) {
+		for (k = 0; k < DCTSIZE2; k++) {
+			/* sparse blocks, like real images, with some dense ones */
+			int limit = 1023 / qtbl->quantval[k];
+			if (i % 8 != 0 && k > 0 && rand() % 4 != 0) {
+				block[k] = 0;
+			} else {
+				block[k] = rand() % (2 * limit + 1) - limit;
+			}
+		}
+		jpeg_idct_ifast(cinfo, compptr, block, expected_rows, 0);
+		idct_ifast_simd(cinfo, compptr, block, actual_rows, 0);
+		if (memcmp(expected, actual, sizeof(expected)) != 0) errors++;
+	}
+	printf("idct: %s (%d of %d blocks differ)\n", errors == 0 ? "ok" : "MISMATCH",
+		errors, IDCT_BLOCKS);
+	return errors;
+}
+
+/* start a decompress of p, to borrow its quantization tables and range limit */
+static int check_kernels (const unsigned char *p, int l)
+{
+	struct jpeg_decompress_struct cinfo;
+	struct my_error_mgr jerr;
+	int errors;
+
+	cinfo.err = jpeg_std_error(&jerr.pub);
+	jerr.pub.error_exit = my_error_exit;
+	if (setjmp(jerr.setjmp_buffer)) {
+		jpeg_destroy_decompress(&cinfo);
+		return 1;
+	}
+	jpeg_create_decompress(&cinfo);
+	jpeg_mem_src(&cinfo, (unsigned char *)p, l);
+	jpeg_read_header(&cinfo, TRUE);
+	cinfo.dct_method = JDCT_IFAST;
+	jpeg_start_decompress(&cinfo);
+
+	errors = check_color() + check_idct(&cinfo);
+
+	jpeg_abort_decompress(&cinfo);
+	jpeg_destroy_decompress(&cinfo);
+	return errors;
+}
+
+/* a synthetic frame with gradients, edges and noise, so that every block has AC coefficients */
+static unsigned char *encode_frame (const sampling_mode *mode, int restart_interval, unsigned long *length)
+{
+	struct jpeg_compress_struct cinfo;
+	struct jpeg_error_mgr jerr;
+	unsigned char *data = NULL;
+	JSAMPLE *row = malloc(FRAME_WIDTH * mode->components);
+	JSAMPROW rows[1];
+	int x;
+
+	cinfo.err = jpeg_std_error(&jerr);
+	jpeg_create_compress(&cinfo);
+	*length = 0;
+	jpeg_mem_dest(&cinfo, &data, length);
+	cinfo.image_width = FRAME_WIDTH;
+	cinfo.image_height = FRAME_HEIGHT;
+	cinfo.input_components = mode->components;
+	cinfo.in_color_space = mode->components == 1 ? JCS_GRAYSCALE : JCS_RGB;
+	jpeg_set_defaults(&cinfo);
+	jpeg_set_quality(&cinfo, 85, TRUE);
+	cinfo.comp_info[0].h_samp_factor = mode->h_samp;
+	cinfo.comp_info[0].v_samp_factor = mode->v_samp;
+	/* in MCUs */
+	cinfo.restart_interval = restart_interval;
+	jpeg_start_compress(&cinfo, TRUE);
+
+	srand(restart_interval * 31 + mode->h_samp * 7 + mode->v_samp);
+	rows[0] = row;
+	while (cinfo.next_scanline < cinfo.image_height) {
+		int y = cinfo.next_scanline;
+		for (x = 0; x < FRAME_WIDTH * mode->components; x++) {
+			int c = x % mode->components, px = x / mode->components;
+			int v = (px * (c + 1) * 3 + y * 2) & 0xFF;
+			if (((px / 24) + (y / 16)) & 1) v ^= 0x60;
+			v += rand() % 16 - 8;
+			row[x] = (JSAMPLE)(v < 0 ? 0 : v > 255 ? 255 : v);
+		}
+		jpeg_write_scanlines(&cinfo, rows, 1);
+	}
+	jpeg_finish_compress(&cinfo);
+	jpeg_destroy_compress(&cinfo);
+	free(row);
+	return data;
+}
+
+/*
+ * Sliced decode of frames with restart intervals of one MCU, not aligned to
+ * MCU rows, of one and of several MCU rows, against the serial decode with
+ * the same fancy upsampling, on 2 to 8 threads.
+ */
+static int check_slices (void)
+{
+	static const int threads[] = { 2, 3, 4, 8 };
+	size_t size = FRAME_WIDTH * FRAME_HEIGHT * sizeof(int);
+	int *expected = malloc(size), *actual = malloc(size);
+	int m, d, t, errors = 0;
+
+	for (m = 0; m < SAMPLING_MODE_COUNT; m++) {
+		const sampling_mode *mode = &SAMPLING_MODES[m];
+		int mcus_per_row = (FRAME_WIDTH + mode->h_samp * DCTSIZE - 1) / (mode->h_samp * DCTSIZE);
+		int intervals[4];
+		int mode_errors = 0, decodes = 0;
+
+		intervals[0] = 1;
+		intervals[1] = 5;
+		intervals[2] = mcus_per_row;
+		intervals[3] = 3 * mcus_per_row;
+		for (d = 0; d < 4; d++) {
+			unsigned long length;
+			unsigned char *p = encode_frame(mode, intervals[d], &length);
+
+			memset(expected, 0, size);
+			if (decode_jpeg_unsliced(p, (int)length, expected, FRAME_WIDTH, FRAME_HEIGHT, FRAME_WIDTH) != 0) {
+				printf("slices %s DRI %d: serial decode failed\n", mode->name, intervals[d]);
+				mode_errors++;
+			} else {
+				for (t = 0; t < 4; t++) {
+					int result;
+					/* unwritten pixels stay transparent, every decoded one is opaque */
+					memset(actual, 0, size);
+					result = decode_jpeg_sliced(p, (int)length, actual, FRAME_WIDTH, FRAME_HEIGHT, FRAME_WIDTH, threads[t]);
+					decodes++;
+					if (result != 0) {
+						printf("slices %s DRI %d, %d threads: %s\n", mode->name, intervals[d], threads[t],
+							result > 0 ? "not sliced" : "decode failed");
+						mode_errors++;
+					} else if (memcmp(expected, actual, size) != 0) {
+						printf("slices %s DRI %d, %d threads: MISMATCH\n", mode->name, intervals[d], threads[t]);
+						mode_errors++;
+					}
+				}
+			}
+			free(p);
+		}
+		printf("slices %s: %s (%d decodes)\n", mode->name, mode_errors == 0 ? "ok" : "MISMATCH", decodes);
+		errors += mode_errors;
+	}
+	free(expected);
+	free(actual);
+	return errors;
+}
+
+/* the whole frame scaled down by scale, decoded by jpeg8d alone, ARGB as decode_jpeg_region() */
+static int *decode_scaled (const unsigned char *p, unsigned long l, int scale, int *width, int *height)
+{
+	struct jpeg_decompress_struct cinfo;
+	struct jpeg_error_mgr jerr;
+	JSAMPARRAY buffer;
+	int *out;
+
+	cinfo.err = jpeg_std_error(&jerr);
+	jpeg_create_decompress(&cinfo);
+	jpeg_mem_src(&cinfo, (unsigned char *)p, l);
+	jpeg_read_header(&cinfo, TRUE);
+	cinfo.out_color_space = JCS_RGB;
+	cinfo.dct_method = JDCT_IFAST;
+	cinfo.do_fancy_upsampling = TRUE;
+	cinfo.scale_num = 1;
+	cinfo.scale_denom = scale;
+	jpeg_start_decompress(&cinfo);
+	*width = cinfo.output_width;
+	*height = cinfo.output_height;
+	out = malloc(*width * *height * sizeof(int));
+	buffer = (*cinfo.mem->alloc_sarray)((j_common_ptr)&cinfo, JPOOL_IMAGE, *width * 3, 1);
+	while (cinfo.output_scanline < cinfo.output_height) {
+		int *outp = out + cinfo.output_scanline * *width;
+		JSAMPROW in = buffer[0];
+		int x;
+
+		jpeg_read_scanlines(&cinfo, buffer, 1);
+		for (x = 0; x < *width; x++, in += 3) {
+			outp[x] = 0xff000000 | in[2] << 16 | in[1] << 8 | in[0];
+		}
+	}
+	jpeg_finish_decompress(&cinfo);
+	jpeg_destroy_decompress(&cinfo);
+	return out;
+}
+
+/*
+ * Regions of 4:2:0, 4:2:2, grayscale and restart marker frames at scales 1
+ * to 8: the whole frame, inner areas at odd offsets and on iMCU borders, the
+ * corners and single pixels, against the same area of the whole frame.
+ */
+static int check_regions (void)
+{
+	static const int scales[] = { 1, 2, 4, 8 };
+	/* index in SAMPLING_MODES and restart interval */
+	static const int frames[][2] = { { 2, 0 }, { 1, 0 }, { 3, 0 }, { 2, 5 } };
+	int f, s, r, errors = 0;
+
+	for (f = 0; f < 4; f++) {
+		const sampling_mode *mode = &SAMPLING_MODES[frames[f][0]];
+		unsigned long length;
+		unsigned char *p = encode_frame(mode, frames[f][1], &length);
+		int frame_errors = 0, decodes = 0;
+
+		for (s = 0; s < 4; s++) {
+			int width, height;
+			int *expected = decode_scaled(p, length, scales[s], &width, &height);
+			/* iMCU in scaled pixels, the upsampling context crosses its borders */
+			int imcu_width = mode->h_samp * DCTSIZE / scales[s];
+			int imcu_height = mode->v_samp * DCTSIZE / scales[s];
+			/* left, top, width, height */
+			int regions[][4] = {
+				{ 0, 0, width, height },
+				{ width / 3, height / 4, width / 3 + 1, height / 2 },
+				{ 5, 3, width / 2, height / 3 },
+				{ width / 2 + 1, 0, width - width / 2 - 1, height },
+				{ 0, height - 7, 9, 7 },
+				{ width - 1, height - 1, 1, 1 },
+				{ width / 2, height / 2, 1, 1 },
+				{ imcu_width * 3, imcu_height * 2, imcu_width * 2, imcu_height * 3 },
+				{ imcu_width * 5 - 1, imcu_height * 4 - 1, 2, 2 },
+			};
+
+			for (r = 0; r < (int)(sizeof(regions) / sizeof(regions[0])); r++) {
+				int left = regions[r][0], top = regions[r][1], w = regions[r][2], h = regions[r][3];
+				int *actual = malloc(w * h * sizeof(int));
+				int y, mismatch = 0;
+
+				memset(actual, 0, w * h * sizeof(int));
+				decodes++;
+				if (decode_jpeg_region(p, (int)length, actual, left, top, w, h, w, scales[s]) != 0) {
+					printf("regions %s DRI %d, scale %d, %dx%d at %d,%d: decode failed\n",
+						mode->name, frames[f][1], scales[s], w, h, left, top);
+					frame_errors++;
+				} else {
+					for (y = 0; y < h && !mismatch; y++) {
+						mismatch = memcmp(expected + (top + y) * width + left, actual + y * w, w * sizeof(int)) != 0;
+					}
+					if (mismatch) {
+						printf("regions %s DRI %d, scale %d, %dx%d at %d,%d: MISMATCH\n",
+							mode->name, frames[f][1], scales[s], w, h, left, top);
+						frame_errors++;
+					}
+				}
+				free(actual);
+			}
+			free(expected);
+		}
+		printf("regions %s DRI %d: %s (%d decodes)\n", mode->name, frames[f][1],
+			frame_errors == 0 ? "ok" : "MISMATCH", decodes);
+		errors += frame_errors;
+		free(p);
+	}
+	return errors;
+}
+
+typedef int (*decode_fn)(const unsigned char *p, int l, int *out, int width, int height);
+
+static int decode_c (const unsigned char *p, int l, int *out, int width, int height)
+{
+	return decode_jpeg_reference(p, l, out, width, height, width);
+}
+
+static int decode_simd (const unsigned char *p, int l, int *out, int width, int height)
+{
+	return decode_jpeg(p, l, out, width, height, width, 1);
+}
+
+static double bench (decode_fn decode, const unsigned char *p, int l, int *out, int width, int height)
+{
+	double start = now(), elapsed;
+	int frames = 0;
+
+	do {
+		decode(p, l, out, width, height);
+		frames++;
+		elapsed = now() - start;
+	} while (elapsed < BENCH_SECONDS);
+	return (double)width * height * frames / elapsed / 1e6;
+}
+
+static int check_image (const char *name, int benchmark)
+{
+	unsigned char *p;
+	int *expected, *actual;
+	int l, width, height, errors = 0;
+
+	p = read_file(name, &l);
+	if (p == NULL || jpeg_dimensions(p, l, &width, &height) != 0) {
+		printf("%s: cannot read\n", name);
+		free(p);
+		return 1;
+	}
+	expected = malloc(width * height * sizeof(int));
+	actual = malloc(width * height * sizeof(int));
+	if (decode_c(p, l, expected, width, height) != 0 || decode_simd(p, l, actual, width, height) != 0) {
+		printf("%s: decode failed\n", name);
+		errors = 1;
+	} else if (memcmp(expected, actual, width * height * sizeof(int)) != 0) {
+		printf("%s: %dx%d MISMATCH\n", name, width, height);
+		errors = 1;
+	} else {
+		printf("%s: %dx%d ok\n", name, width, height);
+	}
+	if (benchmark && errors == 0) {
+		double c = bench(decode_c, p, l, expected, width, height);
+		double simd = bench(decode_simd, p, l, actual, width, height);
+		printf("  c %.1f Mpixel/s, %s %.1f Mpixel/s, x%.2f\n", c, simd_name(), simd, simd / c);
+	}
+	free(expected);
+	free(actual);
+	free(p);
+	return errors;
+}
+
+static void bench_kernels (void)
+{
+	JSAMPLE y[1024], cb[1024], cr[1024];
+	int out[1024];
+	double start, c, simd;
+	long rows;
+	int i;
+
+	for (i = 0; i < 1024; i++) {
+		y[i] = rand();
+		cb[i] = rand();
+		cr[i] = rand();
+	}
+	for (rows = 0, start = now(); now() - start < BENCH_SECONDS; rows += 100) {
+		for (i = 0; i < 100; i++) ycc_argb_row_c(y, cb, cr, out, 1024);
+	}
+	c = rows * 1024 / (now() - start) / 1e6;
+	for (rows = 0, start = now(); now() - start < BENCH_SECONDS; rows += 100) {
+		for (i = 0; i < 100; i++) ycc_argb_row(y, cb, cr, out, 1024);
+	}
+	simd = rows * 1024 / (now() - start) / 1e6;
+	printf("color conversion: c %.1f Mpixel/s, %s %.1f Mpixel/s, x%.2f\n", c, simd_name(), simd, simd / c);
+}
+
+int main (int argc, char **argv)
+{
+	int benchmark = 0, errors = 0, i = 1, l;
+	unsigned char *p;
+
+	if (argc > 1 && strcmp(argv[1], "--bench") == 0) {
+		benchmark = 1;
+		i++;
+	}
+	if (i >= argc) {
+		fprintf(stderr, "usage: %s [--bench] image.jpg...\n", argv[0]);
+		return 2;
+	}
+	printf("simd: %s\n", simd_name());
+
+	p = read_file(argv[i], &l);
+	if (p == NULL) {
+		fprintf(stderr, "%s: cannot read\n", argv[i]);
+		return 2;
+	}
+	errors += check_kernels(p, l);
+	free(p);
+	errors += check_slices();
+	errors += check_regions();
+
+	for (; i < argc; i++) {
+		errors += check_image(argv[i], benchmark);
+	}
+	if (benchmark) bench_kernels();
+
+	printf(errors == 0 ? "PASS\n" : "FAIL\n");
+	return errors == 0 ? 0 : 1;
+}